@@ -0,0 +1,110 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain text admin port for the server. It only listens on localhost. Send one line and it
+ * answers and closes the connection, so it works with nc or telnet:
+ *
+ *   echo stats | nc localhost 5046
+ *
+ * "stats [n]" answers with the metrics report and the n users with the most messages
+ * waiting (10 if n is left out).
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class AdminServer implements Runnable
+{
+	private static final int TIMEOUT_MILLIS = 5000;
+
+	private Server serv;
+	private int port;
+	private ServerSocket ss;
+	private Thread controlThread;
+	private volatile boolean keepRunning;
+
+	public AdminServer(Server serv, int port)
+	{
+		this.serv = serv;
+		this.port = port;
+	}
+
+	public void run()
+	{
+		try
+		{
+			ss = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+			while (keepRunning)
+			{
+				try (Socket s = ss.accept())
+				{
+					s.setSoTimeout(TIMEOUT_MILLIS);
+					answer(s);
+				}
+				catch (IOException e)
+				{
+					if (!keepRunning) break;
+				}
+				catch (RuntimeException e) // a bad query mustn't take the admin port down
+				{
+					Log.warn("admin query failed: {}", e.toString());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Log.warn("admin port {} is unavailable: {}", port, e.getMessage());
+		}
+	}
+
+	private void answer(Socket s) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		PrintWriter out = new PrintWriter(s.getOutputStream(), false, StandardCharsets.UTF_8);
+		String line = in.readLine();
+		String[] words = (line == null) ? new String[0] : line.trim().split("\\s+");
+
+		if (words.length > 0 && words[0].equalsIgnoreCase("stats"))
+		{
+			int mailboxes = 10;
+			try
+			{
+				if (words.length > 1) mailboxes = Integer.parseInt(words[1]);
+			}
+			catch (NumberFormatException e)
+			{
+			}
+			out.print(serv.statsReport(mailboxes));
+		}
+		else out.println("commands: stats [mailboxes]");
+		out.flush();
+	}
+
+	public void start()
+	{
+		if (controlThread == null)
+		{
+			keepRunning = true;
+			controlThread = new Thread(this);
+			controlThread.setDaemon(true);
+			controlThread.start();
+		}
+	}
+
+	public void stop()
+	{
+		keepRunning = false;
+		try
+		{
+			if (ss != null) ss.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
@@ -1,10 +1,14 @@
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -18,19 +22,43 @@ public class Client implements Runnable
     private Thread controlThread;
 	private Socket s;
 	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private ObjectOutputStream out; // null when using the binary WireProtocol
+	private DataInputStream binIn;
+	private OutputStream rawOut;
 	private BufferedReader keyboard;
 	private String name;
 	private MessageReceiver mr;
+	private Screen screen; // draws incoming messages at a capped frame rate
 	private String defaultSendTo;
 	private Map<String, String> aliasMap;
     public Client(String name, String host, int port) throws IOException
+	{
+		this(name, host, port, true);
+	}
+
+	// binary picks the WireProtocol. servers older than it only understand serialized objects
+    public Client(String name, String host, int port, boolean binary) throws IOException
     {
 		this.name = name;
         s = new Socket(host, port);
-        out = new ObjectOutputStream(s.getOutputStream());
-        in = new ObjectInputStream(s.getInputStream());
+		rawOut = s.getOutputStream();
+		if (binary)
+		{
+			rawOut.write(WireProtocol.handshake(WireProtocol.VERSION));
+			binIn = new DataInputStream(s.getInputStream());
+			byte[] reply = new byte[WireProtocol.HANDSHAKE_LENGTH];
+			binIn.readFully(reply);
+			if (!WireProtocol.isHandshake(reply, 0, WireProtocol.MAGIC.length) || reply[WireProtocol.MAGIC.length] < 1)
+				throw new IOException("server did not accept the binary protocol");
+			binIn = Compression.input(binIn, reply[WireProtocol.MAGIC.length]); // servers that compress answer version 2
+		}
+		else
+		{
+			out = new ObjectOutputStream(rawOut);
+			in = new ObjectInputStream(s.getInputStream());
+		}
 		mr = new MessageReceiver();
+		screen = new Screen(System.out);
 		defaultSendTo = "all";
 		aliasMap = new HashMap<String, String>();
 	}
@@ -41,6 +69,7 @@ public class Client implements Runnable
         {
             // connect to the server automatically and start receiver
             connect(name);
+            screen.start();
             mr.start();
 
 			keyboard = new BufferedReader(new InputStreamReader(System.in));
@@ -77,6 +106,12 @@ public class Client implements Runnable
 					getUserList(lineArr);
 				else if (command.equalsIgnoreCase("mygroups"))
 					getMyGroups();
+				else if (command.equalsIgnoreCase("history"))
+					send("history", rest(line));
+				else if (command.equalsIgnoreCase("search"))
+					search(line);
+				else if (command.equalsIgnoreCase("scroll"))
+					scroll(lineArr);
 				else if (command.equalsIgnoreCase("alias"))
 					setAlias(lineArr);
 				else if (command.equalsIgnoreCase("addtogroup")){
@@ -97,21 +132,47 @@ public class Client implements Runnable
 
 	private void getUserList(String[] group) throws IOException
 	{
-		out.writeObject("listmembers");
-		if (group.length < 2) out.writeObject("all");
-		else out.writeObject(group[1]);
+		if (group.length < 2) send("listmembers", "all");
+		else send("listmembers", group[1]);
+	}
+
+	// everything after the command word
+	private static String rest(String line)
+	{
+		String[] parts = line.trim().split("\\s+", 2);
+		return (parts.length < 2) ? "" : parts[1];
+	}
+
+	private void search(String line) throws IOException
+	{
+		if (rest(line).isEmpty())
+		{
+			displayHelp();
+			return;
+		}
+		send("search", rest(line));
+	}
+
+	private void scroll(String[] lineArr)
+	{
+		try
+		{
+			screen.scroll((lineArr.length > 1) ? Integer.parseInt(lineArr[1]) : 20);
+		}
+		catch (NumberFormatException e)
+		{
+			displayHelp();
+		}
 	}
 
 	private void getMyGroups() throws IOException
 	{
-		out.writeObject("mygroups");
+		send("mygroups");
 	}
 
 	private void addtogroup(String[] line)throws IOException{
 		if (line.length >= 3){
-			out.writeObject("addtogroup");
-			out.writeObject(line[1]);
-			out.writeObject(line[2]);
+			send("addtogroup", line[1], line[2]);
 		}else{
 			displayHelp();
 		}
@@ -123,8 +184,7 @@ public class Client implements Runnable
 			displayHelp();
 			return;
 		}
-		out.writeObject("leavegroup");
-		out.writeObject(line[1]);
+		send("leavegroup", line[1]);
 	}
 
 	private void setAlias(String[] line)
@@ -152,9 +212,7 @@ public class Client implements Runnable
 
 		String msg = "";
         for (int i = 2; i < lineArr.length; i++) msg += " "+lineArr[i];
-		out.writeObject("poll");
-		out.writeObject(lineArr[1]); // groupname
-		out.writeObject(msg.toLowerCase().trim());
+		send("poll", lineArr[1], msg.toLowerCase().trim()); // groupname, question or vote
 	}
 
 	private void displayHelp() {
@@ -173,11 +231,17 @@ public class Client implements Runnable
 		System.out.printf("\t%-40s %s\n", "list [groupname] ", "Display users in this group");
 		System.out.printf("\t%-40s %s\n", "mygroups ", "Display groups you are a part of");
 		System.out.printf("\t%-40s %s\n", "poll [group name] [question]", "Create a poll for a group");
+		System.out.printf("\t%-40s %s\n", "poll [group name] [seconds]s [question]", "Create a poll that stays open that long");
 		System.out.printf("\t%-40s %s\n", "poll all [question]", "Create a poll for all");
-		System.out.printf("\t%-40s %s\n", "poll [group name] [yes/no]", "Vote yes/no on a poll for a group");
+		System.out.printf("\t%-40s %s\n", "poll [group name] [yes/no] [#poll]", "Vote yes/no on a poll for a group");
+		System.out.printf("\t%-40s %s\n", " ", "(the newest poll if no # is given)");
 		System.out.printf("\t%-40s %s\n", "poll all [yes/no]", "Vote yes/no on a poll for the group of");
 		System.out.printf("\t%-40s %s\n", " ", "all currently connected users");
 
+		System.out.printf("\t%-40s %s\n", "history [group name] [n]", "Show the last n messages of a group, or your direct messages");
+		System.out.printf("\t%-40s %s\n", "search [words]", "Find messages you can see that have all of the words");
+		System.out.printf("\t%-40s %s\n", " ", "add the #number shown after 'More:' to see older ones");
+		System.out.printf("\t%-40s %s\n", "scroll [n]", "Show the last n messages again, including any a flood left out");
 		System.out.printf("\t%-40s %s\n", "alias [name] [alias]", "Set an alias for a user/word.");
 		System.out.printf("\t%-40s %s\n", " ", "The word can be replaced with $[alias]");
 		System.out.printf("\t%-40s %s\n", "help ", "Display this help page");
@@ -199,8 +263,7 @@ public class Client implements Runnable
             String content = "";
             for (; i < lineArr.length; i++) content += " "+lineArr[i];
 			Message m = new Message(name, defaultSendTo, content.trim());
-			out.writeObject("message");
-			out.writeObject(m);
+			send("message", m);
 		}
 		catch (Exception e)
 		{
@@ -215,9 +278,7 @@ public class Client implements Runnable
             String groupName = lineArr[1];
             String members = "";
             for (int i = 2; i < lineArr.length; i++) members += " "+lineArr[i];
-            out.writeObject("createGroup");
-            out.writeObject(groupName);
-			out.writeObject(members);
+            send("createGroup", groupName, members);
 		}
 		catch (Exception e)
 		{
@@ -229,7 +290,7 @@ public class Client implements Runnable
 	{
 		try
 		{
-			out.writeObject("disconnect");
+			send("disconnect");
 			keepRunning = false;
 		}
 		catch (IOException e)
@@ -241,11 +302,22 @@ public class Client implements Runnable
 
 	private void connect(String userName) throws IOException
 	{
-        out.writeObject("connect");
-		out.writeObject(userName.toLowerCase());
+        send("connect", userName.toLowerCase());
 		name = userName;
 	}
 
+	// writes a command and its arguments (Strings or a Message) in whichever protocol we're using
+	private void send(String command, Object... args) throws IOException
+	{
+		if (out == null)
+		{
+			rawOut.write(WireProtocol.encode(command, args));
+			return;
+		}
+		out.writeObject(command);
+		for (Object arg : args) out.writeObject(arg);
+	}
+
     public void start()
     {
         if (controlThread == null)
@@ -261,52 +333,51 @@ public class Client implements Runnable
 		private Thread controlThread;
 		private volatile boolean keepReceiving;
 		
-		private void receiveMessage()
+		// reads the next command from the server as the command name followed by its arguments
+		private List<Object> readCommand() throws IOException, ClassNotFoundException
+		{
+			if (out == null) return WireProtocol.read(binIn);
+			String command = (String) in.readObject();
+			if (command.equals("message")) return Arrays.asList(command, in.readObject());
+			return Arrays.asList(command);
+		}
+
+		// works out how the message is shown and hands the line to the screen. called for every message,
+		// so it only formats; the screen draws a whole frame of them at once
+		private void receiveMessage(Message m)
 		{
-			try
+			String color;
+			String from = m.sender;
+			if (m.sender.substring(m.sender.lastIndexOf(' ') + 1).equals("SERVER")) color = "\u001B[43m\u001B[30m"; // from SERVER
+			else if (m.sender.startsWith("[")) // group
 			{
-				Message m = (Message) in.readObject();
-			
-				System.out.print("\033[2K"); // Erase typing content
-				System.out.print(String.format("\033[%dA", 1)); // Move up 1 line
-				System.out.print("\033[2K"); // Erase newline above current line
-				
-				if (m.sender.split(" ")[m.sender.split(" ").length-1].equals("SERVER")) // from SERVER
-				{ 
-					System.out.print("\n> \u001B[43m\u001B[30m" + m.sender + "\u001B[0m: " + m.content + "\n\n> ");
-				} 
-				else if (m.sender.contains("[")) //Group
-				{ 
-					defaultSendTo = m.sender.split("\\[")[1].split("\\]")[0];
-					System.out.print("\n> \u001B[42m\u001B[30m" + m.sender + "\u001B[0m: " + m.content + "\n\n> ");
-				}
-				else if (m.sender.equals(name)) //message rebounding to user for confirmation it was sent to server
-				{
-					System.out.print("\n> \u001B[46m\u001B[30m" + m.sender + "->" + m.receiver + "\u001B[0m: " + m.content + "\n\n> ");
-				}
-				else //Private message from someone else
-				{
-					defaultSendTo = m.sender; //.split(" ")[m.sender.split(" ").length-1]
-					System.out.print("\n> \u001B[45m\u001B[30m" + m.sender + "\u001B[0m: " + m.content + "\n\n> ");
-				}
-				
-				System.out.flush();
+				int close = m.sender.indexOf(']');
+				if (close > 0) defaultSendTo = m.sender.substring(1, close);
+				color = "\u001B[42m\u001B[30m";
+			}
+			else if (m.sender.equals(name)) // message rebounding to user for confirmation it was sent to server
+			{
+				from = m.sender + "->" + m.receiver;
+				color = "\u001B[46m\u001B[30m";
 			}
-			catch (ClassNotFoundException | IOException e)
+			else // private message from someone else
 			{
+				defaultSendTo = m.sender;
+				color = "\u001B[45m\u001B[30m";
 			}
+			screen.add(color + from + "\u001B[0m: " + m.content);
 		}
-		
+
 		public void run()
 		{
-			String command;
+			List<Object> command;
 			while (keepReceiving)
 			{
 				try
 				{
-					command = (String) in.readObject();
-                    if (command.equals("message")) receiveMessage();
-					else if (command.equals("disconnect")) stop();
+					command = readCommand();
+                    if (command.get(0).equals("message")) receiveMessage((Message) command.get(1));
+					else if (command.get(0).equals("disconnect")) stop();
 				}
 				catch (ClassNotFoundException | IOException e)
 				{
@@ -327,6 +398,7 @@ public class Client implements Runnable
 		public void stop()
 		{
 			keepReceiving = false;
+			screen.stop();
 			System.exit(0);
 		}
 	}
@@ -337,8 +409,9 @@ public class Client implements Runnable
 		String name = (args.length > 0) ? args[0].toLowerCase() : System.getProperty("user.name");
 		String host = (args.length > 1) ? args[1] : "localhost"; 
 		int    port = (args.length > 2) ? Integer.parseInt(args[2]) : 5045; //Server.PORT;
+		boolean binary = (args.length > 3) ? !args[3].equalsIgnoreCase("object") : true; // 'object' for old servers
         
-        Client c = new Client(name, host, port);
+        Client c = new Client(name, host, port, binary);
         c.start();
 	}
 }
@@ -0,0 +1,558 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links one server to the other nodes of a cluster. Every node is started with the same
+ * --peers list and its own --node index, and listens for the other nodes on its own entry in
+ * the list. A node dials the nodes before it in the list and accepts links from the nodes
+ * after it, so each pair has one link. A link that drops is dialed again every second.
+ *
+ * Links carry WireProtocol frames with their own opcodes:
+ *
+ *   HELLO          node, node count. the first frame each way
+ *   ONLINE         name. a user connected to the sending node
+ *   OFFLINE        name. they disconnected from it
+ *   GROUP          name, version, node, members... the whole membership of a group
+ *   GROUP_PART     name, version, node, members... the first members of a GROUP that didn't fit in one frame
+ *   DELIVER        hops, message. a direct message for a user homed on the receiving node
+ *   HANDOFF        name, messages... a mailbox moving to the receiving node
+ *   GROUP_DELIVER  group, sender, message. one frame per node, whatever its number of members
+ *
+ * A HANDOFF or GROUP too big for one frame is sent as several, each well under the largest
+ * frame a peer accepts. HANDOFFs are just sent one after another; the members in the GROUP_PARTs
+ * are added to the GROUP that follows them.
+ *
+ * Every user has one home node at a time, the only node whose mailbox for them follows group
+ * logs: the node they are connected to, or while they are offline the live node that wins a
+ * rendezvous hash of their name. Messages are sent to the home node, and when a user's home
+ * changes the old home hands their waiting messages on to the new one.
+ *
+ * Each link has a writer thread that writes whatever frames are queued and flushes once, so
+ * a burst of messages between two nodes goes out in a few large writes. A peer that stops
+ * reading until PEER_QUEUE frames are waiting for it is disconnected; it gets the directory
+ * again when it reconnects.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Cluster
+{
+	public static final byte HELLO = 32;
+	public static final byte ONLINE = 33;
+	public static final byte OFFLINE = 34;
+	public static final byte GROUP = 35;
+	public static final byte DELIVER = 36;
+	public static final byte HANDOFF = 37;
+	public static final byte GROUP_DELIVER = 38;
+	public static final byte GROUP_PART = 39;
+
+	public static final int MAX_HOPS = 2; // a message is passed on at most this many times while homes are changing
+	private static final int PEER_QUEUE = 65536;
+	private static final int RETRY_MILLIS = 1000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int FRAME_BUDGET = WireProtocol.MAX_FRAME_LENGTH / 2; // a frame that is split is split into pieces about this big
+
+	private Server serv;
+	private int self;
+	private InetSocketAddress[] nodes;
+	private AtomicReferenceArray<Peer> links; // by node index. null for this node and nodes that are down
+	private Map<String, Integer> remote = new ConcurrentHashMap<>(); // users connected to other nodes : their node
+	private ServerSocket listener;
+	private volatile boolean keepRunning;
+	private LongAdder framesOut;
+	private LongAdder framesIn;
+	private LongAdder bytesOut;
+
+	public Cluster(Server serv, ServerConfig config)
+	{
+		this.serv = serv;
+		this.self = config.node;
+		nodes = new InetSocketAddress[config.peers.length];
+		for (int i = 0; i < nodes.length; i++) nodes[i] = parseAddress(config.peers[i]);
+		if (self < 0 || self >= nodes.length)
+			throw new IllegalArgumentException("--node must be between 0 and " + (nodes.length - 1));
+		links = new AtomicReferenceArray<>(nodes.length);
+
+		Metrics metrics = serv.getMetrics();
+		framesOut = metrics.counter("cluster.frames.out");
+		framesIn = metrics.counter("cluster.frames.in");
+		bytesOut = metrics.counter("cluster.bytes.out");
+		metrics.gauge("cluster.peers.up", this::peersUp);
+		metrics.gauge("cluster.users.remote", remote::size);
+	}
+
+	private static InetSocketAddress parseAddress(String peer)
+	{
+		int colon = peer.lastIndexOf(':');
+		if (colon < 0) throw new IllegalArgumentException("peer '" + peer + "' should be host:port");
+		return new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+	}
+
+	public int getNode()
+	{
+		return self;
+	}
+
+	public void start() throws IOException
+	{
+		keepRunning = true;
+		listener = new ServerSocket(nodes[self].getPort());
+		daemon(this::acceptLinks, "cluster-accept").start();
+		for (int n = 0; n < self; n++)
+		{
+			int node = n;
+			daemon(() -> dial(node), "cluster-dial-" + node).start();
+		}
+		Log.info("cluster node {} of {} listening for peers on port {}", self, nodes.length, nodes[self].getPort());
+	}
+
+	public void stop()
+	{
+		keepRunning = false;
+		try
+		{
+			if (listener != null) listener.close();
+		}
+		catch (IOException e)
+		{
+		}
+		for (int n = 0; n < links.length(); n++) if (links.get(n) != null) links.get(n).close();
+	}
+
+	private static Thread daemon(Runnable r, String name)
+	{
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	// nodes after this one connect to it
+	private void acceptLinks()
+	{
+		while (keepRunning)
+		{
+			try
+			{
+				Socket s = listener.accept();
+				daemon(() -> {
+					try
+					{
+						Peer p = new Peer(s);
+						List<String> hello = p.readHello();
+						int node = Integer.parseInt(hello.get(0));
+						if (node <= self || node >= nodes.length) throw new IOException("unexpected hello from node " + node);
+						p.run(node);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						Log.warn("rejected a cluster link: {}", e.getMessage());
+						closeQuietly(s);
+					}
+				}, "cluster-link").start();
+			}
+			catch (IOException e)
+			{
+				if (!keepRunning) return;
+			}
+		}
+	}
+
+	// this node connects to the nodes before it, and again whenever the link drops
+	private void dial(int node)
+	{
+		while (keepRunning)
+		{
+			Socket s = new Socket();
+			try
+			{
+				s.connect(nodes[node], RETRY_MILLIS);
+				Peer p = new Peer(s);
+				List<String> hello = p.readHello();
+				if (Integer.parseInt(hello.get(0)) != node) throw new IOException("node " + node + " answered as node " + hello.get(0));
+				p.run(node); // returns when the link drops
+			}
+			catch (IOException | RuntimeException e)
+			{
+				closeQuietly(s);
+			}
+			try
+			{
+				Thread.sleep(RETRY_MILLIS);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	private byte[] hello()
+	{
+		return frame(HELLO, String.valueOf(self), String.valueOf(nodes.length));
+	}
+
+	private static void closeQuietly(Socket s)
+	{
+		try
+		{
+			s.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	private static byte[] frame(byte op, String... fields)
+	{
+		return WireProtocol.encodeFields(op, List.of(fields));
+	}
+
+	private static Message message(List<String> fields, int at)
+	{
+		return new Message(fields.get(at), fields.get(at + 1), fields.get(at + 2));
+	}
+
+	private int peersUp()
+	{
+		int up = 0;
+		for (int n = 0; n < links.length(); n++) if (links.get(n) != null) up++;
+		return up;
+	}
+
+	// the user is connected to another node
+	public boolean isOnline(String name)
+	{
+		return remote.containsKey(name);
+	}
+
+	public Collection<String> remoteUsers()
+	{
+		return new ArrayList<>(remote.keySet());
+	}
+
+	/**
+	 * The node whose mailbox for this user follows its groups: where they are connected, or
+	 * while they are offline the live node that scores highest for their name. Every node
+	 * picks the same one once they agree on who is connected and which nodes are up.
+	 */
+	public int home(String name, boolean connectedHere)
+	{
+		if (connectedHere) return self;
+		Integer node = remote.get(name);
+		if (node != null) return node;
+
+		int best = self;
+		int bestScore = score(name, self);
+		for (int n = 0; n < links.length(); n++)
+		{
+			if (links.get(n) == null) continue;
+			int s = score(name, n);
+			if (s > bestScore || (s == bestScore && n < best))
+			{
+				best = n;
+				bestScore = s;
+			}
+		}
+		return best;
+	}
+
+	private static int score(String name, int node)
+	{
+		int h = name.hashCode() * 0x9e3779b9 + node;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	// every node that is up, this one included
+	public BitSet liveNodes()
+	{
+		BitSet live = new BitSet(links.length());
+		live.set(self);
+		for (int n = 0; n < links.length(); n++) if (links.get(n) != null) live.set(n);
+		return live;
+	}
+
+	public void userOnline(String name)
+	{
+		broadcast(frame(ONLINE, name));
+	}
+
+	public void userOffline(String name)
+	{
+		broadcast(frame(OFFLINE, name));
+	}
+
+	public void publishGroup(String name, long version, Collection<String> members)
+	{
+		for (byte[] frame : groupFrames(name, version, self, members)) broadcast(frame);
+	}
+
+	public void sendGroup(int node, String name, long version, int versionNode, Collection<String> members)
+	{
+		for (byte[] frame : groupFrames(name, version, versionNode, members)) send(node, frame);
+	}
+
+	// GROUP_PARTs if the members don't fit in one frame, then the GROUP
+	private static List<byte[]> groupFrames(String name, long version, int versionNode, Collection<String> members)
+	{
+		List<String> head = List.of(name, String.valueOf(version), String.valueOf(versionNode));
+		return split(GROUP_PART, GROUP, head, new ArrayList<>(members), 1);
+	}
+
+	/**
+	 * Frames that each start with the head fields and carry as many of the rest as fit in
+	 * FRAME_BUDGET, unit fields at a time so a message isn't cut in half. All but the last
+	 * frame have the opcode part, the last has last. There is always at least one frame.
+	 */
+	private static List<byte[]> split(byte part, byte last, List<String> head, List<String> rest, int unit)
+	{
+		List<byte[]> frames = new ArrayList<>();
+		int headSize = 0;
+		for (String s : head) headSize += fieldSize(s);
+		int from = 0;
+		do
+		{
+			int to = from;
+			int size = headSize;
+			while (to < rest.size())
+			{
+				int unitSize = 0;
+				for (int i = to; i < to + unit; i++) unitSize += fieldSize(rest.get(i));
+				if (to > from && size + unitSize > FRAME_BUDGET) break;
+				size += unitSize;
+				to += unit;
+			}
+			List<String> fields = new ArrayList<>(head.size() + to - from);
+			fields.addAll(head);
+			fields.addAll(rest.subList(from, to));
+			byte[] frame = WireProtocol.encodeFields((to == rest.size()) ? last : part, fields);
+			// only a single field bigger than a client could send gets here
+			if (frame.length - 4 > WireProtocol.MAX_FRAME_LENGTH) Log.warn("dropped a cluster frame of {} bytes. it is too big to send", frame.length);
+			else frames.add(frame);
+			from = to;
+		}
+		while (from < rest.size());
+		return frames;
+	}
+
+	// an upper bound on the bytes a field takes in a frame, without encoding it
+	private static int fieldSize(String s)
+	{
+		return (s == null) ? 1 : 5 + 3 * s.length();
+	}
+
+	public void sendOnline(int node, String name)
+	{
+		send(node, frame(ONLINE, name));
+	}
+
+	// a direct message for a user homed on node
+	public void deliver(int node, Message m, int hops)
+	{
+		List<String> fields = new ArrayList<>(4);
+		fields.add(String.valueOf(hops));
+		WireProtocol.addFields(fields, m);
+		send(node, WireProtocol.encodeFields(DELIVER, fields));
+	}
+
+	// everything that was waiting here for a user whose home is now node
+	public void handoff(int node, String name, List<Message> msgs)
+	{
+		List<String> fields = new ArrayList<>(3 * msgs.size());
+		for (Message m : msgs) WireProtocol.addFields(fields, m);
+		for (byte[] frame : split(HANDOFF, HANDOFF, List.of(name), fields, 3)) send(node, frame);
+	}
+
+	// one frame per node that is home to a member. it is encoded once and shared by every link
+	public void sendGroupMessage(BitSet to, String group, String sender, Message m)
+	{
+		if (to.isEmpty()) return;
+		List<String> fields = new ArrayList<>(5);
+		fields.add(group);
+		fields.add(sender);
+		WireProtocol.addFields(fields, m);
+		byte[] frame = WireProtocol.encodeFields(GROUP_DELIVER, fields);
+		for (int n = to.nextSetBit(0); n >= 0; n = to.nextSetBit(n + 1)) if (n != self) send(n, frame);
+	}
+
+	private void broadcast(byte[] frame)
+	{
+		for (int n = 0; n < links.length(); n++) send(n, frame);
+	}
+
+	private void send(int node, byte[] frame)
+	{
+		Peer p = links.get(node);
+		if (p != null) p.send(frame);
+	}
+
+	private void dispatch(Peer p, int node, byte[] frame) throws IOException
+	{
+		framesIn.increment();
+		List<String> f = WireProtocol.decodeFields(frame);
+		switch (frame[4])
+		{
+			case ONLINE:
+				remote.put(f.get(0), node);
+				serv.remoteOnline(f.get(0), node);
+				break;
+			case OFFLINE:
+				if (remote.remove(f.get(0), node)) serv.remoteOffline(f.get(0));
+				break;
+			case GROUP_PART:
+				p.groupParts.computeIfAbsent(List.copyOf(f.subList(0, 3)), k -> new ArrayList<>()).addAll(f.subList(3, f.size()));
+				break;
+			case GROUP:
+				List<String> members = p.groupParts.remove(f.subList(0, 3));
+				if (members == null) members = f.subList(3, f.size());
+				else members.addAll(f.subList(3, f.size()));
+				serv.applyGroup(f.get(0), Long.parseLong(f.get(1)), Integer.parseInt(f.get(2)), members);
+				break;
+			case DELIVER:
+				serv.deliverFromPeer(message(f, 1), Integer.parseInt(f.get(0)));
+				break;
+			case HANDOFF:
+				List<Message> msgs = new ArrayList<>((f.size() - 1) / 3);
+				for (int i = 1; i + 2 < f.size(); i += 3) msgs.add(message(f, i));
+				serv.handoffFromPeer(f.get(0), msgs);
+				break;
+			case GROUP_DELIVER:
+				serv.groupMessageFromPeer(f.get(0), f.get(1), message(f, 2));
+				break;
+			default:
+				Log.warn("unknown cluster frame {} from node {}", frame[4], node);
+		}
+	}
+
+	private void linkUp(int node, Peer p)
+	{
+		Peer old = links.getAndSet(node, p);
+		if (old != null) old.close();
+		Log.info("cluster link to node {} is up", node);
+		serv.sendDirectory(node);
+		serv.clusterChanged();
+	}
+
+	private void linkDown(int node, Peer p)
+	{
+		if (!links.compareAndSet(node, p, null)) return; // already replaced by a newer link
+		p.close();
+
+		// its users can't be reached any more, so they are offline until it is back
+		List<String> gone = new ArrayList<>();
+		for (Map.Entry<String, Integer> e : remote.entrySet())
+			if (e.getValue() == node && remote.remove(e.getKey(), node)) gone.add(e.getKey());
+		Log.warn("cluster link to node {} is down. {} of its users are now offline", node, gone.size());
+		serv.clusterChanged();
+	}
+
+	private class Peer
+	{
+		private final Socket sock;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(PEER_QUEUE);
+		private volatile boolean open = true;
+		// members from GROUP_PARTs by group name, version and node, until their GROUP arrives. only the reader uses it
+		private final Map<List<String>, List<String>> groupParts = new HashMap<>();
+
+		Peer(Socket sock) throws IOException
+		{
+			this.sock = sock;
+			sock.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), BUFFER_SIZE));
+			out = new BufferedOutputStream(sock.getOutputStream(), BUFFER_SIZE);
+			out.write(hello());
+			out.flush();
+		}
+
+		List<String> readHello() throws IOException
+		{
+			byte[] frame = WireProtocol.readFrame(in);
+			List<String> f = WireProtocol.decodeFields(frame);
+			if (frame[4] != HELLO || f.size() < 2) throw new IOException("expected a hello");
+			if (Integer.parseInt(f.get(1)) != nodes.length) throw new IOException("the peer has a different --peers list");
+			return f;
+		}
+
+		// reads frames until the link drops
+		void run(int node)
+		{
+			daemon(this::writeLoop, "cluster-writer-" + node).start();
+			linkUp(node, this);
+			try
+			{
+				while (open) dispatch(this, node, WireProtocol.readFrame(in));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				if (open && keepRunning) Log.debug("cluster link to node {}: {}", node, e.toString());
+			}
+			linkDown(node, this);
+		}
+
+		void send(byte[] frame)
+		{
+			if (!open) return;
+			if (!queue.offer(frame))
+			{
+				Log.warn("cluster peer {} stopped reading. closing the link", sock.getRemoteSocketAddress());
+				close();
+			}
+		}
+
+		// writes everything that is queued, then flushes once
+		private void writeLoop()
+		{
+			List<byte[]> batch = new ArrayList<>();
+			try
+			{
+				while (open)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch);
+					long bytes = 0;
+					for (byte[] frame : batch)
+					{
+						out.write(frame);
+						bytes += frame.length;
+					}
+					out.flush();
+					framesOut.add(batch.size());
+					bytesOut.add(bytes);
+					batch.clear();
+				}
+			}
+			catch (IOException | InterruptedException e)
+			{
+				close();
+			}
+		}
+
+		void close()
+		{
+			open = false;
+			closeQuietly(sock); // wakes the reader, which takes the link down
+			queue.offer(new byte[0]); // wakes the writer
+		}
+	}
+}
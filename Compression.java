@@ -0,0 +1,237 @@
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of what the server sends to a WireProtocol client. A client that asks
+ * for protocol version 2 (WireProtocol.DEFLATE_VERSION) can be sent DEFLATED frames, and the
+ * server answers with version 2 when it has compression turned on.
+ *
+ * Each connection has one deflate stream that runs for as long as it is connected. Everything
+ * written between two flushes (a batch of frames) goes out as one DEFLATED frame holding the
+ * frames compressed with a sync flush, so the next batch is compressed against the last 32KB
+ * the client has already seen. The same "[group] sender" prefixes and SERVER notices come up
+ * again and again, so even a single short message shrinks to a few bytes. Batches smaller than
+ * minBytes aren't worth the 5 byte frame header and go out as they are.
+ *
+ * Like WebSocket's permessage-deflate, the 00 00 FF FF every sync flush ends with is left off
+ * and put back by the client.
+ *
+ *   int32 length   number of bytes that follow
+ *   u8    DEFLATED
+ *   bytes          raw deflate data (no zlib header) that inflates to whole frames
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Compression
+{
+	private static final byte[] SYNC_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+	private static final int CHUNK = 64 * 1024; // larger batches are sent as several DEFLATED frames
+	private static final int MAX_INFLATED = 4 * WireProtocol.MAX_FRAME_LENGTH;
+
+	// wraps a client's input so DEFLATED frames read as the frames inside them
+	public static DataInputStream input(DataInputStream in, byte version)
+	{
+		return (version >= WireProtocol.DEFLATE_VERSION) ? new DataInputStream(new Input(in)) : in;
+	}
+
+	/**
+	 * The server's side. write() is always given whole frames, so a batch can be split between
+	 * DEFLATED frames without splitting a frame.
+	 */
+	public static class Output extends FilterOutputStream
+	{
+		private final int level;
+		private final int minBytes;
+		private Deflater deflater; // made by the first batch worth compressing, so idle connections don't hold one
+		private byte[] staged = new byte[1024];
+		private int stagedLen;
+		private byte[] deflated = new byte[1024];
+		private final LongAdder rawBytes;
+		private final LongAdder deflatedBytes;
+		private final LongAdder nanos;
+
+		public Output(OutputStream out, int level, int minBytes, Metrics metrics)
+		{
+			super(out);
+			this.level = level;
+			this.minBytes = minBytes;
+			rawBytes = metrics.counter("compress.raw.bytes");
+			deflatedBytes = metrics.counter("compress.deflated.bytes");
+			nanos = metrics.counter("compress.nanos");
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (stagedLen > 0 && stagedLen + len > CHUNK) send();
+			if (stagedLen + len > staged.length) staged = Arrays.copyOf(staged, Math.max(staged.length * 2, stagedLen + len));
+			System.arraycopy(b, off, staged, stagedLen, len);
+			stagedLen += len;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			send();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				flush();
+			}
+			finally
+			{
+				if (deflater != null) deflater.end();
+				out.close();
+			}
+		}
+
+		private void send() throws IOException
+		{
+			if (stagedLen == 0) return;
+			// a frame near the size limit can't be compressed: deflate could make it a few bytes larger than a frame may be
+			if (stagedLen < minBytes || stagedLen > WireProtocol.MAX_FRAME_LENGTH / 2) out.write(staged, 0, stagedLen);
+			else
+			{
+				long start = System.nanoTime();
+				int length = deflate();
+				nanos.add(System.nanoTime() - start);
+				rawBytes.add(stagedLen);
+				deflatedBytes.add(length);
+				out.write(deflated, 0, length);
+			}
+			stagedLen = 0;
+		}
+
+		// deflates the staged frames into a whole DEFLATED frame in deflated. returns its length
+		private int deflate()
+		{
+			if (deflater == null) deflater = new Deflater(level, true);
+			deflater.setInput(staged, 0, stagedLen);
+			int n = 5;
+			while (true)
+			{
+				int space = deflated.length - n;
+				n += deflater.deflate(deflated, n, space, Deflater.SYNC_FLUSH);
+				if (deflated.length - n > 0) break; // room to spare, so the flush is complete
+				deflated = Arrays.copyOf(deflated, deflated.length * 2);
+			}
+			n -= SYNC_TAIL.length;
+			int length = n - 4;
+			deflated[0] = (byte) (length >>> 24);
+			deflated[1] = (byte) (length >>> 16);
+			deflated[2] = (byte) (length >>> 8);
+			deflated[3] = (byte) length;
+			deflated[4] = WireProtocol.DEFLATED;
+			return n;
+		}
+	}
+
+	// the client's side. reads frames and hands on the bytes of the ones DEFLATED frames hold
+	public static class Input extends InputStream
+	{
+		private final DataInputStream in;
+		private final Inflater inflater = new Inflater(true);
+		private byte[] buf = new byte[0];
+		private int pos;
+		private int limit;
+		private byte[] inflated = new byte[1024];
+
+		public Input(DataInputStream in)
+		{
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			while (pos == limit) fill();
+			return buf[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0) return 0;
+			while (pos == limit) fill();
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			inflater.end();
+			in.close();
+		}
+
+		// blocks for the next frame
+		private void fill() throws IOException
+		{
+			byte[] frame = WireProtocol.readFrame(in);
+			pos = 0;
+			if (frame[4] != WireProtocol.DEFLATED)
+			{
+				buf = frame;
+				limit = frame.length;
+				return;
+			}
+			inflater.setInput(frame, 5, frame.length - 5);
+			int n = inflate(0);
+			inflater.setInput(SYNC_TAIL);
+			n = inflate(n);
+			buf = inflated;
+			limit = n;
+		}
+
+		private int inflate(int n) throws IOException
+		{
+			try
+			{
+				// done once a call leaves room in the output. until then zlib may be holding more
+				while (true)
+				{
+					if (n == inflated.length)
+					{
+						if (n >= MAX_INFLATED) throw new StreamCorruptedException("DEFLATED frame inflates to more than " + MAX_INFLATED + " bytes");
+						inflated = Arrays.copyOf(inflated, n * 2);
+					}
+					int got = inflater.inflate(inflated, n, inflated.length - n);
+					n += got;
+					if (n < inflated.length && (got == 0 || inflater.needsInput())) return n;
+				}
+			}
+			catch (DataFormatException e)
+			{
+				throw new StreamCorruptedException("bad DEFLATED frame: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -1,37 +1,144 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ConnectionHandler class. This is created using a socket connection from
  * a server. This will sit in the run method reading commands and handling
- * them. There is a MessageSender inner class that will get the list of 
- * outstanding messages for this user and send them after a time period.
+ * them. There is a MessageSender inner class that waits until the server
+ * says there are messages for this user and then sends them.
+ *
+ * Clients either speak the binary WireProtocol or send serialized objects. The
+ * first bytes a client sends tell us which, and both are turned into the same
+ * command objects before they are handled.
+ *
+ * When the server runs in NIO mode the handler has no threads of its own. The
+ * NioServer event loop decodes objects and passes them in with receiveObject(),
+ * and is woken up to call deliverMessages() when messages arrive.
+ *
+ * The threads come from the Server, so they can be virtual threads. Writes and the
+ * MessageSender's wait use ReentrantLocks instead of synchronized, which would pin a
+ * virtual thread to its carrier while it blocks on the socket or waits for messages.
  *
  * Authors: Mitchell Kiscadden and Zeru Tadesse
  */
 public class ConnectionHandler implements Runnable
 {
+	private static final int HISTORY_PAGE = 20; // messages per page of history or search results
 	private volatile boolean keepRunning;
 	private volatile int id; // this can change so we'll keep it volatile
 	private String userName;
 	private MessageSender ms;
 	private Thread controlThread;
+	private Socket sock;
 	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private ObjectOutputStream out; // null if the client speaks WireProtocol
+	private DataInputStream binIn;
+	private OutputStream rawOut; // what out wraps. buffered, so nothing reaches the client until it is flushed. compresses if the client asked
+	private ReentrantLock writeLock = new ReentrantLock(); // held for every write to rawOut
+	private NioServer.SharedOutput shared; // rawOut, if it can send frames without copying them
 	private Server serv;
+	private LinkedList<Object> received = new LinkedList<>(); // decoded objects that haven't been handled yet
+	private Runnable wakeup; // schedules deliverMessages() on the NioServer event loop. null in blocking mode
+	private Runnable abort; // closes the NioServer connection without flushing. null in blocking mode
+	private AtomicBoolean dropped = new AtomicBoolean(); // the server disconnected this client with drop()
+	private volatile boolean sending; // the user has connected and can be sent messages
+	private volatile boolean closed; // stop() or drop() has finished with the connection
+	private TokenBucket limiter; // commands per second this connection may send. null if unlimited
+	private LongAdder messagesOut;
+	private Metrics.Histogram writeNanos; // time a flush to the socket takes. the NioServer times its own writes
+	private Metrics.Histogram flushBatch; // messages sent per flush
 	
-	public ConnectionHandler(Socket sock, Server serv, int id) throws IOException
+	// the streams are opened by run() so a slow client can't hold up the server's accept loop
+	public ConnectionHandler(Socket sock, Server serv, int id)
 	{
 		this.serv = serv;
         this.id = id;
-        out = new ObjectOutputStream(sock.getOutputStream());
-        in  = new ObjectInputStream(sock.getInputStream());
+		this.sock = sock;
 		ms = new MessageSender();
+		limiter = newLimiter(serv.getConfig());
+		initMetrics();
     }
+
+	// NIO mode. channelOut writes into the connection's buffer and the event loop feeds us decoded
+	// objects. the NioServer has already worked out the protocol and answered a binary handshake,
+	// which says whether what we send is compressed
+	public ConnectionHandler(OutputStream channelOut, boolean binary, boolean compressed, Runnable wakeup, Runnable abort, Server serv, int id) throws IOException
+	{
+		this.serv = serv;
+		this.id = id;
+		this.wakeup = wakeup;
+		this.abort = abort;
+		rawOut = compressed ? compress(channelOut) : channelOut;
+		if (binary && rawOut instanceof NioServer.SharedOutput) shared = (NioServer.SharedOutput) rawOut;
+		if (!binary) out = new ObjectOutputStream(channelOut);
+		keepRunning = true;
+		limiter = newLimiter(serv.getConfig());
+		initMetrics();
+	}
+
+	private void initMetrics()
+	{
+		messagesOut = serv.getMetrics().counter("messages.out");
+		writeNanos = serv.getMetrics().histogram("write.nanos");
+		flushBatch = serv.getMetrics().histogram("flush.messages");
+	}
+
+	// look at the first bytes the client sends to work out which protocol it speaks
+	private void openStreams() throws IOException
+	{
+		ServerConfig config = serv.getConfig();
+		sock.setTcpNoDelay(config.tcpNoDelay);
+		if (config.socketBufferKB > 0) sock.setSendBufferSize(config.socketBufferKB * 1024);
+		BufferedInputStream bin = new BufferedInputStream(sock.getInputStream());
+		DataInputStream din = new DataInputStream(bin);
+		rawOut = new BufferedOutputStream(new SocketOutput(sock.getOutputStream()), config.writeBufferKB * 1024);
+
+		bin.mark(WireProtocol.HANDSHAKE_LENGTH);
+		byte[] hs = new byte[WireProtocol.HANDSHAKE_LENGTH];
+		din.readFully(hs, 0, WireProtocol.MAGIC.length);
+		if (WireProtocol.isHandshake(hs, 0, WireProtocol.MAGIC.length))
+		{
+			byte version = din.readByte();
+			if (version < 1) throw new IOException("client asked for protocol version " + version);
+			version = WireProtocol.agree(version, config.compressionLevel > 0);
+			rawOut.write(WireProtocol.handshake(version));
+			rawOut.flush();
+			if (version >= WireProtocol.DEFLATE_VERSION) rawOut = compress(rawOut);
+			binIn = din;
+		}
+		else // an old client. put the bytes back for the ObjectInputStream
+		{
+			bin.reset();
+			out = new ObjectOutputStream(rawOut);
+			out.flush(); // the client's ObjectInputStream waits for the stream header
+			in = new ObjectInputStream(bin);
+		}
+	}
+
+	private OutputStream compress(OutputStream out)
+	{
+		ServerConfig config = serv.getConfig();
+		return new Compression.Output(out, config.compressionLevel, config.compressMinBytes, serv.getMetrics());
+	}
+
+	private static TokenBucket newLimiter(ServerConfig config)
+	{
+		if (config.commandRate <= 0) return null;
+		return new TokenBucket(config.commandRate, config.commandBurst);
+	}
     
     public void setID(int id)
     {
@@ -40,13 +147,28 @@ public class ConnectionHandler implements Runnable
 	
 	public void run()
 	{
+		try
+		{
+			openStreams();
+		}
+		catch (IOException e)
+		{
+			keepRunning = false;
+			try
+			{
+				sock.close();
+			}
+			catch (IOException e2)
+			{
+			}
+		}
+
 		while (keepRunning) 
 		{
 			try
 			{
-				// we can wait for a little bit to prevent user spam of server
-				// and also save the unecessary calls to readFromClient every ms
-				Thread.sleep(500);
+				// only clients sending faster than the configured rate ever wait here
+				if (limiter != null) limiter.acquire(1);
 				readFromClient();
 			}
 			catch (InterruptedException e){}
@@ -54,11 +176,81 @@ public class ConnectionHandler implements Runnable
         controlThread = null;
 	}
 	
+	// called by the NioServer event loop for every object it decodes. once a command and all
+	// of its arguments have arrived the command is handled the same way the blocking reader does.
+	// returns 0, or how many nanoseconds the loop should wait before calling handleReceived()
+	public long receiveObject(Object o)
+	{
+		received.add(o);
+		return handleReceived();
+	}
+
+	public long handleReceived()
+	{
+		while (keepRunning && !received.isEmpty())
+		{
+			if (!(received.peek() instanceof String)) 
+			{
+				received.poll(); // not a command. the blocking reader would have dropped it too
+				continue;
+			}
+			if (received.size() - 1 < argCount((String) received.peek())) return 0;
+			if (limiter != null)
+			{
+				long wait = limiter.tryAcquire(1);
+				if (wait > 0) return wait;
+			}
+			readFromClient();
+		}
+		return 0;
+	}
+
+	// the NioServer lost the connection without a disconnect command
+	public void connectionLost()
+	{
+		if (keepRunning) handleDisconnect();
+	}
+
+	public boolean isSending()
+	{
+		return sending;
+	}
+
+	// called by the server whenever a message is added for this user
+	public void messagesWaiting()
+	{
+		if (!sending) return; // handleConnect will send anything that is already waiting
+		if (ms != null) ms.wake();
+		else wakeup.run();
+	}
+
+	// how many objects follow each command
+	private static int argCount(String command)
+	{
+		switch (command.toLowerCase())
+		{
+			case "connect": case "message": case "leavegroup": case "listmembers": case "history": case "search": return 1;
+			case "creategroup": case "poll": case "addtogroup": return 2;
+			default: return 0;
+		}
+	}
+
+	private Object readArg() throws IOException, ClassNotFoundException
+	{
+		// in NIO mode the whole command is already here. in blocking mode read it now
+		if (received.isEmpty())
+		{
+			if (in != null) return in.readObject();
+			received.addAll(WireProtocol.read(binIn));
+		}
+		return received.poll();
+	}
+
 	private void readFromClient()
 	{
 		try
 		{
-			String command = (String) in.readObject();
+			String command = (String) readArg();
 			if      (command.equalsIgnoreCase("connect")) handleConnect();
 			else if (command.equalsIgnoreCase("message")) handleMessage();
 			else if (command.equalsIgnoreCase("disconnect")) handleDisconnect();
@@ -69,13 +261,20 @@ public class ConnectionHandler implements Runnable
 			else if (command.equalsIgnoreCase("mygroups"))
 				serv.addMessage(new Message("SERVER",userName,"Your groups: " + serv.getGroupsForUser(userName).toString()));
 			else if (command.equalsIgnoreCase("listmembers")) handleListMembers();
+			else if (command.equalsIgnoreCase("history")) handleHistory();
+			else if (command.equalsIgnoreCase("search")) handleSearch();
 		} 
 		catch (ClassNotFoundException e)
 		{ 
 		}
 		catch (IOException e)
 		{
-			handleDisconnect();
+			if (!dropped.get()) handleDisconnect();
+		}
+		catch (RuntimeException e) // e.g. a null or wrongly typed argument. it would end the reader and leave them in 'all'
+		{
+			Log.warn("bad command from {}, disconnecting them: {}", (userName != null) ? userName : "connection " + id, e.toString());
+			if (!dropped.get()) handleDisconnect();
 		}
 	}
 	
@@ -83,7 +282,7 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			userName = ((String) in.readObject()).toLowerCase();
+			userName = ((String) readArg()).toLowerCase();
 
 			// need a unique username
 			if (!checkName(userName)) return;
@@ -100,7 +299,10 @@ public class ConnectionHandler implements Runnable
 					"Welcome to TerminalChat! Currently online: " 
 					+ serv.getConnectedUsers().toString()));
 			
-			ms.start(); // we can start the sender after the user is added
+			// we can start the sender after the user is added
+			sending = true;
+			if (ms != null) ms.start();
+			else wakeup.run();
 		}
 		catch (ClassNotFoundException | IOException e)
 		{
@@ -112,9 +314,10 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			Message m = (Message) in.readObject();
-			out.writeObject("message");
-			out.writeObject(m);
+			Message m = (Message) readArg();
+			int action = serv.groupExists(m.receiver) ? FloodControl.GROUP : FloodControl.DIRECT;
+			if (!serv.allow(id, action, m.receiver)) return;
+			send(m);
 			serv.addMessage(m);
 		} 
 		catch (ClassNotFoundException | IOException e)
@@ -132,8 +335,8 @@ public class ConnectionHandler implements Runnable
 			serv.addMessage(new Message("SERVER", "all", 
 					userName + " has left the chat"));
 
-			out.writeObject("disconnect"); // echo disconnect back to the user
-			in.close();
+			sendDisconnect(); // echo disconnect back to the user
+			closeInput();
 			stop();
 		}
 		catch (IOException e)
@@ -145,16 +348,18 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			String groupName = (String) in.readObject();
+			String groupName = (String) readArg();
 
 			// need a unique groupName
 			if (!checkName(groupName)) return;
 
+			String names = (String) readArg();
+			if (!serv.allow(id, FloodControl.CHANGE_GROUP, groupName)) return;
 			List<String> members = new LinkedList<>();
 
 			// add members to the group. make sure the creator is the first person listed
 			members.add(userName);
-			for (String m : ((String) in.readObject()).trim().split(" ")) 
+			for (String m : names.trim().split(" ")) 
 				if (!m.equals(userName)) members.add(m);
 			serv.addGroup(groupName, members);
 		}
@@ -167,26 +372,35 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			String groupName = (String) in.readObject();
+			String groupName = (String) readArg();
 
 			// make sure the group exists
-			if (!serv.getGroupNames().contains(groupName))
+			if (!serv.groupExists(groupName))
 			{
 				serv.addMessage(new Message("SERVER", userName, "There is no group with the name '" + groupName + "'"));
 				return;
 			}
 
-			String msg = ((String) in.readObject()).toLowerCase().trim();
+			String msg = ((String) readArg()).toLowerCase().trim();
+			String[] words = msg.split("\\s+");
 			boolean isValid;
-			if (msg.equals("yes") || msg.equals("no")) // this must be a poll vote
+			if ((words[0].equals("yes") || words[0].equals("no")) && (words.length == 1 || (words.length == 2 && words[1].matches("#?\\d{1,9}")))) // this must be a poll vote
 			{
-				isValid = serv.voteOnPoll(groupName, msg.equals("yes"), id);
+				int pollID = (words.length == 2) ? Integer.parseInt(words[1].replace("#", "")) : 0; // 0 is the newest poll
+				isValid = serv.voteOnPoll(groupName, words[0].equals("yes"), pollID, id);
 				if (!isValid) 
 					serv.addMessage(new Message("SERVER", userName, "Unable to vote on a poll for the " + groupName + " group."));
 			} 
-			else // it is a poll question
+			else // it is a poll question, which may start with how long to leave it open, e.g. "90s lunch?"
 			{
-				isValid = serv.createPoll(groupName, msg, id);
+				int seconds = 0;
+				if (words.length > 1 && words[0].matches("\\d{1,6}s"))
+				{
+					seconds = Integer.parseInt(words[0].substring(0, words[0].length() - 1));
+					msg = msg.substring(words[0].length()).trim();
+				}
+				if (!serv.allow(id, FloodControl.POLL, groupName)) return;
+				isValid = serv.createPoll(groupName, msg, seconds, id);
 				if (!isValid) 
 					serv.addMessage(new Message("SERVER", userName, "Unable to create a poll for the " + groupName + " group."));
 			}			
@@ -200,17 +414,17 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			String groupName = (String) in.readObject();
+			String groupName = (String) readArg();
 
 			// make sure the group exists
-			if (!serv.getGroupNames().contains(groupName))
+			if (!serv.groupExists(groupName))
 			{
 				serv.addMessage(new Message("SERVER", userName, "There is no group with the name '" + groupName + "'"));
 				return;
 			}
 
 			// make sure the user is in the group
-			if (!serv.getGroup(groupName).contains(userName))
+			if (!serv.isMember(groupName, userName))
 			{
 				serv.addMessage(new Message("SERVER", userName, "You are not permitted to see the members of the '" + groupName + "' group"));
 				return;
@@ -223,20 +437,102 @@ public class ConnectionHandler implements Runnable
 		}
 	}
 
+	// "[group] [n] [#cursor]". without a group it is their direct messages
+	private void handleHistory()
+	{
+		try
+		{
+			String groupName = null;
+			int n = HISTORY_PAGE;
+			long before = 0;
+			for (String word : ((String) readArg()).trim().split("\\s+"))
+			{
+				if (word.isEmpty()) continue;
+				if (word.startsWith("#")) before = parseCursor(word);
+				else if (word.chars().allMatch(Character::isDigit)) n = Integer.parseInt(word);
+				else groupName = word;
+			}
+
+			if (groupName != null && !serv.groupExists(groupName))
+			{
+				serv.addMessage(new Message("SERVER", userName, "There is no group with the name '" + groupName + "'"));
+				return;
+			}
+			if (groupName != null && !serv.isMember(groupName, userName))
+			{
+				serv.addMessage(new Message("SERVER", userName, "You are not permitted to see the history of the '" + groupName + "' group"));
+				return;
+			}
+
+			History.Page page = serv.getHistory(userName, groupName, n, before);
+			String title = (groupName == null) ? "Your direct messages" : "History of " + groupName;
+			String more = "history " + ((groupName == null) ? "" : groupName + " ") + n;
+			serv.addMessage(new Message("SERVER", userName, formatPage(title, page, more)));
+		}
+		catch (ClassNotFoundException | IOException | NumberFormatException e)
+		{
+		}
+	}
+
+	// "words... [#cursor]". finds messages they can see that have every word
+	private void handleSearch()
+	{
+		try
+		{
+			StringBuilder query = new StringBuilder();
+			long before = 0;
+			for (String word : ((String) readArg()).trim().split("\\s+"))
+			{
+				if (word.startsWith("#") && word.length() > 1) before = parseCursor(word);
+				else query.append(word).append(' ');
+			}
+			String q = query.toString().trim();
+			if (q.isEmpty())
+			{
+				serv.addMessage(new Message("SERVER", userName, "Search for what? e.g. 'search lunch friday'"));
+				return;
+			}
+
+			History.Page page = serv.search(userName, q, HISTORY_PAGE, before);
+			serv.addMessage(new Message("SERVER", userName, formatPage("Messages with '" + q + "'", page, "search " + q)));
+		}
+		catch (ClassNotFoundException | IOException | NumberFormatException e)
+		{
+		}
+	}
+
+	private static long parseCursor(String word)
+	{
+		return Long.parseLong(word.substring(1));
+	}
+
+	// one line per message, oldest first, then the command that gets the page before it
+	private static String formatPage(String title, History.Page page, String more)
+	{
+		if (page == null) return "History is turned off on this server";
+		if (page.entries.isEmpty()) return title + ": nothing found";
+		StringBuilder sb = new StringBuilder(title).append(':');
+		for (History.Entry e : page.entries) sb.append('\n').append(e.format());
+		if (page.before > 0) sb.append("\nMore: ").append(more).append(" #").append(page.before);
+		return sb.toString();
+	}
+
 	private void handleAddToGroup()
 	{
 		try
 		{
-			String groupName = (String) in.readObject();
+			String groupName = (String) readArg();
 
 			// make sure the gorup exists
-			if (!serv.getGroupNames().contains(groupName))
+			if (!serv.groupExists(groupName))
 			{
 				serv.addMessage(new Message("SERVER", userName, "There is no group with the name '" + groupName + "'"));
 				return;
 			}
 
-			String newMemberName = (String) in.readObject();
+			String newMemberName = (String) readArg();
+			if (!serv.isMember(groupName, userName)) return; // only members can add people. checked before it costs them anything
+			if (!serv.allow(id, FloodControl.CHANGE_GROUP, groupName)) return;
 
 			serv.addUserToGroup(id, userName, groupName, newMemberName);
 		}
@@ -249,10 +545,10 @@ public class ConnectionHandler implements Runnable
 	{
 		try
 		{
-			String groupName = (String) in.readObject();
+			String groupName = (String) readArg();
 
 			// make sure the gorup exists
-			if (!serv.getGroupNames().contains(groupName))
+			if (!serv.groupExists(groupName))
 			{
 				serv.addMessage(new Message("SERVER", userName, "There is no group with the name '" + groupName + "'"));
 				return;
@@ -267,17 +563,15 @@ public class ConnectionHandler implements Runnable
 
 	private boolean checkName(String name) throws IOException
 	{
-		if (serv.getConnectedUsers().contains(name) || serv.getGroupNames().contains(name) || name.equals("server")) 
+		if (serv.isConnected(name) || serv.groupExists(name) || name.equals("server")) 
 		{
-			out.writeObject("message");
-			out.writeObject(new Message("SERVER", userName,
+			send(new Message("SERVER", userName,
 				"The name '" + name +"' is unavailable. Please try again.\n"));
 			return false;
 		}
 		else if (name.charAt(0) == '$')
 		{
-			out.writeObject("message");
-			out.writeObject(new Message("SERVER", userName,
+			send(new Message("SERVER", userName,
 				"Usernames are not allowed to begin with the '$' character.\n"));
 			return false;
 		}
@@ -289,7 +583,7 @@ public class ConnectionHandler implements Runnable
 		if (controlThread == null)
 		{
 			keepRunning = true;
-			controlThread = new Thread(this);
+			controlThread = serv.newThread(this);
 			controlThread.start();
 		}
 	}
@@ -297,23 +591,179 @@ public class ConnectionHandler implements Runnable
 	public void stop()
 	{
 		keepRunning = false;
-		ms.stopSending();
+		sending = false;
+		if (ms != null) ms.stopSending();
+		if (rawOut == null) // never got as far as opening the streams
+		{
+			closed = true;
+			return;
+		}
 		try
 		{
-			out.writeObject("message");
-			out.writeObject(new Message("SERVER", userName, "The server is shutting down. Have a nice day!"));
-			out.writeObject("disconnect");
-			out.flush();
-			in.close();
-			out.close();
+			writeLock.lock();
+			try
+			{
+				send(new Message("SERVER", userName, "The server is shutting down. Have a nice day!"));
+				sendDisconnect();
+				closeInput();
+				if (out != null) out.close();
+				else rawOut.close();
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
 		} catch (IOException e) {
 		}
+		closed = true;
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	// the server is getting rid of a client that stopped reading. unlike stop() nothing more is
+	// written to it. the socket is closed straight away, which also frees a sender stuck in a write
+	public void drop()
+	{
+		if (!dropped.compareAndSet(false, true)) return;
+		keepRunning = false;
+		sending = false;
+		serv.removeUser(id);
+		serv.addMessage(new Message("SERVER", "all", userName + " has left the chat"));
+		if (ms != null) ms.stopSending();
+		try
+		{
+			if (sock != null) sock.close();
+			else abort.run();
+		}
+		catch (IOException e)
+		{
+		}
+		closed = true;
+	}
+
+	// sends every outstanding message for this user in one batch: the messages are written into the
+	// buffer and it is flushed once, so a burst costs a few large socket writes rather than one or
+	// two per message. returns false once the server has asked us to shut down
+	public boolean deliverMessages() throws IOException
+	{
+		boolean shutdown = false;
+		int batch = 0;
+		List<Message> msgs = serv.getMessagesForUser(id);
+		writeLock.lock();
+		try
+		{
+			for (Message m : msgs)
+			{
+				// check for the official server shutdown message
+				if (m.sender.equals("[all] SERVER") && m.content.equals("SHUTDOWN"))
+				{
+					shutdown = true;
+					continue; // continue so we don't send this internal server message to client
+				}
+				write(m);
+				batch++;
+			}
+			if (batch > 0) flush(batch);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		return !shutdown;
+	}
+
+	// the reader and the MessageSender both write to the client, so every write has to hold writeLock
+	private void send(Message m) throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			write(m);
+			flush(1);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// only called with writeLock held
+	private void write(Message m) throws IOException
+	{
+		if (out == null)
+		{
+			// the frame is shared with everyone else the message goes to
+			byte[] frame = WireProtocol.frame(m);
+			if (shared != null) shared.writeShared(frame);
+			else rawOut.write(frame);
+		}
+		else
+		{
+			out.writeObject("message");
+			out.writeObject(m);
+		}
+		messagesOut.increment();
+	}
+
+	private void flush(int messages) throws IOException
+	{
+		long start = System.nanoTime();
+		(out != null ? out : rawOut).flush();
+		// in NIO mode flushing only hands the bytes to the event loop
+		if (abort == null) writeNanos.record(System.nanoTime() - start);
+		flushBatch.record(messages);
+	}
+
+	private void sendDisconnect() throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			if (out == null) rawOut.write(WireProtocol.encode("disconnect"));
+			else out.writeObject("disconnect");
+			(out != null ? out : rawOut).flush();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private void closeInput() throws IOException
+	{
+		if (in != null) in.close();
+		if (binIn != null) binIn.close();
+	}
+
+	// the socket under the write buffer. counts the writes that actually reach it
+	private class SocketOutput extends FilterOutputStream
+	{
+		private LongAdder writes = serv.getMetrics().counter("socket.writes");
+		private LongAdder bytes = serv.getMetrics().counter("socket.bytes");
+
+		SocketOutput(OutputStream out)
+		{
+			super(out);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			writes.increment();
+			bytes.add(len);
+		}
 	}
 
 	private class MessageSender implements Runnable
 	{
 		private Thread msgThread;
 		private volatile boolean keepRunning;
+		private boolean pending = true; // there may be messages waiting. guarded by lock
+		private ReentrantLock lock = new ReentrantLock();
+		private Condition woken = lock.newCondition();
 		
 		public void run()
 		{
@@ -321,21 +771,18 @@ public class ConnectionHandler implements Runnable
 			{
 				while (keepRunning)
 				{
-                    Thread.sleep(500); // wait so that we don't spam access to messages map
-                    List<Message> msgs = serv.getMessagesForUser(id);
-					if (msgs.isEmpty()) continue;
-
-					for (Message m : msgs)
+					// sleep until the server adds a message for us
+					lock.lock();
+					try
+					{
+						while (!pending) woken.await();
+						pending = false;
+					}
+					finally
 					{
-						// check for the official server shutdown message
-						if (m.sender.equals("[all] SERVER") && m.content.equals("SHUTDOWN"))
-						{
-							keepRunning = false;
-							continue; // continue so we don't send this internal server message to client
-						}
-						out.writeObject("message");
-						out.writeObject(m);
+						lock.unlock();
 					}
+					if (!deliverMessages()) keepRunning = false;
 				}
 				stop();
 				msgThread = null;
@@ -350,11 +797,25 @@ public class ConnectionHandler implements Runnable
 			if (msgThread == null)
 			{
 				keepRunning = true;
-				msgThread = new Thread(this);
+				msgThread = serv.newThread(this);
 				msgThread.start();
 			}
 		}
 		
+		public void wake()
+		{
+			lock.lock();
+			try
+			{
+				pending = true;
+				woken.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		
 		public void stopSending()
 		{
 			keepRunning = false;
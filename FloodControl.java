@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flood control for what users ask the server to do. Every user has a TokenBucket, kept by id
+ * so reconnecting doesn't refill it, and each action takes its cost from it (--flood-costs), so
+ * a group or a poll costs more than a direct message. A message to a group, or a poll, also
+ * takes one token per member from the group's own bucket (--group-rate), so however many people
+ * post to 'all' the work of delivering its messages stays bounded. Only a member's message or
+ * poll is charged to the group, since only theirs is delivered, so outsiders can't use it up.
+ *
+ * Taking tokens is a compareAndSet and finding a user's bucket is an array read, so checking
+ * never locks once the user has a bucket. A user who is over a limit is told so by SERVER, at
+ * most once a second, and what they asked for isn't done. Their connection isn't slowed down.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class FloodControl
+{
+	public static final int DIRECT = 0; // a direct message
+	public static final int GROUP = 1; // a message to a group
+	public static final int CHANGE_GROUP = 2; // creating a group or adding someone to one
+	public static final int POLL = 3; // asking a poll
+	private static final long NOTICE_EVERY = 1_000_000_000L;
+
+	private static final class Quota
+	{
+		final TokenBucket bucket; // null if users aren't limited, only groups
+		volatile long quietUntil = Long.MIN_VALUE / 2; // no notice before this (System.nanoTime)
+
+		Quota(TokenBucket bucket)
+		{
+			this.bucket = bucket;
+		}
+	}
+
+	private final Server serv;
+	private final ServerConfig config;
+	private final IdMap<Quota> quotas = new IdMap<>();
+	private final LongAdder limited;
+
+	public FloodControl(Server serv)
+	{
+		this.serv = serv;
+		this.config = serv.getConfig();
+		limited = serv.getMetrics().counter("flood.limited");
+	}
+
+	// a new group's bucket, which holds a second's worth. null if groups aren't limited
+	public static TokenBucket groupBucket(ServerConfig config)
+	{
+		if (config.groupRate <= 0) return null;
+		return new TokenBucket(config.groupRate, config.groupRate);
+	}
+
+	/**
+	 * Takes the cost of the action from the user's bucket, and for a group message or a poll
+	 * one token per member from the group's. Returns false, and tells the user, if either is
+	 * short, in which case neither keeps what was taken. target is the group or user it is
+	 * aimed at, and g the group, or null if it isn't one the user is in.
+	 */
+	public boolean allow(int userID, String userName, int action, String target, Group g)
+	{
+		Quota q = quota(userID);
+		long wait = (q.bucket == null) ? 0 : q.bucket.tryAcquire(config.floodCosts[action]);
+		String why = null;
+		if (wait > 0) why = "You are sending too fast, so your " + describe(action, target) + " was not sent.";
+		else if (g != null && g.getFlood() != null && (action == GROUP || action == POLL))
+		{
+			wait = g.getFlood().tryAcquire(Math.max(1, g.getMembers().size()));
+			if (wait > 0)
+			{
+				// nothing was sent, so it shouldn't count against them
+				if (q.bucket != null) q.bucket.release(config.floodCosts[action]);
+				why = "The " + target + " group is too busy, so your " + describe(action, target) + " was not sent.";
+			}
+		}
+		if (why == null) return true;
+
+		limited.increment();
+		long now = System.nanoTime();
+		if (userName != null && now - q.quietUntil >= 0)
+		{
+			q.quietUntil = now + NOTICE_EVERY;
+			long seconds = Math.max(1, (wait + 999_999_999L) / 1_000_000_000L);
+			serv.addMessage(new Message("SERVER", userName, why + " Try again in " + seconds + (seconds == 1 ? " second." : " seconds.")));
+		}
+		return false;
+	}
+
+	private Quota quota(int userID)
+	{
+		Quota q = quotas.get(userID);
+		if (q != null) return q;
+		TokenBucket bucket = (config.floodRate > 0) ? new TokenBucket(config.floodRate, config.floodBurst) : null;
+		Quota made = new Quota(bucket);
+		q = quotas.putIfAbsent(userID, made);
+		return (q != null) ? q : made;
+	}
+
+	private static String describe(int action, String target)
+	{
+		switch (action)
+		{
+			case DIRECT: case GROUP: return "message to " + target;
+			case CHANGE_GROUP: return "change to the " + target + " group";
+			default: return "poll in " + target;
+		}
+	}
+}
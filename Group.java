@@ -1,113 +1,167 @@
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Group
 {
+    public static final int MAX_POLLS = 64; // open polls a group can have at once
     private String name;
-    private final int POLL_TIMER_SECONDS = 30;
-    private Map<Integer, String> members;
-    private Set<Integer> voters;
-    private volatile String pollQuestion;
-    private int yesVotes;
-    private int noVotes;
-    private PollTimer pt;
+    private IdSet members = new IdSet(); // ids of the members. their names are in the server's UserNames
+    private ConcurrentSkipListMap<Integer, Poll> polls; // open polls by id
+    private AtomicInteger pollIDs = new AtomicInteger();
+    private AtomicInteger openPolls = new AtomicInteger(); // taken before a poll is added, so concurrent polls can't pass MAX_POLLS
     private Server serv;
+    private GroupLog log = new GroupLog(); // messages sent to the group
+    private long version; // of the membership, in a cluster. guarded by this
+    private int versionNode; // the node that made that change
+    private final TokenBucket flood; // a token per member for each message and poll, see FloodControl. null if unlimited
 
-    public Group(String name, Map<Integer, String> members, Server serv)
+    public Group(String name, Server serv)
     {
         this.name = name;
-        this.members = members;
-        this.pollQuestion = "";
         this.serv = serv;
-        voters = Collections.synchronizedSet(new HashSet<>());
+        polls = new ConcurrentSkipListMap<>();
+        flood = FloodControl.groupBucket(serv.getConfig());
     }
 
-    public void addPoll(String question)
+    public TokenBucket getFlood()
     {
-        pollQuestion = question;
-        serv.addMessage(new Message("SERVER", name, POLL_TIMER_SECONDS + " second poll created: " + pollQuestion));
-        pt = new PollTimer();
-        pt.start();
+        return flood;
     }
 
-    public String getPollQuestion()
+    // the poll closes after seconds, or sooner once every member has voted. returns null if the group has too many open
+    public Poll addPoll(String question, int seconds)
     {
-        return pollQuestion;
+        if (openPolls.incrementAndGet() > MAX_POLLS)
+        {
+            openPolls.decrementAndGet();
+            return null;
+        }
+        Poll p = new Poll(pollIDs.incrementAndGet(), question, seconds);
+        polls.put(p.getID(), p);
+        serv.getMetrics().counter("polls.active").increment();
+        serv.addMessage(new Message("SERVER", name, seconds + " second poll #" + p.getID() + " created: " + question));
+
+        // every poll in every group shares the server's timer thread
+        p.setDeadline(serv.schedule(() -> finishPoll(p), seconds));
+        return p;
+    }
+
+    public Collection<Poll> getPolls()
+    {
+        return polls.values();
     }
 
-    public boolean voteOnPoll(boolean yes, int id)
+    // the id of the newest poll, open or not
+    public int getLastPollID()
     {
-        if (voters.contains(id)) return false;
+        return pollIDs.get();
+    }
 
-        if (yes) yesVotes++;
-        else noVotes++;
+    // puts back the polls from a Snapshot. ones whose time ran out while the server was down finish right away
+    public void restorePolls(int lastPollID, List<Poll> restored)
+    {
+        pollIDs.accumulateAndGet(lastPollID, Math::max);
+        for (Poll p : restored)
+        {
+            openPolls.incrementAndGet();
+            polls.put(p.getID(), p);
+            serv.getMetrics().counter("polls.active").increment();
+            long left = p.getEndsAt() - System.currentTimeMillis();
+            p.setDeadline(serv.schedule(() -> finishPoll(p), (int) Math.max(0, (left + 999) / 1000)));
+        }
+    }
 
-        voters.add(id);
-        if (yesVotes + noVotes == members.size()) pt.stop();
-        
+    // pollID 0 votes on the newest open poll. returns false if there is no such poll or they already voted
+    public boolean voteOnPoll(boolean yes, int id, int pollID)
+    {
+        Poll p;
+        if (pollID != 0) p = polls.get(pollID);
+        else
+        {
+            Map.Entry<Integer, Poll> newest = polls.lastEntry();
+            p = (newest == null) ? null : newest.getValue();
+        }
+        if (p == null || !p.vote(yes, id)) return false;
+
+        if (p.getVoteCount() >= members.size()) finishPoll(p);
         return true;
     }
 
+    private void finishPoll(Poll p)
+    {
+        if (!p.close()) return; // the last vote and the timer can both get here
+        polls.remove(p.getID());
+        openPolls.decrementAndGet();
+        serv.getMetrics().counter("polls.active").decrement();
+
+        int yesVotes = p.getYesVotes();
+        int noVotes = p.getNoVotes();
+        String highlight = "\u001B[43m\u001B[30m ";
+        serv.finishPoll(name, "The poll #" + p.getID() + " '" + p.getQuestion() + "' ended. Result: Yes [" + (yesVotes >= noVotes ? highlight : "") +yesVotes + " \u001B[0m] | No [" + (yesVotes <= noVotes ? highlight : "") + noVotes + " \u001B[0m].");
+    }
+
     public String getName()
     {
         return name;
     }
 
-    public int getYesVotes()
+    public boolean isMember(int id)
     {
-        return yesVotes;
+        return members.contains(id);
     }
 
-    public int getNoVotes()
+    // the members as they are now. later changes don't show up in it
+    public IdSet.View getMembers()
     {
-        return noVotes;
+        return members.view();
     }
 
-    public Map<Integer, String> getMembers()
+    public GroupLog getLog()
     {
-        return members;
+        return log;
     }
 
-    public void addMember(String name, int id)
+    // a change made on this node. returns its version
+    public synchronized long nextVersion(int node)
     {
-        members.putIfAbsent(id, name);
+        versionNode = node;
+        return ++version;
     }
 
-    public void removeMember(int id)
+    // a change from another node wins if it is newer, with the node index breaking ties. returns false if it lost
+    public synchronized boolean newerVersion(long v, int node)
     {
-        members.remove(id);
+        if (v < version || (v == version && node <= versionNode)) return false;
+        version = v;
+        versionNode = node;
+        return true;
     }
 
-    private class PollTimer implements Runnable
+    public synchronized long getVersion()
     {
-        private Thread t;
+        return version;
+    }
 
-        public void start()
-        {
-            t = new Thread(this);
-            t.start();
-        }
+    public synchronized int getVersionNode()
+    {
+        return versionNode;
+    }
 
-        public void stop()
-        {
-            t.interrupt();
-        }
+    public void addMember(int id)
+    {
+        members.add(id);
+    }
 
-        public void run()
-        {
-            try
-            {
-                Thread.sleep(POLL_TIMER_SECONDS*1000);
-            } 
-            catch (InterruptedException e) {}
-            String highlight = "\u001B[43m\u001B[30m ";
-            serv.finishPoll(name, "The poll '" + pollQuestion + "' ended. Result: Yes [" + (yesVotes >= noVotes ? highlight : "") +yesVotes + " \u001B[0m] | No [" + (yesVotes <= noVotes ? highlight : "") + noVotes + " \u001B[0m].");
-            pollQuestion = "";
-            yesVotes = 0;
-            noVotes = 0;
-            voters.clear();
-        }
+    public void addMembers(int[] ids)
+    {
+        members.addAll(ids);
+    }
+
+    public void removeMember(int id)
+    {
+        members.remove(id);
     }
 }
@@ -0,0 +1,212 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append only log of the messages sent to one group. A group message is stored here once
+ * instead of being copied into every member's Mailbox. Each member has a Cursor with the
+ * position of the next entry they haven't read, and reads from the shared log when their
+ * messages are delivered.
+ *
+ * Entries are kept in fixed size chunks. Once every member has read past a chunk it is
+ * dropped, so the log only holds messages that somebody still has to receive. The log also
+ * keeps a running total of the bytes appended, so a member's unread bytes can be worked
+ * out without walking the entries.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class GroupLog
+{
+	private static final int CHUNK_SIZE = 256;
+
+	public static class Entry
+	{
+		final long seq; // orders this entry against the member's other messages
+		final int senderID; // members don't receive their own messages
+		final Message msg;
+		final long offset; // bytes appended to the log before this entry
+		final int[] skip; // members who don't get this entry, e.g. because their mailbox was full. usually null
+
+		Entry(long seq, int senderID, Message msg, long offset, int[] skip)
+		{
+			this.seq = seq;
+			this.senderID = senderID;
+			this.msg = msg;
+			this.offset = offset;
+			this.skip = skip;
+		}
+
+		boolean isFor(int userID)
+		{
+			if (userID == senderID) return false;
+			if (skip != null) for (int id : skip) if (id == userID) return false;
+			return true;
+		}
+	}
+
+	// where one member is up to. only that member's delivery moves it, apart from append() skipping
+	// a caught up sender past their own message
+	public static class Cursor
+	{
+		final GroupLog log;
+		final int userID;
+		volatile long next;
+		volatile long skipped; // entries past next that skip this member, and their bytes, so unread() can leave them out
+		volatile long skippedBytes;
+
+		Cursor(GroupLog log, int userID, long next)
+		{
+			this.log = log;
+			this.userID = userID;
+			this.next = next;
+		}
+	}
+
+	// the chunks and the position of the first entry in them. replaced, never changed, so readers
+	// always see a matching pair
+	private static class Chunks
+	{
+		final Entry[][] chunks;
+		final long base;
+
+		Chunks(Entry[][] chunks, long base)
+		{
+			this.chunks = chunks;
+			this.base = base;
+		}
+	}
+
+	private volatile Chunks chunks = new Chunks(new Entry[0][], 0);
+	private volatile long end; // entries before end can be read
+	private volatile long bytes; // Mailbox.bytes() of every entry ever appended
+	private IntMap<Cursor> cursors = new IntMap<>(); // by member id. guarded by this
+
+	public long append(long seq, int senderID, Message m)
+	{
+		return append(seq, senderID, m, null);
+	}
+
+	// writers take the lock, readers never do. skip lists members who shouldn't get the message.
+	// returns the entry's position in the log
+	public synchronized long append(long seq, int senderID, Message m, int[] skip)
+	{
+		Chunks c = chunks;
+		int offset = (int) ((end - c.base) % CHUNK_SIZE);
+		if (offset == 0) // the last chunk is full
+		{
+			c = trim(c);
+			Entry[][] grown = Arrays.copyOf(c.chunks, c.chunks.length + 1);
+			grown[grown.length - 1] = new Entry[CHUNK_SIZE];
+			c = new Chunks(grown, c.base);
+			chunks = c;
+		}
+		int size = Mailbox.bytes(m);
+		c.chunks[c.chunks.length - 1][offset] = new Entry(seq, senderID, m, bytes, skip);
+		bytes += size;
+		end++; // publishes the entry
+		if (skip != null)
+		{
+			for (int id : skip)
+			{
+				Cursor skipping = cursors.get(id);
+				if (skipping == null) continue;
+				skipping.skipped++;
+				skipping.skippedBytes += size;
+			}
+		}
+
+		// a sender who had read everything has read their own message too. otherwise it would count
+		// as unread until they next get a message, and a busy sender's mailbox could look full
+		Cursor own = cursors.get(senderID);
+		if (own != null && own.next == end - 1) own.next = end;
+		return end - 1;
+	}
+
+	// adds every entry the cursor hasn't read yet to into, except the reader's own messages
+	public void read(Cursor cursor, List<Entry> into)
+	{
+		long last = end;
+		Chunks c = chunks;
+		// a member who joined while a chunk was being dropped may start before the first entry we still have
+		for (long pos = Math.max(cursor.next, c.base); pos < last; pos++)
+		{
+			long index = pos - c.base;
+			Entry e = c.chunks[(int) (index / CHUNK_SIZE)][(int) (index % CHUNK_SIZE)];
+			if (e.isFor(cursor.userID)) into.add(e);
+		}
+		cursor.next = last;
+		cursor.skipped = 0; // may forget entries skipped after last, which then count as unread until the next read
+		cursor.skippedBytes = 0;
+	}
+
+	// entries the cursor hasn't read, counting the reader's own messages it will skip
+	public long unread(Cursor cursor)
+	{
+		return Math.max(0, end - Math.max(cursor.next, chunks.base) - cursor.skipped);
+	}
+
+	// bytes of the entries the cursor hasn't read, counted the same way as unread()
+	public long unreadBytes(Cursor cursor)
+	{
+		long total = bytes;
+		Entry e = peek(cursor);
+		return (e == null) ? 0 : Math.max(0, total - e.offset - cursor.skippedBytes);
+	}
+
+	// the oldest entry the cursor hasn't read, or null if it is up to date. like read(), only the
+	// cursor's owner may call this and skip()
+	public Entry peek(Cursor cursor)
+	{
+		long last = end; // before chunks, so the chunks hold every entry before last
+		Chunks c = chunks;
+		long pos = Math.max(cursor.next, c.base);
+		if (pos >= last) return null;
+		long index = pos - c.base;
+		return c.chunks[(int) (index / CHUNK_SIZE)][(int) (index % CHUNK_SIZE)];
+	}
+
+	// moves the cursor past the entry peek() returned without reading it
+	public void skip(Cursor cursor)
+	{
+		Entry e = peek(cursor);
+		if (e == null) return;
+		if (e.senderID != cursor.userID && !e.isFor(cursor.userID))
+		{
+			cursor.skipped = Math.max(0, cursor.skipped - 1);
+			cursor.skippedBytes = Math.max(0, cursor.skippedBytes - Mailbox.bytes(e.msg));
+		}
+		cursor.next = Math.max(cursor.next, chunks.base) + 1;
+	}
+
+	// new members only see messages sent after they joined
+	public synchronized Cursor subscribe(int userID)
+	{
+		Cursor c = cursors.get(userID);
+		if (c == null) cursors.put(userID, c = new Cursor(this, userID, end));
+		return c;
+	}
+
+	public synchronized void unsubscribe(int userID)
+	{
+		cursors.remove(userID);
+	}
+
+	// position of the oldest entry still held, so tests can see what trim() dropped
+	long first()
+	{
+		return chunks.base;
+	}
+
+	// drop the chunks every member has read past
+	private Chunks trim(Chunks c)
+	{
+		long min = end;
+		for (int i = 0; i < cursors.slots(); i++)
+		{
+			Cursor cursor = cursors.valueAt(i);
+			if (cursor != null) min = Math.min(min, cursor.next);
+		}
+		int done = (int) ((min - c.base) / CHUNK_SIZE);
+		if (done == 0) return c;
+		return new Chunks(Arrays.copyOfRange(c.chunks, done, c.chunks.length), c.base + (long) done * CHUNK_SIZE);
+	}
+}
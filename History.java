@@ -0,0 +1,366 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Message history with a search index. The last capacity messages are kept in a ring, each
+ * with an id that counts up. Every conversation has the ids of its messages in order: a group's
+ * messages are under "#group", and a direct message is under "@sender" and "@recipient". An
+ * inverted index maps each word of the content, and the sender's name, to the ids it is in.
+ *
+ * record() is all the send path does: it puts the message on a queue and returns. One indexer
+ * thread takes messages off the queue, gives them ids and adds them to the lists, so a busy
+ * index never slows delivery down. Queries take a read lock and the indexer a write lock for
+ * each batch.
+ *
+ * Results come back a page at a time, newest first. The id of the oldest message on a page is
+ * the cursor for the next one, which starts just before it. Ids of messages that have fallen
+ * out of the ring are dropped from the front of the lists as they are found.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class History
+{
+	public static final int MAX_PAGE = 100;
+	private static final int MAX_SCAN = 10000; // ids a search looks at before handing back a cursor
+	private static final int BATCH = 1024; // messages indexed under one hold of the write lock
+	private static final int MAX_TERM = 32;
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("MMM d HH:mm").withZone(ZoneId.systemDefault());
+
+	public static class Entry
+	{
+		long id;
+		public final long millis = System.currentTimeMillis();
+		public final String group; // null for a direct message
+		public final String sender;
+		public final String receiver;
+		public final String content;
+
+		Entry(String group, String sender, String receiver, String content)
+		{
+			this.group = group;
+			this.sender = sender;
+			this.receiver = receiver;
+			this.content = content;
+		}
+
+		public long getID()
+		{
+			return id;
+		}
+
+		// one line for a page of results
+		public String format()
+		{
+			StringBuilder sb = new StringBuilder("#").append(id).append(' ').append(TIME.format(Instant.ofEpochMilli(millis))).append(' ');
+			if (group != null) sb.append('[').append(group).append("] ").append(sender);
+			else sb.append(sender).append("->").append(receiver);
+			return sb.append(": ").append(content).toString();
+		}
+	}
+
+	// ids in the order they were given out. the front is trimmed as they fall out of the ring
+	private static class IdList
+	{
+		long[] ids = new long[4];
+		int start;
+		int end;
+
+		void add(long id)
+		{
+			if (end == ids.length)
+			{
+				if (start > ids.length / 2) // reuse the trimmed front before growing
+				{
+					System.arraycopy(ids, start, ids, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+				else ids = Arrays.copyOf(ids, ids.length * 2);
+			}
+			ids[end++] = id;
+		}
+
+		void trim(long oldest)
+		{
+			while (start < end && ids[start] < oldest) start++;
+		}
+
+		boolean isEmpty()
+		{
+			return start == end;
+		}
+
+		// index of the first id that is >= id
+		int search(long id)
+		{
+			int i = Arrays.binarySearch(ids, start, end, id);
+			return (i < 0) ? -i - 1 : i;
+		}
+
+		boolean contains(long id)
+		{
+			return Arrays.binarySearch(ids, start, end, id) >= 0;
+		}
+	}
+
+	// a page of results and where the next page starts. before is 0 when there are no more
+	public static class Page
+	{
+		public final List<Entry> entries; // oldest first
+		public final long before;
+
+		Page(List<Entry> entries, long before)
+		{
+			this.entries = entries;
+			this.before = before;
+		}
+	}
+
+	private final int capacity;
+	private final Entry[] ring; // the entry with id n is at n % capacity
+	private long next = 1; // id the next message gets. ids from oldest up to here are in the ring
+	private long oldest = 1;
+	private long swept; // oldest when the lists were last cleared of dropped ids
+	private final Map<String, IdList> conversations = new HashMap<>();
+	private final Map<String, IdList> terms = new HashMap<>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+	private final LongAdder recorded = new LongAdder();
+	private final LongAdder indexed = new LongAdder();
+	private final LongAdder dropped = new LongAdder(); // not recorded because the indexer was too far behind
+	private volatile boolean keepRunning = true;
+	private volatile boolean parked; // the indexer has nothing to do and is parked, or about to be
+	private Thread indexer;
+
+	public History(int capacity, Metrics metrics)
+	{
+		this.capacity = capacity;
+		ring = new Entry[capacity];
+		metrics.gauge("history.indexed", indexed::sum);
+		metrics.gauge("history.lag", () -> recorded.sum() - indexed.sum());
+		metrics.gauge("history.dropped", dropped::sum);
+		indexer = new Thread(this::indexLoop, "history");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	// waits for the indexer to finish the batch it is on
+	public void stop() throws InterruptedException
+	{
+		keepRunning = false;
+		LockSupport.unpark(indexer);
+		indexer.join();
+	}
+
+	// called on the send path, so it only queues the message. if the indexer is a whole ring
+	// behind, the message is left out of the history rather than letting the queue grow
+	public void record(String group, String sender, String receiver, String content)
+	{
+		if (recorded.sum() - indexed.sum() >= capacity)
+		{
+			dropped.increment();
+			return;
+		}
+		pending.offer(new Entry(group, sender, receiver, content == null ? "" : content));
+		recorded.increment();
+		if (parked) LockSupport.unpark(indexer);
+	}
+
+	private void indexLoop()
+	{
+		List<Entry> batch = new ArrayList<>(BATCH);
+		while (keepRunning)
+		{
+			Entry e;
+			while (batch.size() < BATCH && (e = pending.poll()) != null) batch.add(e);
+			if (batch.isEmpty())
+			{
+				// look again after saying we are parked. a message queued in between is either
+				// seen here or its record() sees parked and unparks us
+				parked = true;
+				if (pending.isEmpty() && keepRunning) LockSupport.park();
+				parked = false;
+				continue;
+			}
+			lock.writeLock().lock();
+			try
+			{
+				for (Entry entry : batch) add(entry);
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+			indexed.add(batch.size());
+			batch.clear();
+		}
+	}
+
+	// under the write lock
+	private void add(Entry e)
+	{
+		if (next - oldest == capacity)
+		{
+			ring[(int) (oldest % capacity)] = null;
+			oldest++;
+			if (oldest - swept >= capacity) sweep();
+		}
+		e.id = next++;
+		ring[(int) (e.id % capacity)] = e;
+
+		if (e.group != null) list(conversations, "#" + e.group).add(e.id);
+		else
+		{
+			list(conversations, "@" + e.sender).add(e.id);
+			if (!e.receiver.equals(e.sender)) list(conversations, "@" + e.receiver).add(e.id);
+		}
+
+		// each term once per message, so the lists stay sorted without duplicates
+		String last = null;
+		for (String term : terms(e.content + " " + e.sender))
+		{
+			if (term.equals(last)) continue;
+			list(terms, term).add(e.id);
+			last = term;
+		}
+	}
+
+	private IdList list(Map<String, IdList> map, String key)
+	{
+		IdList l = map.computeIfAbsent(key, k -> new IdList());
+		l.trim(oldest);
+		return l;
+	}
+
+	// words and names that only appeared in dropped messages would otherwise stay in the maps for good
+	private void sweep()
+	{
+		for (Map<String, IdList> map : List.of(conversations, terms))
+		{
+			for (Iterator<IdList> it = map.values().iterator(); it.hasNext();)
+			{
+				IdList l = it.next();
+				l.trim(oldest);
+				if (l.isEmpty()) it.remove();
+			}
+		}
+		swept = oldest;
+	}
+
+	// the lowercase words of text, sorted. a word is a run of letters and digits
+	public static List<String> terms(String text)
+	{
+		List<String> words = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++)
+		{
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) start = i;
+			else if (!word && start >= 0)
+			{
+				if (i - start <= MAX_TERM) words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		words.sort(null);
+		return words;
+	}
+
+	/**
+	 * Up to n messages of a conversation from before the cursor. conversation is "#group" or
+	 * "@user". A cursor of 0 starts at the newest.
+	 */
+	public Page conversation(String conversation, int n, long before)
+	{
+		n = Math.max(1, Math.min(n, MAX_PAGE));
+		lock.readLock().lock();
+		try
+		{
+			IdList ids = conversations.get(conversation);
+			if (ids == null) return new Page(new ArrayList<>(), 0);
+			int i = (before <= 0) ? ids.end : ids.search(before);
+			List<Entry> entries = new ArrayList<>(n);
+			long last = 0;
+			for (i = i - 1; i >= ids.start && entries.size() < n; i--)
+			{
+				if ((last = ids.ids[i]) < oldest) break;
+				entries.add(ring[(int) (last % capacity)]);
+			}
+			return page(entries, (i >= ids.start && ids.ids[i] >= oldest) ? last : 0);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Up to n messages from before the cursor that have every one of the words and that the
+	 * user can see: direct messages to or from them and messages to groups in groups.
+	 */
+	public Page search(String query, String user, Collection<String> groups, int n, long before)
+	{
+		List<String> words = terms(query);
+		if (words.isEmpty()) return new Page(new ArrayList<>(), 0);
+		n = Math.max(1, Math.min(n, MAX_PAGE));
+		lock.readLock().lock();
+		try
+		{
+			// walk the shortest list and look the message up in the others
+			List<IdList> lists = new ArrayList<>();
+			for (String w : words)
+			{
+				IdList l = terms.get(w);
+				if (l == null) return new Page(new ArrayList<>(), 0);
+				lists.add(l);
+			}
+			lists.sort((a, b) -> Integer.compare(a.end - a.start, b.end - b.start));
+			IdList shortest = lists.get(0);
+
+			List<Entry> entries = new ArrayList<>(n);
+			int i = (before <= 0) ? shortest.end : shortest.search(before);
+			int scanned = 0;
+			long last = 0;
+			for (i = i - 1; i >= shortest.start && entries.size() < n && scanned < MAX_SCAN; i--, scanned++)
+			{
+				long id = last = shortest.ids[i];
+				if (id < oldest) break;
+				boolean all = true;
+				for (int l = 1; l < lists.size() && all; l++) all = lists.get(l).contains(id);
+				Entry e = ring[(int) (id % capacity)];
+				if (all && visible(e, user, groups)) entries.add(e);
+			}
+			return page(entries, (i >= shortest.start && shortest.ids[i] >= oldest) ? last : 0);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private static boolean visible(Entry e, String user, Collection<String> groups)
+	{
+		if (e.group != null) return groups.contains(e.group);
+		return e.sender.equals(user) || e.receiver.equals(user);
+	}
+
+	// entries were found newest first. the page shows them oldest first. before is the last id looked at if there are more
+	private static Page page(List<Entry> entries, long before)
+	{
+		List<Entry> oldestFirst = new ArrayList<>(entries.size());
+		for (int i = entries.size() - 1; i >= 0; i--) oldestFirst.add(entries.get(i));
+		return new Page(oldestFirst, before);
+	}
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from user ids to V, for the server's per user tables. Ids are handed out one after
+ * another from 0, so rather than hashing the table is an array indexed by the id: a get is one
+ * array read, with no lock and no boxed Integer key. Puts and removes lock, and the array is
+ * copied to twice the size when an id doesn't fit.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IdMap<V>
+{
+	private volatile AtomicReferenceArray<V> table = new AtomicReferenceArray<>(64);
+	private volatile int size; // written under this
+
+	public V get(int id)
+	{
+		AtomicReferenceArray<V> t = table;
+		return (id >= 0 && id < t.length()) ? t.get(id) : null;
+	}
+
+	public boolean containsKey(int id)
+	{
+		return get(id) != null;
+	}
+
+	// returns what was there before
+	public synchronized V put(int id, V value)
+	{
+		if (value == null) throw new IllegalArgumentException("null value for id " + id);
+		V old = room(id).getAndSet(id, value);
+		if (old == null) size++;
+		return old;
+	}
+
+	// returns what was already there, or null if value went in
+	public synchronized V putIfAbsent(int id, V value)
+	{
+		if (value == null) throw new IllegalArgumentException("null value for id " + id);
+		AtomicReferenceArray<V> t = room(id);
+		V old = t.get(id);
+		if (old != null) return old;
+		t.set(id, value);
+		size++;
+		return null;
+	}
+
+	public synchronized V remove(int id)
+	{
+		AtomicReferenceArray<V> t = table;
+		if (id < 0 || id >= t.length()) return null;
+		V old = t.getAndSet(id, null);
+		if (old != null) size--;
+		return old;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	// every id in the map is below this
+	public int end()
+	{
+		return table.length();
+	}
+
+	// a copy, so it can be walked without holding anything
+	public List<V> values()
+	{
+		AtomicReferenceArray<V> t = table;
+		List<V> values = new ArrayList<>(size);
+		for (int id = 0; id < t.length(); id++)
+		{
+			V v = t.get(id);
+			if (v != null) values.add(v);
+		}
+		return values;
+	}
+
+	// the table, grown if it is too small for id. called holding this
+	private AtomicReferenceArray<V> room(int id)
+	{
+		if (id < 0) throw new IllegalArgumentException("bad id " + id);
+		AtomicReferenceArray<V> t = table;
+		if (id < t.length()) return t;
+		int length = t.length();
+		while (length <= id) length *= 2;
+		AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(length);
+		for (int i = 0; i < t.length(); i++) grown.set(i, t.get(i));
+		table = grown;
+		return grown;
+	}
+}
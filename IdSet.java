@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/**
+ * A set of user ids, used for the members of a group. Every change builds a new View and swaps
+ * it in, so checking whether someone is a member or walking the members never locks or
+ * allocates, and a walk sees the members as they were when it started. Membership changes are
+ * rare next to the messages that read it.
+ *
+ * A View is a bitset when that is the smaller of the two, which it is once more than about 1 in
+ * 32 of the ids up to the largest member are in the set, like 'all'. Otherwise it is a sorted
+ * array of the ids, so a small group of users with large ids stays small.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IdSet
+{
+	private static final View EMPTY = new View(null, new int[0], 0);
+
+	// immutable. one of bits and ids is null
+	public static final class View
+	{
+		private final long[] bits;
+		private final int[] ids; // sorted
+		private final int size;
+
+		private View(long[] bits, int[] ids, int size)
+		{
+			this.bits = bits;
+			this.ids = ids;
+			this.size = size;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		public boolean contains(int id)
+		{
+			if (id < 0) return false;
+			if (bits != null) return (id >> 6) < bits.length && (bits[id >> 6] & (1L << id)) != 0;
+			return Arrays.binarySearch(ids, id) >= 0;
+		}
+
+		// the smallest id in the set after id, or -1 if there isn't one. next(-1) is the first
+		public int next(int id)
+		{
+			int from = id + 1;
+			if (bits != null)
+			{
+				int w = from >> 6;
+				if (w >= bits.length) return -1;
+				long word = bits[w] & (-1L << from);
+				while (word == 0)
+				{
+					if (++w == bits.length) return -1;
+					word = bits[w];
+				}
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			int i = Arrays.binarySearch(ids, from);
+			if (i < 0) i = -i - 1;
+			return (i < size) ? ids[i] : -1;
+		}
+
+		public int[] toArray()
+		{
+			if (bits == null) return ids.clone();
+			int[] all = new int[size];
+			int n = 0;
+			for (int id = next(-1); id >= 0; id = next(id)) all[n++] = id;
+			return all;
+		}
+
+		// so tests can see which way it is stored
+		boolean isBitset()
+		{
+			return bits != null;
+		}
+	}
+
+	private volatile View view = EMPTY;
+
+	public View view()
+	{
+		return view;
+	}
+
+	public boolean contains(int id)
+	{
+		return view.contains(id);
+	}
+
+	public int size()
+	{
+		return view.size;
+	}
+
+	// returns false if it was already there
+	public synchronized boolean add(int id)
+	{
+		if (id < 0) throw new IllegalArgumentException("bad id " + id);
+		View v = view;
+		if (v.contains(id)) return false;
+		int size = v.size + 1;
+		if (v.bits != null)
+		{
+			long[] bits = Arrays.copyOf(v.bits, Math.max(v.bits.length, (id >> 6) + 1));
+			bits[id >> 6] |= 1L << id;
+			view = smaller(bits, size);
+		}
+		else
+		{
+			int i = -Arrays.binarySearch(v.ids, id) - 1;
+			int[] ids = new int[size];
+			System.arraycopy(v.ids, 0, ids, 0, i);
+			ids[i] = id;
+			System.arraycopy(v.ids, i, ids, i + 1, v.size - i);
+			view = smaller(ids, size);
+		}
+		return true;
+	}
+
+	// adds them all with one copy of the set, for building a large group at once
+	public synchronized void addAll(int[] add)
+	{
+		for (int id : add) if (id < 0) throw new IllegalArgumentException("bad id " + id);
+		View v = view;
+		int[] ids = Arrays.copyOf(v.toArray(), v.size + add.length);
+		System.arraycopy(add, 0, ids, v.size, add.length);
+		Arrays.sort(ids);
+		int size = 0;
+		for (int i = 0; i < ids.length; i++) if (size == 0 || ids[i] != ids[size - 1]) ids[size++] = ids[i];
+		view = smaller(Arrays.copyOf(ids, size), size);
+	}
+
+	// returns false if it wasn't there
+	public synchronized boolean remove(int id)
+	{
+		View v = view;
+		if (!v.contains(id)) return false;
+		int size = v.size - 1;
+		if (v.bits != null)
+		{
+			long[] bits = v.bits.clone();
+			bits[id >> 6] &= ~(1L << id);
+			view = smaller(bits, size);
+		}
+		else
+		{
+			int i = Arrays.binarySearch(v.ids, id);
+			int[] ids = new int[size];
+			System.arraycopy(v.ids, 0, ids, 0, i);
+			System.arraycopy(v.ids, i + 1, ids, i, size - i);
+			view = smaller(ids, size);
+		}
+		return true;
+	}
+
+	// switches to an array when the bitset is over twice its size. the slack stops a set near
+	// the line from switching on every change
+	private static View smaller(long[] bits, int size)
+	{
+		int words = bits.length;
+		while (words > 0 && bits[words - 1] == 0) words--;
+		if ((long) words * 8 <= (long) size * 4 * 2) return new View(bits, null, size);
+		View v = new View(bits, null, size);
+		return new View(null, v.toArray(), size);
+	}
+
+	// and to a bitset when the array is over twice the size of one
+	private static View smaller(int[] ids, int size)
+	{
+		int words = (size == 0) ? 0 : (ids[size - 1] >> 6) + 1;
+		if ((long) size * 4 <= (long) words * 8 * 2) return new View(null, ids, size);
+		long[] bits = new long[words];
+		for (int id : ids) bits[id >> 6] |= 1L << id;
+		return new View(bits, null, size);
+	}
+}
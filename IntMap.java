@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to V with open addressing: the keys sit in an int array and the
+ * values in a parallel array, found by linear probing from the key's hash. An entry is two
+ * array slots rather than a node and a boxed Integer, and get doesn't allocate. For small maps
+ * whose keys are scattered, where an IdMap would be mostly empty.
+ *
+ * Not thread safe. Whoever owns it locks around it.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IntMap<V>
+{
+	private static final int FREE = -1;
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	public IntMap()
+	{
+		keys = new int[4];
+		Arrays.fill(keys, FREE);
+		values = new Object[4];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int i = find(key);
+		return (i < 0) ? null : (V) values[i];
+	}
+
+	// returns what was there before
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (key < 0) throw new IllegalArgumentException("bad key " + key);
+		int i = find(key);
+		if (i >= 0)
+		{
+			V old = (V) values[i];
+			values[i] = value;
+			return old;
+		}
+		if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+		insert(key, value);
+		size++;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int i = find(key);
+		if (i < 0) return null;
+		V old = (V) values[i];
+
+		// shift back the entries after it that probed past it, so no lookup stops at the hole early
+		int mask = keys.length - 1;
+		int hole = i;
+		for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask)
+		{
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - hole) & mask))
+			{
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = FREE;
+		values[hole] = null;
+		size--;
+		return old;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	// walking the map: for (int i = 0; i < map.slots(); i++) if (map.valueAt(i) != null) ...
+	public int slots()
+	{
+		return keys.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot)
+	{
+		return (V) values[slot];
+	}
+
+	private int find(int key)
+	{
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != FREE; i = (i + 1) & mask) if (keys[i] == key) return i;
+		return -1;
+	}
+
+	private void insert(int key, Object value)
+	{
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != FREE) i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private void resize(int length)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[length];
+		Arrays.fill(keys, FREE);
+		values = new Object[length];
+		for (int i = 0; i < oldKeys.length; i++) if (oldKeys[i] != FREE) insert(oldKeys[i], oldValues[i]);
+	}
+
+	// ids are handed out in order, so they need mixing or neighbours would fill runs of slots
+	private static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
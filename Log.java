@@ -0,0 +1,229 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous server log. Callers put a record in a bounded ring buffer and go on; one
+ * background thread formats the records and writes them to the console. A slow console
+ * never holds up a thread that is handling messages.
+ *
+ * Messages are formatted on the log thread, so pass the parts as arguments instead of
+ * concatenating them: Log.debug("{} messaged {}", sender, recipient). An argument that is
+ * a Supplier is only called when the record is written, for anything expensive to build.
+ * Records below the current level are thrown away without being queued or formatted.
+ *
+ * When the ring is more than three quarters full only one in eight debug and info records
+ * is kept, and when it is full records are dropped rather than making the caller wait. The
+ * log thread writes a line saying how many were dropped.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Log
+{
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	private static final String[] NAMES = { "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+	private static final int CAPACITY = 8192; // a power of two
+	private static final int SAMPLE_ABOVE = CAPACITY / 4 * 3;
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	private static volatile int level = INFO;
+
+	// Vyukov style bounded ring. a slot's sequence says whether it is free for the producer
+	// claiming position pos (sequence == pos) or holds a record for the consumer (sequence == pos + 1)
+	private static final Record[] ring = new Record[CAPACITY];
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong(); // next position to claim
+	private static volatile long head; // next position the log thread reads. only it writes this
+	private static volatile long written; // records before this have been printed
+	private static final AtomicLong sampler = new AtomicLong();
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile Thread writer;
+	private static volatile boolean parked; // the log thread has nothing to do and is parked, or about to be
+
+	private static class Record
+	{
+		final long millis = System.currentTimeMillis();
+		final int level;
+		final String format;
+		final Object[] args;
+
+		Record(int level, String format, Object[] args)
+		{
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	static
+	{
+		for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+		Thread t = new Thread(Log::drainLoop, "log");
+		t.setDaemon(true);
+		t.start();
+		writer = t;
+	}
+
+	public static void setLevel(int newLevel)
+	{
+		level = newLevel;
+	}
+
+	// accepts debug, info, warn or error
+	public static int parseLevel(String name)
+	{
+		for (int i = 0; i < NAMES.length; i++) if (NAMES[i].trim().equalsIgnoreCase(name)) return i;
+		throw new IllegalArgumentException("Unknown log level '" + name + "'");
+	}
+
+	public static void debug(String format, Object... args)
+	{
+		if (DEBUG >= level) log(DEBUG, format, args);
+	}
+
+	public static void info(String format, Object... args)
+	{
+		if (INFO >= level) log(INFO, format, args);
+	}
+
+	public static void warn(String format, Object... args)
+	{
+		if (WARN >= level) log(WARN, format, args);
+	}
+
+	public static void error(String format, Object... args)
+	{
+		if (ERROR >= level) log(ERROR, format, args);
+	}
+
+	// waits up to timeoutMillis for everything logged so far to be written
+	public static void flush(long timeoutMillis)
+	{
+		long target = tail.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (written < target && System.currentTimeMillis() < deadline)
+		{
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(1_000_000);
+		}
+		System.out.flush();
+	}
+
+	private static void log(int lvl, String format, Object[] args)
+	{
+		// under pressure keep every warning and error but only some of the chatter
+		if (lvl < WARN && tail.get() - head > SAMPLE_ABOVE && (sampler.getAndIncrement() & 7) != 0)
+		{
+			dropped.increment();
+			return;
+		}
+
+		long pos = tail.get();
+		while (true)
+		{
+			int slot = (int) (pos & (CAPACITY - 1));
+			long diff = sequences.get(slot) - pos;
+			if (diff == 0)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{
+					ring[slot] = new Record(lvl, format, args);
+					sequences.set(slot, pos + 1); // publishes the record
+					if (parked) LockSupport.unpark(writer);
+					return;
+				}
+				pos = tail.get();
+			}
+			else if (diff < 0) // the ring is full
+			{
+				dropped.increment();
+				return;
+			}
+			else pos = tail.get(); // another producer took this slot
+		}
+	}
+
+	// lines are written in batches, so a burst costs one console write instead of one per line
+	private static void drainLoop()
+	{
+		StringBuilder batch = new StringBuilder();
+		while (true)
+		{
+			int slot = (int) (head & (CAPACITY - 1));
+			if (sequences.get(slot) != head + 1 || batch.length() > 32 * 1024)
+			{
+				long lost = dropped.sumThenReset();
+				if (lost > 0) line(batch, System.currentTimeMillis(), WARN).append("log dropped ").append(lost).append(" records\n");
+				if (batch.length() > 0)
+				{
+					PrintStream out = System.out;
+					out.print(batch);
+					out.flush();
+					batch.setLength(0);
+				}
+				written = head;
+				if (sequences.get(slot) != head + 1) // nothing waiting
+				{
+					// look again after saying we are parked. a record published in between is
+					// either seen here or its producer sees parked and unparks us
+					parked = true;
+					if (sequences.get(slot) != head + 1) LockSupport.park();
+					parked = false;
+				}
+				continue;
+			}
+
+			Record r = ring[slot];
+			ring[slot] = null;
+			sequences.set(slot, head + CAPACITY); // the slot is free for the producer one lap later
+			head++;
+
+			int start = batch.length();
+			try
+			{
+				format(line(batch, r.millis, r.level), r.format, r.args);
+			}
+			catch (RuntimeException e) // a bad argument mustn't stop the log
+			{
+				batch.setLength(start);
+				line(batch, r.millis, r.level).append(r.format).append(" (unable to format: ").append(e).append(')');
+			}
+			batch.append('\n');
+		}
+	}
+
+	private static StringBuilder line(StringBuilder sb, long millis, int lvl)
+	{
+		return sb.append(TIME.format(Instant.ofEpochMilli(millis))).append(' ').append(NAMES[lvl]).append(' ');
+	}
+
+	// replaces each {} in format with the next argument
+	private static void format(StringBuilder sb, String format, Object[] args)
+	{
+		int a = 0;
+		int from = 0;
+		int at;
+		while ((at = format.indexOf("{}", from)) >= 0)
+		{
+			sb.append(format, from, at);
+			if (a < args.length)
+			{
+				Object arg = args[a++];
+				sb.append((arg instanceof Supplier) ? ((Supplier<?>) arg).get() : arg);
+			}
+			else sb.append("{}");
+			from = at + 2;
+		}
+		sb.append(format, from, format.length());
+	}
+}
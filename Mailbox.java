@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages waiting to be sent to one user. Any number of threads can add messages at the
+ * same time without locking: adding is a single atomic swap of the tail, so a hot recipient
+ * with hundreds of senders never makes them retry or wait on each other.
+ *
+ * Group messages aren't copied in here. The mailbox follows the GroupLog of every group the
+ * user is in and reads new entries from them when it is drained.
+ *
+ * Only the user's own connection takes messages out. drain() hands back everything that has
+ * been added so far, in the order it was sent, and no message can be lost or sent twice.
+ *
+ * A mailbox can have a limit on the messages and bytes waiting in it. Adding never checks
+ * the limit itself; the server asks hasRoom() or overLimit() and applies its slow consumer
+ * policy, which may trim() the oldest messages out.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Mailbox
+{
+	// what the server does when a mailbox is over its limit
+	public static final int DROP_OLDEST = 0;
+	public static final int REJECT = 1; // new messages are refused and the sender is told
+	public static final int DISCONNECT = 2; // the consumer is disconnected, then the oldest are dropped
+	public static final int SPILL = 3; // the oldest are moved to the MessageStore
+	private static final String[] POLICIES = { "drop-oldest", "reject", "disconnect", "spill" };
+
+	// orders direct and group messages against each other
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private static class Node
+	{
+		final long seq;
+		final int bytes;
+		Message msg;
+		volatile Node next;
+
+		Node(long seq, Message msg)
+		{
+			this.seq = seq;
+			this.msg = msg;
+			this.bytes = (msg == null) ? 0 : bytes(msg);
+		}
+	}
+
+	private final AtomicReference<Node> tail;
+	private Node head; // already drained node whose next is the oldest waiting message. guarded by this
+	private volatile GroupLog.Cursor[] following = new GroupLog.Cursor[0]; // one per group. copied on change, which is rare next to reads
+	private LongAdder added = new LongAdder(); // direct messages ever added
+	private LongAdder addedBytes = new LongAdder();
+	private volatile long drained; // direct messages ever drained or trimmed. only written under this
+	private volatile long drainedBytes;
+	private long maxCount; // 0 is no limit
+	private long maxBytes;
+
+	public Mailbox()
+	{
+		this(0, 0);
+	}
+
+	public Mailbox(long maxCount, long maxBytes)
+	{
+		head = new Node(0, null);
+		tail = new AtomicReference<>(head);
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+	}
+
+	// accepts drop-oldest, reject, disconnect or spill
+	public static int parsePolicy(String name)
+	{
+		for (int i = 0; i < POLICIES.length; i++) if (POLICIES[i].equalsIgnoreCase(name)) return i;
+		throw new IllegalArgumentException("Unknown mailbox policy '" + name + "'");
+	}
+
+	// roughly what a message takes up on the heap
+	public static int bytes(Message m)
+	{
+		int chars = 0;
+		if (m.sender != null) chars += m.sender.length();
+		if (m.receiver != null) chars += m.receiver.length();
+		if (m.content != null) chars += m.content.length();
+		return 64 + 2 * chars;
+	}
+
+	public static long nextSequence()
+	{
+		return SEQUENCE.incrementAndGet();
+	}
+
+	public void add(Message m)
+	{
+		Node n = new Node(nextSequence(), m);
+		Node prev = tail.getAndSet(n);
+		prev.next = n; // until this is set the consumer stops at prev and picks n up next time
+		added.increment();
+		addedBytes.add(n.bytes);
+	}
+
+	// roughly how many messages are waiting. for metrics, so it doesn't lock
+	public long depth()
+	{
+		long waiting = added.sum() - drained;
+		for (GroupLog.Cursor c : following) waiting += c.log.unread(c);
+		return Math.max(0, waiting);
+	}
+
+	public long depthBytes()
+	{
+		long waiting = addedBytes.sum() - drainedBytes;
+		for (GroupLog.Cursor c : following) waiting += c.log.unreadBytes(c);
+		return Math.max(0, waiting);
+	}
+
+	// another message fits without going over the limit
+	public boolean hasRoom()
+	{
+		return (maxCount <= 0 || depth() < maxCount) && (maxBytes <= 0 || depthBytes() < maxBytes);
+	}
+
+	public boolean overLimit()
+	{
+		return (maxCount > 0 && depth() > maxCount) || (maxBytes > 0 && depthBytes() > maxBytes);
+	}
+
+	/**
+	 * Takes the oldest messages out until no more than count messages and bytes bytes are
+	 * waiting, and returns them oldest first. Group messages are skipped over in the group's
+	 * log. Called by the server to make room, so it competes with drain() for the lock.
+	 */
+	public synchronized List<Message> trim(long count, long bytes)
+	{
+		List<Message> removed = new ArrayList<>();
+		while (depth() > count || depthBytes() > bytes)
+		{
+			// the oldest of the next direct message and the next entry in each group
+			Node n = head.next;
+			GroupLog.Cursor oldest = null;
+			GroupLog.Entry entry = null;
+			for (GroupLog.Cursor c : following)
+			{
+				GroupLog.Entry e = c.log.peek(c);
+				if (e != null && (entry == null || e.seq < entry.seq))
+				{
+					oldest = c;
+					entry = e;
+				}
+			}
+
+			if (entry != null && (n == null || entry.seq < n.seq))
+			{
+				oldest.log.skip(oldest);
+				if (entry.isFor(oldest.userID)) removed.add(entry.msg);
+			}
+			else if (n != null)
+			{
+				removed.add(n.msg);
+				n.msg = null;
+				head = n;
+				drained++;
+				drainedBytes += n.bytes;
+			}
+			else break; // everything left is still being added
+		}
+		return removed;
+	}
+
+	public synchronized void follow(GroupLog log, int userID)
+	{
+		for (GroupLog.Cursor c : following) if (c.log == log) return;
+		GroupLog.Cursor[] grown = Arrays.copyOf(following, following.length + 1);
+		grown[following.length] = log.subscribe(userID);
+		following = grown;
+	}
+
+	public synchronized void unfollow(GroupLog log, int userID)
+	{
+		GroupLog.Cursor[] now = following;
+		for (int i = 0; i < now.length; i++)
+		{
+			if (now[i].log != log) continue;
+			GroupLog.Cursor[] shrunk = Arrays.copyOf(now, now.length - 1);
+			if (i < shrunk.length) shrunk[i] = now[now.length - 1];
+			following = shrunk;
+			break;
+		}
+		log.unsubscribe(userID);
+	}
+
+	// there is normally only one consumer, but a reconnecting user could briefly have two
+	public synchronized List<Message> drain()
+	{
+		List<GroupLog.Entry> groupEntries = new ArrayList<>();
+		for (GroupLog.Cursor c : following) c.log.read(c, groupEntries);
+
+		List<Message> msgs = new ArrayList<>();
+		Node n;
+		if (groupEntries.isEmpty()) // the common case. nothing to merge
+		{
+			long bytes = 0;
+			while ((n = head.next) != null)
+			{
+				msgs.add(n.msg);
+				bytes += n.bytes;
+				n.msg = null; // n is the new head, don't keep the message alive
+				head = n;
+			}
+			drained += msgs.size();
+			drainedBytes += bytes;
+			return msgs;
+		}
+
+		// merge the direct messages with the group messages in the order they were sent
+		groupEntries.sort(Comparator.comparingLong(e -> e.seq));
+		int g = 0;
+		long direct = 0;
+		long bytes = 0;
+		while ((n = head.next) != null)
+		{
+			while (g < groupEntries.size() && groupEntries.get(g).seq < n.seq) msgs.add(groupEntries.get(g++).msg);
+			msgs.add(n.msg);
+			bytes += n.bytes;
+			n.msg = null;
+			head = n;
+			direct++;
+		}
+		drained += direct;
+		drainedBytes += bytes;
+		while (g < groupEntries.size()) msgs.add(groupEntries.get(g++).msg);
+		return msgs;
+	}
+}
@@ -6,6 +6,7 @@ public class Message implements Serializable
 	public String sender;
 	public String receiver;
 	public String content;
+	transient volatile byte[] frame; // the WireProtocol frame, encoded the first time the message is sent. see WireProtocol.frame()
 	
 	public Message(String sender, String receiver, String content)
 	{
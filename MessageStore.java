@@ -0,0 +1,369 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store for messages sent to users who aren't connected. Messages are appended to
+ * memory mapped segment files, so waiting mail survives a restart and doesn't live on the
+ * heap. The only thing kept in memory per user is where their newest message is and how far
+ * they have read.
+ *
+ * Each stored message points back at the recipient's previous message, so a user's mail can
+ * be found by walking back from their newest one. When it is delivered an ACK record is
+ * appended, which is how a restarted server knows what was already sent.
+ *
+ * Segments are deleted oldest first once everything in them has been delivered. If the
+ * store grows past maxSegments the oldest segment's undelivered mail is copied forward so
+ * that segment can go too, as long as the undelivered mail is small enough for the copy to
+ * pay off. Otherwise maxSegments is exceeded rather than losing mail.
+ *
+ * Record layout (offsets are segment number * segmentSize + position in the segment):
+ *   int   length    bytes after this field. 0 marks the end of what has been written
+ *   byte  type      MESSAGE or ACK
+ *   MESSAGE: long prev, str recipient, str sender, str receiver, str content
+ *   ACK:     str recipient, long upTo (every message for recipient at or before upTo is delivered)
+ *   int   crc       CRC32 of the bytes from type up to here
+ * A str is an int byte length (-1 for null) followed by UTF-8 bytes.
+ *
+ * The OS can write a segment's pages back in any order, so after a crash the last records
+ * may be half there. Recovery stops at the first record whose length or crc doesn't check
+ * out and appends over it, and a newest segment that is shorter than it should be (cut off,
+ * or created just before the crash) is extended rather than refused.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class MessageStore
+{
+	private static final byte MESSAGE = 1;
+	private static final byte ACK = 2;
+
+	private File dir;
+	private int segmentSize;
+	private int maxSegments;
+	private TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>(); // segment number : mapping
+	private Map<Long, Integer> pending = new HashMap<>(); // segment number : undelivered messages in it
+	private Map<String, UserIndex> users = new ConcurrentHashMap<>(); // only users with undelivered mail
+	private long liveBytes; // size of all undelivered messages
+	private long active; // the segment being appended to
+	private MappedByteBuffer out; // mapping of the active segment
+	private boolean compacting;
+
+	private static class UserIndex
+	{
+		long tail = -1; // offset of their newest message
+		long delivered = -1; // everything at or before this has been delivered
+	}
+
+	public MessageStore(File dir, int segmentSize, int maxSegments) throws IOException
+	{
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(2, maxSegments);
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create " + dir);
+		recover();
+	}
+
+	public boolean hasMail(String recipient)
+	{
+		return users.containsKey(recipient);
+	}
+
+	// returns false if the message is too big for a segment and has to be kept somewhere else
+	public synchronized boolean append(String recipient, Message m) throws IOException
+	{
+		UserIndex u = users.computeIfAbsent(recipient, r -> new UserIndex());
+		long offset = write(MESSAGE, u.tail, recipient, m, -1);
+		if (offset < 0)
+		{
+			if (u.tail < 0) users.remove(recipient);
+			return false;
+		}
+		u.tail = offset;
+		added(offset);
+		compact(); // not while writing, relocating could move the chain we were adding to
+		return true;
+	}
+
+	// takes every undelivered message for recipient out of the store, oldest first
+	public synchronized List<Message> drain(String recipient) throws IOException
+	{
+		UserIndex u = users.remove(recipient);
+		if (u == null) return new ArrayList<>();
+
+		List<Long> offsets = pendingOffsets(u);
+		List<Message> msgs = new ArrayList<>(offsets.size());
+		for (long offset : offsets) msgs.add(readMessage(offset));
+
+		write(ACK, -1, recipient, null, u.tail);
+		for (long offset : offsets) delivered(offset);
+		compact();
+		return msgs;
+	}
+
+	public synchronized void close()
+	{
+		if (out != null) out.force();
+	}
+
+	// offsets of a user's undelivered messages, oldest first
+	private List<Long> pendingOffsets(UserIndex u)
+	{
+		List<Long> offsets = new ArrayList<>();
+		for (long offset = u.tail; offset > u.delivered && segments.containsKey(offset / segmentSize); )
+		{
+			offsets.add(offset);
+			offset = buffer(offset).getLong(position(offset) + 5);
+		}
+		Collections.reverse(offsets);
+		return offsets;
+	}
+
+	/**
+	 * Appends a record and returns its offset, or -1 if it can't fit in a segment. upTo is only
+	 * used by ACK records and prev/m only by MESSAGE records.
+	 */
+	private long write(byte type, long prev, String recipient, Message m, long upTo) throws IOException
+	{
+		byte[][] strs = (type == MESSAGE)
+			? new byte[][] { utf8(recipient), utf8(m.sender), utf8(m.receiver), utf8(m.content) }
+			: new byte[][] { utf8(recipient) };
+		int length = 1 + 8 + 4;
+		for (byte[] s : strs) length += 4 + (s == null ? 0 : s.length);
+		if (4 + length + 4 > segmentSize) return -1; // leave room for the end marker
+
+		if (out.remaining() < 4 + length + 4) roll();
+		long offset = active * segmentSize + out.position();
+		int start = out.position();
+		out.position(start + 4); // length goes in last so a half written record looks like the end
+		out.put(type);
+		if (type == MESSAGE) out.putLong(prev);
+		for (byte[] s : strs)
+		{
+			out.putInt(s == null ? -1 : s.length);
+			if (s != null) out.put(s);
+		}
+		if (type == ACK) out.putLong(upTo);
+		out.putInt(crc(out, start, length));
+		out.putInt(out.position(), 0); // end marker
+		out.putInt(start, length);
+		return offset;
+	}
+
+	private Message readMessage(long offset)
+	{
+		MappedByteBuffer b = buffer(offset);
+		int[] pos = { position(offset) + 4 + 1 + 8 };
+		readString(b, pos); // recipient
+		return new Message(readString(b, pos), readString(b, pos), readString(b, pos));
+	}
+
+	// start a new segment
+	private void roll() throws IOException
+	{
+		if (out != null) out.force();
+		active = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		out = map(active, true);
+		segments.put(active, out);
+	}
+
+	// delete the oldest segments once nothing in them is waiting to be delivered
+	private void compact() throws IOException
+	{
+		if (compacting) return;
+		compacting = true;
+		try
+		{
+			while (segments.size() > 1)
+			{
+				long oldest = segments.firstKey();
+				if (oldest == active) break;
+				if (pending.getOrDefault(oldest, 0) > 0)
+				{
+					if (segments.size() <= maxSegments) break;
+
+					// only copy when the live mail fits in half the store, so each copy is paid for
+					// by at least that much new mail. otherwise it would be copied again and again
+					if (liveBytes > (long) (maxSegments - 1) * segmentSize / 2) break;
+					relocate(oldest); // a user who never comes back shouldn't keep every segment alive
+				}
+				segments.remove(oldest);
+				pending.remove(oldest);
+				new File(dir, name(oldest)).delete();
+			}
+		}
+		finally
+		{
+			compacting = false;
+		}
+	}
+
+	// copy the undelivered mail of everyone with messages in segment forward to the active segment
+	private void relocate(long segment) throws IOException
+	{
+		Set<String> recipients = new HashSet<>();
+		MappedByteBuffer b = segments.get(segment);
+		for (int pos = 0, length; (length = recordLength(b, pos)) > 0; pos += 4 + length)
+		{
+			if (b.get(pos + 4) != MESSAGE) continue;
+			int[] p = { pos + 4 + 1 + 8 };
+			String recipient = readString(b, p);
+			UserIndex u = users.get(recipient);
+			if (u != null && segment * segmentSize + pos > u.delivered) recipients.add(recipient);
+		}
+
+		for (String recipient : recipients)
+		{
+			UserIndex u = users.get(recipient);
+			List<Long> offsets = pendingOffsets(u);
+			List<Message> msgs = new ArrayList<>(offsets.size());
+			for (long offset : offsets) msgs.add(readMessage(offset));
+
+			// the old copies count as delivered. the new chain starts after them
+			write(ACK, -1, recipient, null, u.tail);
+			u.delivered = u.tail;
+			for (long offset : offsets) delivered(offset);
+			for (Message m : msgs)
+			{
+				long offset = write(MESSAGE, u.tail, recipient, m, -1);
+				u.tail = offset;
+				added(offset);
+			}
+		}
+	}
+
+	// rebuild the index from the segments on disk
+	private void recover() throws IOException
+	{
+		File[] files = dir.listFiles((d, n) -> n.endsWith(".seg"));
+		TreeMap<Long, File> found = new TreeMap<>();
+		if (files != null)
+			for (File f : files) found.put(Long.parseLong(f.getName().substring(0, f.getName().length() - 4)), f);
+		// the newest is mapped writable, which extends it if the crash left it short
+		for (long segment : found.keySet()) segments.put(segment, map(segment, segment == found.lastKey()));
+
+		int end = 0;
+		for (Map.Entry<Long, MappedByteBuffer> e : segments.entrySet())
+		{
+			MappedByteBuffer b = e.getValue();
+			int pos = 0;
+			for (int length; (length = recordLength(b, pos)) > 0; pos += 4 + length)
+			{
+				long offset = e.getKey() * segmentSize + pos;
+				int[] p = { pos + 4 + 1 + (b.get(pos + 4) == MESSAGE ? 8 : 0) };
+				UserIndex u = users.computeIfAbsent(readString(b, p), r -> new UserIndex());
+				if (b.get(pos + 4) == MESSAGE) u.tail = offset;
+				else u.delivered = Math.max(u.delivered, b.getLong(p[0]));
+			}
+			if (pos + 4 <= segmentSize && b.getInt(pos) != 0)
+				Log.warn("message store {} ignoring a damaged record at {} in {} and everything after it", dir, pos, name(e.getKey()));
+			end = pos;
+		}
+
+		// count what is still waiting in each segment and forget users who have had everything
+		for (Map.Entry<String, UserIndex> e : new ArrayList<>(users.entrySet()))
+		{
+			List<Long> offsets = pendingOffsets(e.getValue());
+			if (offsets.isEmpty()) users.remove(e.getKey());
+			for (long offset : offsets) added(offset);
+		}
+
+		if (segments.isEmpty()) roll();
+		else
+		{
+			active = segments.lastKey();
+			out = segments.get(active);
+			out.position(end);
+		}
+		compact();
+		Log.info("message store {} has undelivered mail for {} user(s)", dir, users.size());
+	}
+
+	// length of the record at pos, or 0 if what is there isn't a whole record (the end, or a torn write)
+	private int recordLength(MappedByteBuffer b, int pos)
+	{
+		if (pos + 4 > segmentSize) return 0;
+		int length = b.getInt(pos);
+		if (length < 1 + 8 + 4 + 4 || length > segmentSize - pos - 4) return 0;
+		byte type = b.get(pos + 4);
+		if (type != MESSAGE && type != ACK) return 0;
+		return (b.getInt(pos + length) == crc(b, pos, length)) ? length : 0;
+	}
+
+	// crc of the record at start with the given length, leaving out its length and crc fields
+	private static int crc(MappedByteBuffer b, int start, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(b.slice(start + 4, length - 4));
+		return (int) crc.getValue();
+	}
+
+	// keep track of an undelivered message at offset
+	private void added(long offset)
+	{
+		pending.merge(offset / segmentSize, 1, Integer::sum);
+		liveBytes += 4 + buffer(offset).getInt(position(offset));
+	}
+
+	private void delivered(long offset)
+	{
+		pending.merge(offset / segmentSize, -1, Integer::sum);
+		liveBytes -= 4 + buffer(offset).getInt(position(offset));
+	}
+
+	private MappedByteBuffer map(long segment, boolean writable) throws IOException
+	{
+		try (RandomAccessFile f = new RandomAccessFile(new File(dir, name(segment)), writable ? "rw" : "r"))
+		{
+			if (writable && f.length() > 0 && f.length() < segmentSize)
+				Log.warn("message store {} extending {} from {} bytes, it was cut short", dir, name(segment), f.length());
+			if (writable && f.length() < segmentSize) f.setLength(segmentSize);
+			if (f.length() != segmentSize)
+				throw new IOException(name(segment) + " was written with a different segment size (" + f.length() + " bytes)");
+			return f.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+		}
+	}
+
+	private MappedByteBuffer buffer(long offset)
+	{
+		return segments.get(offset / segmentSize);
+	}
+
+	private int position(long offset)
+	{
+		return (int) (offset % segmentSize);
+	}
+
+	private static String name(long segment)
+	{
+		return String.format("%020d.seg", segment);
+	}
+
+	private static byte[] utf8(String s)
+	{
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String readString(MappedByteBuffer b, int[] pos)
+	{
+		int length = b.getInt(pos[0]);
+		pos[0] += 4;
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		b.get(pos[0], bytes);
+		pos[0] += length;
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
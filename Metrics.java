@@ -0,0 +1,243 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Registry of the server's counters, gauges and histograms. Recording only touches
+ * LongAdders, which spread contended updates over cells, so there is no lock on the
+ * message path and the metrics can stay on all the time. The work of adding things up
+ * is done when somebody asks, through report() or JMX.
+ *
+ * Counters count up (or down, for things like active polls). Gauges are read when
+ * reported. Histograms keep counts in buckets that are a quarter of a power of two wide,
+ * so percentiles are within 25% of the real value.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Metrics
+{
+	private Map<String, LongAdder> counters = new ConcurrentSkipListMap<>(); // sorted so reports are stable
+	private Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+	private Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+	private Map<String, Long> lastCounts = new ConcurrentHashMap<>(); // counter values at the last report
+	private volatile long lastReport = System.nanoTime();
+	private ObjectName jmxName;
+
+	public static class Histogram
+	{
+		private static final int SUB = 4; // buckets per power of two
+		private final LongAdder[] buckets = new LongAdder[64 * SUB];
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		Histogram()
+		{
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		public void record(long value)
+		{
+			value = Math.max(0, value);
+			buckets[index(value)].increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		public long count()
+		{
+			long n = 0;
+			for (LongAdder b : buckets) n += b.sum();
+			return n;
+		}
+
+		public long max()
+		{
+			return max.get();
+		}
+
+		public double mean()
+		{
+			long n = count();
+			return (n == 0) ? 0 : (double) sum.sum() / n;
+		}
+
+		// upper bound of the bucket holding the p-th percentile
+		public long percentile(double p)
+		{
+			long[] counts = new long[buckets.length];
+			long n = 0;
+			for (int i = 0; i < counts.length; i++) n += (counts[i] = buckets[i].sum());
+			long target = (long) Math.ceil(n * p / 100);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= target && seen > 0) return Math.min(upper(i), max());
+			}
+			return 0;
+		}
+
+		private static int index(long v)
+		{
+			if (v < SUB) return (int) v;
+			int exp = 63 - Long.numberOfLeadingZeros(v);
+			return exp * SUB + (int) ((v >> (exp - 2)) & (SUB - 1)) - 4;
+		}
+
+		private static long upper(int index)
+		{
+			if (index < SUB) return index;
+			int exp = (index + 4) / SUB;
+			long base = 1L << exp;
+			return base + ((index + 4) % SUB + 1) * (base / SUB) - 1;
+		}
+	}
+
+	public LongAdder counter(String name)
+	{
+		return counters.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	public void gauge(String name, LongSupplier value)
+	{
+		gauges.put(name, value);
+	}
+
+	public Histogram histogram(String name)
+	{
+		return histograms.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	/**
+	 * Everything as plain text, one metric per line. Counters also show their rate per second
+	 * since the previous report.
+	 */
+	public String report()
+	{
+		long now = System.nanoTime();
+		double secs = Math.max(1e-9, (now - lastReport) / 1e9);
+		lastReport = now;
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, LongAdder> e : counters.entrySet())
+		{
+			long value = e.getValue().sum();
+			Long last = lastCounts.put(e.getKey(), value);
+			sb.append(String.format("%-28s %12d  %10.1f/s%n", e.getKey(), value, (value - (last == null ? 0 : last)) / secs));
+		}
+		for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+			sb.append(String.format("%-28s %12d%n", e.getKey(), e.getValue().getAsLong()));
+		for (Map.Entry<String, Histogram> e : histograms.entrySet())
+		{
+			Histogram h = e.getValue();
+			sb.append(String.format("%-28s count %d  mean %.0f  p50 %d  p99 %d  p99.9 %d  max %d%n", e.getKey(), h.count(),
+				h.mean(), h.percentile(50), h.percentile(99), h.percentile(99.9), h.max()));
+		}
+		return sb.toString();
+	}
+
+	// every metric as a JMX attribute. histograms show up as name.count, name.p50, name.p99 and name.max
+	public void registerMBean(String name)
+	{
+		try
+		{
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			jmxName = new ObjectName(name);
+			if (mbs.isRegistered(jmxName)) mbs.unregisterMBean(jmxName);
+			mbs.registerMBean(new MetricsMBean(), jmxName);
+		}
+		catch (JMException e)
+		{
+			Log.warn("unable to register metrics with JMX: {}", e.getMessage());
+		}
+	}
+
+	public void unregisterMBean()
+	{
+		try
+		{
+			if (jmxName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+		}
+		catch (JMException e)
+		{
+		}
+		jmxName = null;
+	}
+
+	private class MetricsMBean implements DynamicMBean
+	{
+		public Object getAttribute(String attribute)
+		{
+			if (counters.containsKey(attribute)) return counters.get(attribute).sum();
+			if (gauges.containsKey(attribute)) return gauges.get(attribute).getAsLong();
+			int dot = attribute.lastIndexOf('.');
+			Histogram h = (dot < 0) ? null : histograms.get(attribute.substring(0, dot));
+			if (h == null) return null;
+			switch (attribute.substring(dot + 1))
+			{
+				case "count": return h.count();
+				case "p50": return h.percentile(50);
+				case "p99": return h.percentile(99);
+				case "max": return h.max();
+				default: return null;
+			}
+		}
+
+		public AttributeList getAttributes(String[] attributes)
+		{
+			AttributeList list = new AttributeList();
+			for (String a : attributes) list.add(new Attribute(a, getAttribute(a)));
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attrs = new ArrayList<>();
+			for (String name : counters.keySet()) attrs.add(attribute(name, "counter"));
+			for (String name : gauges.keySet()) attrs.add(attribute(name, "gauge"));
+			for (String name : histograms.keySet())
+				for (String part : new String[] { "count", "p50", "p99", "max" })
+					attrs.add(attribute(name + "." + part, "histogram"));
+			return new MBeanInfo(Metrics.class.getName(), "TerminalChat server metrics",
+				attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+
+		private MBeanAttributeInfo attribute(String name, String kind)
+		{
+			return new MBeanAttributeInfo(name, "long", kind, true, false, false);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			// what JMX expects for an attribute that can't be written
+			throw new AttributeNotFoundException(attribute.getName() + " is read only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+		{
+			throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no operations");
+		}
+	}
+}
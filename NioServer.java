@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking server core for Terminal Chat. Instead of a reader and a sender thread per
+ * user, a small pool of EventLoops multiplexes every socket with a Selector. Each socket
+ * still gets a ConnectionHandler, so commands are handled exactly like in blocking mode
+ * and Client doesn't need to know which mode the server is running in.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class NioServer implements Runnable
+{
+	private static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+	private static final int COPY_BUFFER = 4096; // small writes are copied into buffers this big
+	private static final int SHARE_MIN = 512; // shared frames smaller than this cost less to copy than to gather
+
+	private volatile boolean keepRunning;
+	private Server serv;
+	private ServerConfig config;
+	private ServerSocketChannel ssc;
+	private EventLoop[] loops;
+	private Thread controlThread;
+	private int nextLoop = 0; // the loop the next connection goes to. only the accept thread uses it
+	private LongAdder socketWrites; // write calls on client sockets
+	private LongAdder socketBytes;
+	private Metrics.Histogram writeNanos; // time a gathering write to a client socket takes
+	private AtomicInteger unflushed = new AtomicInteger(); // see unflushed()
+
+	public NioServer(Server serv, ServerConfig config)
+	{
+		this.serv = serv;
+		this.config = config;
+		socketWrites = serv.getMetrics().counter("socket.writes");
+		socketBytes = serv.getMetrics().counter("socket.bytes");
+		writeNanos = serv.getMetrics().histogram("write.nanos");
+	}
+
+	// the accept loop. new sockets are handed to the event loops round robin
+	public void run()
+	{
+		try
+		{
+			while (keepRunning)
+			{
+				SocketChannel ch = ssc.accept();
+				Log.debug("accepted a connection");
+				ch.configureBlocking(false);
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+				if (config.socketBufferKB > 0) ch.setOption(StandardSocketOptions.SO_SNDBUF, config.socketBufferKB * 1024);
+				EventLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length; // wraps here, so it never goes negative
+				loop.execute(() -> loop.register(ch));
+			}
+		}
+		catch (IOException e)
+		{
+		}
+		controlThread = null;
+	}
+
+	public void start()
+	{
+		if (controlThread != null) return;
+		try
+		{
+			ssc = ServerSocketChannel.open();
+			ssc.bind(new InetSocketAddress(config.port));
+		}
+		catch (IOException e)
+		{
+			Log.error("unable to listen on port {}: {}", config.port, e.getMessage());
+			return;
+		}
+
+		keepRunning = true;
+		loops = new EventLoop[config.eventLoops];
+		for (int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+		Log.info("NIO mode with {} event loop(s)", loops.length);
+		controlThread = new Thread(this, "nio-accept");
+		controlThread.start();
+	}
+
+	public void stopAccepting()
+	{
+		keepRunning = false;
+		try
+		{
+			ssc.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	// connections whose handler has finished with them that are still sending what it wrote
+	public int unflushed()
+	{
+		return unflushed.get();
+	}
+
+	public void stop()
+	{
+		stopAccepting();
+		for (EventLoop loop : loops) loop.stop();
+	}
+
+	/**
+	 * One selector thread. Everything that touches a connection's channel, its decoder or
+	 * its ConnectionHandler runs on the connection's loop, so none of it needs locking.
+	 * The loop only wakes up for socket events and tasks, so idle users cost nothing.
+	 */
+	private class EventLoop implements Runnable
+	{
+		private volatile boolean keepRunning;
+		private Selector selector;
+		private Thread thread;
+		private int index;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+		private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private Set<Connection> connections = new LinkedHashSet<>();
+		private Set<Connection> dirty = new LinkedHashSet<>(); // connections with output to flush
+		private PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+		EventLoop(int index)
+		{
+			this.index = index;
+		}
+
+		public void run()
+		{
+			while (keepRunning)
+			{
+				try
+				{
+					long timeout = timers.isEmpty() ? 0 : (timers.peek().deadline - System.nanoTime()) / 1_000_000;
+					if (!tasks.isEmpty()) selector.selectNow(); // queued by the loop itself, which doesn't wake the selector
+					else if (timers.isEmpty()) selector.select();
+					else if (timeout > 0) selector.select(timeout);
+					else selector.selectNow();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						Connection c = (Connection) key.attachment();
+						try
+						{
+							if (key.isValid() && key.isReadable()) c.read();
+							if (key.isValid() && key.isWritable()) dirty.add(c);
+						}
+						catch (RuntimeException e) // e.g. the key was cancelled after isValid()
+						{
+							c.failed(e);
+						}
+					}
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) runSafely(task);
+					while (!timers.isEmpty() && timers.peek().deadline - System.nanoTime() <= 0) runSafely(timers.poll().task);
+
+					for (Connection c : dirty) c.flush();
+					dirty.clear();
+				}
+				catch (IOException e)
+				{
+					Log.error("event loop {} error: {}", index, e.getMessage());
+				}
+			}
+			for (Connection c : new ArrayList<>(connections)) c.close();
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+
+		// the connection tasks drop their own connection if they throw. this is for anything else, so
+		// one bad task can't end the loop and strand every connection on it
+		private void runSafely(Runnable task)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException e)
+			{
+				Log.error("event loop {} task failed: {}", index, e.toString());
+			}
+		}
+
+		void register(SocketChannel ch)
+		{
+			try
+			{
+				Connection c = new Connection(this, ch);
+				c.key = ch.register(selector, SelectionKey.OP_READ, c);
+				connections.add(c);
+			}
+			catch (IOException e)
+			{
+				try
+				{
+					ch.close();
+				}
+				catch (IOException e2)
+				{
+				}
+			}
+		}
+
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			if (Thread.currentThread() != thread) selector.wakeup();
+		}
+
+		// runs task on this loop after delayNanos. only call from the loop's own thread
+		void schedule(Runnable task, long delayNanos)
+		{
+			timers.add(new Timer(System.nanoTime() + delayNanos, task));
+		}
+
+		boolean inLoop()
+		{
+			return Thread.currentThread() == thread;
+		}
+
+		void start()
+		{
+			try
+			{
+				selector = Selector.open();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("unable to open a selector", e);
+			}
+			keepRunning = true;
+			thread = new Thread(this, "nio-loop-" + index);
+			thread.start();
+		}
+
+		void stop()
+		{
+			keepRunning = false;
+			selector.wakeup();
+		}
+	}
+
+	private static class Timer implements Comparable<Timer>
+	{
+		long deadline;
+		Runnable task;
+
+		Timer(long deadline, Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other)
+		{
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+
+	/**
+	 * Output that can send a frame other connections are sending too without copying it. The
+	 * frame's bytes must never change.
+	 */
+	public interface SharedOutput
+	{
+		void writeShared(byte[] frame) throws IOException;
+	}
+
+	/**
+	 * A single client socket. The first bytes the client sends say whether it speaks the binary
+	 * WireProtocol or sends serialized objects. Incoming bytes are buffered in a ByteFeed until
+	 * a whole frame or object is there, and only then decoded, so decoding never blocks.
+	 * Outgoing bytes from the handler are buffered until the loop flushes. Small writes are
+	 * copied into buffers, and large shared frames are queued between them as they are. A flush
+	 * sends the lot with one gathering write.
+	 */
+	private class Connection
+	{
+		private EventLoop loop;
+		private SocketChannel ch;
+		private SelectionKey key;
+		private ConnectionHandler handler; // created once we know which protocol the client speaks
+		private boolean binary;
+		private boolean compressed; // the client asked for DEFLATED frames
+		private ByteFeed feed = new ByteFeed();
+		private ObjectFrameScanner scanner;
+		private ObjectInputStream in;
+		private ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>(); // written by the handler and not sent yet. guarded by this
+		private ByteBuffer copyBuf; // the last buffer in outQueue while small writes can be copied onto its end
+		private ByteBuffer spare; // a copy buffer that has been sent, to use again
+		private ByteBuffer[] gather = new ByteBuffer[8];
+		private int outLen; // bytes in outQueue
+		private volatile boolean closing; // close once the output buffer is empty
+		private volatile boolean closed;
+		private boolean limited; // reading is paused because the client is over its command rate
+		private AtomicBoolean deliveryScheduled = new AtomicBoolean();
+		private boolean deliveryPaused; // the client isn't reading, so messages are left in its mailbox
+
+		Connection(EventLoop loop, SocketChannel ch)
+		{
+			this.loop = loop;
+			this.ch = ch;
+		}
+
+		void read()
+		{
+			try
+			{
+				loop.readBuffer.clear();
+				int n = ch.read(loop.readBuffer);
+				if (n < 0)
+				{
+					lost();
+					return;
+				}
+				feed.append(loop.readBuffer.array(), n);
+				if (handler == null && !openHandler()) return;
+
+				if (binary) readFrames();
+				else readObjects();
+			}
+			catch (IOException | ClassNotFoundException | RuntimeException e)
+			{
+				Log.info("dropping connection: {}", e);
+				lost();
+			}
+		}
+
+		// returns false until enough bytes have arrived to tell which protocol the client speaks
+		private boolean openHandler() throws IOException
+		{
+			if (feed.available() < WireProtocol.MAGIC.length) return false;
+			ChannelOutput out = new ChannelOutput();
+			if (WireProtocol.isHandshake(feed.buf, feed.readPos, WireProtocol.MAGIC.length))
+			{
+				if (feed.available() < WireProtocol.HANDSHAKE_LENGTH) return false;
+				feed.consume(WireProtocol.MAGIC.length);
+				byte version = (byte) feed.read();
+				if (version < 1) throw new IOException("client asked for protocol version " + version);
+				version = WireProtocol.agree(version, serv.getConfig().compressionLevel > 0);
+				out.write(WireProtocol.handshake(version));
+				binary = true;
+				compressed = version >= WireProtocol.DEFLATE_VERSION;
+			}
+			else
+			{
+				if (!Arrays.equals(Arrays.copyOfRange(feed.buf, feed.readPos, feed.readPos + STREAM_HEADER.length), STREAM_HEADER))
+					throw new IOException("unknown protocol");
+				in = new ObjectInputStream(feed);
+				scanner = new ObjectFrameScanner();
+			}
+			handler = new ConnectionHandler(out, binary, compressed, this::scheduleDelivery, () -> loop.execute(this::close), serv, serv.nextUserID());
+			return true;
+		}
+
+		// only decode objects that have fully arrived so readObject never blocks the loop
+		private void readObjects() throws IOException, ClassNotFoundException
+		{
+			int length;
+			while (!closing && (length = scanner.next(feed.buf, feed.readPos, feed.available())) >= 0)
+			{
+				int expected = feed.readPos + length;
+				Object o = in.readObject();
+				if (feed.readPos != expected) throw new IOException("object stream out of step");
+				long wait = handler.receiveObject(o);
+				if (wait > 0) pauseReading(wait);
+			}
+		}
+
+		private void readFrames() throws IOException
+		{
+			int length;
+			while (!closing && (length = WireProtocol.frameLength(feed.buf, feed.readPos, feed.available())) >= 0)
+			{
+				List<Object> command = WireProtocol.decode(feed.buf, feed.readPos, length);
+				feed.consume(length);
+				long wait = 0;
+				for (Object o : command) wait = handler.receiveObject(o);
+				if (wait > 0) pauseReading(wait);
+			}
+		}
+
+		private void lost()
+		{
+			if (handler != null) handler.connectionLost();
+			close();
+		}
+
+		// something other than the socket went wrong on this connection. drop just this one and
+		// let the loop carry on with the rest
+		void failed(RuntimeException e)
+		{
+			if (closed) return; // closed meanwhile, which is what cancelled its key
+			Log.error("event loop {} dropping a connection: {}", loop.index, e.toString());
+			try
+			{
+				lost();
+			}
+			catch (RuntimeException e2)
+			{
+				close();
+			}
+		}
+
+		// the client is sending commands faster than its limit. stop reading from the socket so
+		// it fills up and the client slows down, and try the queued commands again later
+		private void pauseReading(long waitNanos)
+		{
+			if (limited) return;
+			limited = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			loop.schedule(this::resumeReading, waitNanos);
+		}
+
+		private void resumeReading()
+		{
+			limited = false;
+			if (closed || handler == null) return;
+			try
+			{
+				long wait = handler.handleReceived();
+				if (wait > 0) pauseReading(wait);
+				else key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+			catch (RuntimeException e)
+			{
+				failed(e);
+			}
+		}
+
+		// called from any thread when messages are added for this user. many messages
+		// arriving before the loop gets to us only cost one delivery
+		void scheduleDelivery()
+		{
+			if (deliveryScheduled.compareAndSet(false, true)) loop.execute(this::deliver);
+		}
+
+		void deliver()
+		{
+			deliveryScheduled.set(false);
+			if (closed || !handler.isSending()) return;
+
+			// don't buffer more for a client that isn't keeping up. its mailbox fills instead, where
+			// the server's limit and slow consumer policy apply. flush() resumes once it catches up
+			if (outLen > config.writeBufferKB * 1024)
+			{
+				deliveryPaused = true;
+				return;
+			}
+			try
+			{
+				if (!handler.deliverMessages()) handler.stop();
+			}
+			catch (IOException e)
+			{
+				lost();
+			}
+			catch (RuntimeException e)
+			{
+				failed(e);
+			}
+		}
+
+		void flush()
+		{
+			if (closed) return;
+			try
+			{
+				synchronized (this)
+				{
+					if (outLen > 0)
+					{
+						// one gathering write of the copy buffers and shared frames
+						int count = outQueue.size();
+						gather = outQueue.toArray(gather);
+						long start = System.nanoTime();
+						long n = ch.write(gather, 0, count);
+						writeNanos.record(System.nanoTime() - start);
+						socketBytes.add(n);
+						socketWrites.increment();
+						outLen -= n;
+						while (!outQueue.isEmpty() && !outQueue.peekFirst().hasRemaining())
+						{
+							ByteBuffer sent = outQueue.pollFirst();
+							if (sent == copyBuf) copyBuf = null;
+							if (!sent.isReadOnly() && sent.capacity() == COPY_BUFFER) spare = sent;
+						}
+						Arrays.fill(gather, null); // don't keep sent frames alive
+					}
+					if (outLen > 0)
+					{
+						// the socket is full. the selector will tell us when we can write again
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				if (closing) close();
+				else if (deliveryPaused)
+				{
+					deliveryPaused = false;
+					scheduleDelivery();
+				}
+			}
+			catch (IOException e)
+			{
+				lost();
+			}
+			catch (RuntimeException e) // CancelledKeyException if the channel was closed since the check above
+			{
+				failed(e);
+			}
+		}
+
+		void close()
+		{
+			synchronized (this)
+			{
+				if (closed) return;
+				closed = true;
+				if (closing) unflushed.decrementAndGet();
+				closing = true;
+			}
+			loop.connections.remove(this);
+			try
+			{
+				ch.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+
+		private void requestFlush()
+		{
+			if (loop.inLoop()) loop.dirty.add(this);
+			else loop.execute(this::flush);
+		}
+
+		// the stream the handler's ObjectOutputStream writes to
+		private class ChannelOutput extends OutputStream implements SharedOutput
+		{
+			public void write(int b) throws IOException
+			{
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				if (closed) throw new ClosedChannelException();
+				synchronized (Connection.this)
+				{
+					if (copyBuf == null || copyBuf.capacity() - copyBuf.limit() < len)
+					{
+						if (spare != null && len <= COPY_BUFFER)
+						{
+							copyBuf = spare;
+							spare = null;
+						}
+						else copyBuf = ByteBuffer.allocate(Math.max(COPY_BUFFER, len));
+						copyBuf.clear().limit(0);
+						outQueue.add(copyBuf);
+					}
+					int end = copyBuf.limit();
+					System.arraycopy(b, off, copyBuf.array(), end, len);
+					copyBuf.limit(end + len);
+					outLen += len;
+				}
+				requestFlush();
+			}
+
+			// large frames are queued as they are and written straight from the shared bytes
+			public void writeShared(byte[] frame) throws IOException
+			{
+				if (frame.length < SHARE_MIN)
+				{
+					write(frame, 0, frame.length);
+					return;
+				}
+				if (closed) throw new ClosedChannelException();
+				synchronized (Connection.this)
+				{
+					outQueue.add(ByteBuffer.wrap(frame).asReadOnlyBuffer());
+					copyBuf = null; // later writes go after the frame
+					outLen += frame.length;
+				}
+				requestFlush();
+			}
+
+			// the handler is done with the socket. close it once everything it wrote has been sent
+			public void close()
+			{
+				synchronized (Connection.this)
+				{
+					if (closing) return;
+					closing = true;
+					unflushed.incrementAndGet();
+				}
+				requestFlush();
+			}
+		}
+	}
+
+	/**
+	 * Growable byte buffer that the event loop appends socket data to and the connection's
+	 * ObjectInputStream reads from. It is only ever read after the scanner has checked the
+	 * bytes are there, so read() running out of data means the stream is corrupt.
+	 */
+	private static class ByteFeed extends InputStream
+	{
+		private byte[] buf = new byte[1024];
+		private int readPos;
+		private int writePos;
+
+		void append(byte[] b, int len)
+		{
+			if (writePos + len > buf.length)
+			{
+				// move the unread bytes to the front before growing
+				int unread = writePos - readPos;
+				byte[] dest = (unread + len > buf.length) ? new byte[Math.max(buf.length * 2, unread + len)] : buf;
+				System.arraycopy(buf, readPos, dest, 0, unread);
+				buf = dest;
+				readPos = 0;
+				writePos = unread;
+			}
+			System.arraycopy(b, 0, buf, writePos, len);
+			writePos += len;
+		}
+
+		public int available()
+		{
+			return writePos - readPos;
+		}
+
+		void consume(int n)
+		{
+			readPos += n;
+		}
+
+		public int read() throws IOException
+		{
+			if (readPos == writePos) throw new IOException("read past the end of a received object");
+			return buf[readPos++] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0) return 0;
+			if (readPos == writePos) throw new IOException("read past the end of a received object");
+			int n = Math.min(len, writePos - readPos);
+			System.arraycopy(buf, readPos, b, off, n);
+			readPos += n;
+			return n;
+		}
+	}
+}
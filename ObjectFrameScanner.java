@@ -0,0 +1,264 @@
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds where the next object ends in a Java serialization stream without consuming it.
+ * The NioServer only hands bytes to its ObjectInputStream once a whole object has arrived,
+ * so readObject() never blocks an event loop on a half received message.
+ *
+ * The scanner follows the grammar from the Object Serialization spec and keeps its own
+ * handle table so class descriptors sent earlier in the stream (referenced by handle) can
+ * still be walked. Only the stream header is not handled here.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class ObjectFrameScanner implements ObjectStreamConstants
+{
+	private static final Object PLAIN_HANDLE = new Object(); // handles that aren't class descriptors
+
+	// thrown when the buffer ends in the middle of an object. we never need the stack trace
+	private static final RuntimeException INCOMPLETE = new RuntimeException("incomplete", null, false, false) {};
+
+	private List<Object> handles = new ArrayList<>(); // committed handles. ClassLayout or PLAIN_HANDLE
+	private List<Object> newHandles = new ArrayList<>(); // handles assigned by the object being scanned
+	private boolean reset; // the object being scanned was preceded by TC_RESET
+	private byte[] buf;
+	private int pos;
+	private int limit;
+
+	private static class ClassLayout
+	{
+		String name;
+		byte flags;
+		char[] fieldTypes;
+		ClassLayout superLayout;
+	}
+
+	/**
+	 * Returns the number of bytes the next object in buf[off..off+len) takes up, or -1 if it
+	 * hasn't been fully received yet. Handles assigned by the object are only remembered once
+	 * it is complete, so calling again with more bytes is always safe.
+	 */
+	public int next(byte[] buf, int off, int len) throws StreamCorruptedException
+	{
+		this.buf = buf;
+		this.pos = off;
+		this.limit = off + len;
+		newHandles.clear();
+		reset = false;
+
+		try
+		{
+			while (peek() == TC_RESET)
+			{
+				pos++;
+				reset = true;
+				newHandles.clear();
+			}
+			readContent(u1());
+		}
+		catch (RuntimeException e)
+		{
+			if (e == INCOMPLETE) return -1;
+			throw e;
+		}
+
+		if (reset) handles.clear();
+		handles.addAll(newHandles);
+		return pos - off;
+	}
+
+	private void readContent(byte tc) throws StreamCorruptedException
+	{
+		switch (tc)
+		{
+			case TC_NULL:
+				return;
+			case TC_REFERENCE:
+				handle(s4());
+				return;
+			case TC_STRING:
+				skip(u2());
+				newHandles.add(PLAIN_HANDLE);
+				return;
+			case TC_LONGSTRING:
+				skip(s8());
+				newHandles.add(PLAIN_HANDLE);
+				return;
+			case TC_CLASSDESC:
+			case TC_PROXYCLASSDESC:
+				readClassDesc(tc);
+				return;
+			case TC_CLASS:
+				readClassDesc(u1());
+				newHandles.add(PLAIN_HANDLE);
+				return;
+			case TC_OBJECT:
+			{
+				ClassLayout layout = readClassDesc(u1());
+				newHandles.add(PLAIN_HANDLE);
+				readClassData(layout);
+				return;
+			}
+			case TC_ENUM:
+				readClassDesc(u1());
+				newHandles.add(PLAIN_HANDLE);
+				readContent(u1()); // the constant's name
+				return;
+			case TC_ARRAY:
+			{
+				ClassLayout layout = readClassDesc(u1());
+				newHandles.add(PLAIN_HANDLE);
+				int length = s4();
+				char type = layout.name.charAt(1);
+				if (type == 'L' || type == '[') for (int i = 0; i < length; i++) readContent(u1());
+				else skip((long) length * primitiveSize(type));
+				return;
+			}
+			default:
+				throw new StreamCorruptedException("unexpected type code 0x" + Integer.toHexString(tc & 0xFF));
+		}
+	}
+
+	private ClassLayout readClassDesc(byte tc) throws StreamCorruptedException
+	{
+		if (tc == TC_NULL) return null;
+		if (tc == TC_REFERENCE)
+		{
+			Object h = handle(s4());
+			if (!(h instanceof ClassLayout)) throw new StreamCorruptedException("reference is not a class descriptor");
+			return (ClassLayout) h;
+		}
+
+		ClassLayout layout = new ClassLayout();
+		newHandles.add(layout); // the descriptor's handle is assigned before its fields are read
+		if (tc == TC_PROXYCLASSDESC)
+		{
+			layout.name = "proxy";
+			layout.flags = SC_SERIALIZABLE;
+			layout.fieldTypes = new char[0];
+			for (int i = s4(); i > 0; i--) skip(u2()); // interface names
+		}
+		else if (tc == TC_CLASSDESC)
+		{
+			layout.name = utf();
+			skip(8); // serialVersionUID
+			layout.flags = u1();
+			layout.fieldTypes = new char[u2()];
+			for (int i = 0; i < layout.fieldTypes.length; i++)
+			{
+				layout.fieldTypes[i] = (char) u1();
+				skip(u2()); // field name
+				if (layout.fieldTypes[i] == 'L' || layout.fieldTypes[i] == '[') readContent(u1()); // field type name
+			}
+		}
+		else throw new StreamCorruptedException("expected a class descriptor, got 0x" + Integer.toHexString(tc & 0xFF));
+
+		skipCustomData(); // class annotation
+		layout.superLayout = readClassDesc(u1());
+		return layout;
+	}
+
+	private void readClassData(ClassLayout layout) throws StreamCorruptedException
+	{
+		if (layout == null) return;
+		readClassData(layout.superLayout); // superclass data comes first
+
+		if ((layout.flags & SC_EXTERNALIZABLE) != 0)
+		{
+			if ((layout.flags & SC_BLOCK_DATA) == 0)
+				throw new StreamCorruptedException("old externalizable format is not supported: " + layout.name);
+			skipCustomData();
+		}
+		else if ((layout.flags & SC_SERIALIZABLE) != 0)
+		{
+			for (char type : layout.fieldTypes)
+			{
+				if (type == 'L' || type == '[') readContent(u1());
+				else skip(primitiveSize(type));
+			}
+			if ((layout.flags & SC_WRITE_METHOD) != 0) skipCustomData();
+		}
+	}
+
+	// skips block data and objects until TC_ENDBLOCKDATA
+	private void skipCustomData() throws StreamCorruptedException
+	{
+		while (true)
+		{
+			byte tc = u1();
+			if      (tc == TC_ENDBLOCKDATA) return;
+			else if (tc == TC_BLOCKDATA) skip(u1() & 0xFF);
+			else if (tc == TC_BLOCKDATALONG) skip(s4());
+			else readContent(tc);
+		}
+	}
+
+	private Object handle(int wireHandle) throws StreamCorruptedException
+	{
+		int h = wireHandle - baseWireHandle;
+		List<Object> committed = reset ? new ArrayList<>() : handles;
+		if (h >= 0 && h < committed.size()) return committed.get(h);
+		h -= committed.size();
+		if (h >= 0 && h < newHandles.size()) return newHandles.get(h);
+		throw new StreamCorruptedException("invalid handle 0x" + Integer.toHexString(wireHandle));
+	}
+
+	private static int primitiveSize(char type) throws StreamCorruptedException
+	{
+		switch (type)
+		{
+			case 'B': case 'Z': return 1;
+			case 'C': case 'S': return 2;
+			case 'I': case 'F': return 4;
+			case 'J': case 'D': return 8;
+			default: throw new StreamCorruptedException("invalid field type '" + type + "'");
+		}
+	}
+
+	private byte peek()
+	{
+		if (pos >= limit) throw INCOMPLETE;
+		return buf[pos];
+	}
+
+	private byte u1()
+	{
+		byte b = peek();
+		pos++;
+		return b;
+	}
+
+	private int u2()
+	{
+		return ((u1() & 0xFF) << 8) | (u1() & 0xFF);
+	}
+
+	private int s4()
+	{
+		return (u2() << 16) | u2();
+	}
+
+	private long s8()
+	{
+		return ((long) s4() << 32) | (s4() & 0xFFFFFFFFL);
+	}
+
+	private String utf()
+	{
+		int length = u2();
+		int start = pos;
+		skip(length);
+		return new String(buf, start, length, StandardCharsets.UTF_8);
+	}
+
+	private void skip(long n)
+	{
+		if (n < 0) throw new IllegalStateException("negative length in stream");
+		if (n > limit - pos) throw INCOMPLETE;
+		pos += (int) n;
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.BitSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One poll in a group. The yes and no counts and whether the poll has closed are packed into
+ * one AtomicLong, so a vote is a single compareAndSet and no vote can be counted after the
+ * result has been taken.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Poll
+{
+	private static final long CLOSED = 1L << 63;
+	private static final long NO = 1L << 32; // no votes are counted in the high half, yes votes in the low
+	private static final long COUNT = 0x7fffffffL;
+
+	private final int id;
+	private final String question;
+	private final int seconds;
+	private final long endsAt; // epoch millis, so it survives a restart
+	private final AtomicLong tally = new AtomicLong();
+	private final BitSet voters = new BitSet(); // ids of who has voted. guarded by itself
+	private ScheduledFuture<?> deadline; // guarded by this
+
+	public Poll(int id, String question, int seconds)
+	{
+		this(id, question, seconds, System.currentTimeMillis() + seconds * 1000L, 0, 0, new BitSet());
+	}
+
+	// a poll read back from a Snapshot
+	public Poll(int id, String question, int seconds, long endsAt, int yes, int no, BitSet voters)
+	{
+		this.id = id;
+		this.question = question;
+		this.seconds = seconds;
+		this.endsAt = endsAt;
+		tally.set((yes & COUNT) | ((no & COUNT) * NO));
+		this.voters.or(voters);
+	}
+
+	public int getID()
+	{
+		return id;
+	}
+
+	public String getQuestion()
+	{
+		return question;
+	}
+
+	public int getSeconds()
+	{
+		return seconds;
+	}
+
+	public long getEndsAt()
+	{
+		return endsAt;
+	}
+
+	// a copy of the ids of who has voted
+	public BitSet getVoters()
+	{
+		synchronized (voters)
+		{
+			return (BitSet) voters.clone();
+		}
+	}
+
+	public int getYesVotes()
+	{
+		return (int) (tally.get() & COUNT);
+	}
+
+	public int getNoVotes()
+	{
+		return (int) ((tally.get() >>> 32) & COUNT);
+	}
+
+	public int getVoteCount()
+	{
+		long t = tally.get();
+		return (int) (t & COUNT) + (int) ((t >>> 32) & COUNT);
+	}
+
+	public boolean isClosed()
+	{
+		return (tally.get() & CLOSED) != 0;
+	}
+
+	// returns false if they already voted or the poll has closed
+	public boolean vote(boolean yes, int userID)
+	{
+		synchronized (voters)
+		{
+			if (voters.get(userID)) return false;
+			voters.set(userID);
+		}
+		long add = yes ? 1 : NO;
+		while (true)
+		{
+			long t = tally.get();
+			if ((t & CLOSED) != 0) return false;
+			if (tally.compareAndSet(t, t + add)) return true;
+		}
+	}
+
+	// stops counting votes. returns false if it was already closed
+	public boolean close()
+	{
+		if ((tally.getAndUpdate(t -> t | CLOSED) & CLOSED) != 0) return false;
+		synchronized (this)
+		{
+			if (deadline != null) deadline.cancel(false);
+		}
+		return true;
+	}
+
+	// the timer task that will close the poll. cancelled if the poll closes first
+	public synchronized void setDeadline(ScheduledFuture<?> f)
+	{
+		deadline = f;
+		if (isClosed()) f.cancel(false);
+	}
+}
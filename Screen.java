@@ -0,0 +1,179 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Draws the client's incoming messages. The thread reading from the server formats each
+ * message into a line and add()s it, which only puts it on a list. The screen's own thread
+ * wakes up at most FRAMES_PER_SECOND times a second and draws everything that came in since
+ * the last frame with one write and one flush, so a flood of messages costs a few large
+ * writes a second instead of a handful of escape sequences and a flush per message.
+ *
+ * Every line goes into a scrollback buffer of the last SCROLLBACK lines. When more than
+ * MAX_LINES_PER_FRAME arrive in one frame only the newest are drawn, with a note saying how
+ * many were left out; 'scroll' draws them from the scrollback.
+ *
+ * The prompt stays on the bottom line: a frame erases it, draws the new lines above it and
+ * draws it again.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Screen implements Runnable
+{
+	public static final int FRAMES_PER_SECOND = 30;
+	public static final int MAX_LINES_PER_FRAME = 100;
+	public static final int SCROLLBACK = 5000;
+	private static final String ERASE_PROMPT = "\033[2K\033[1A\033[2K"; // the prompt and the blank line above it
+	private static final String PROMPT = "\n> ";
+	private static final String DIM = "\u001B[2m";
+	private static final String RESET = "\u001B[0m";
+
+	private final OutputStream out;
+	private final Charset charset = Charset.defaultCharset();
+	private final ReentrantLock lock = new ReentrantLock(); // guards pending and scrollRequest
+	private List<String> pending = new ArrayList<>();
+	private int scrollRequest; // lines of scrollback to draw on the next frame
+	private final ReentrantLock drawing = new ReentrantLock(); // one frame at a time. guards scrollback and out
+	private final String[] scrollback = new String[SCROLLBACK];
+	private long lines; // lines ever added to the scrollback
+	private long frames;
+	private volatile boolean keepRunning;
+	private Thread controlThread;
+
+	public Screen(OutputStream out)
+	{
+		this.out = new BufferedOutputStream(out, 64 * 1024);
+	}
+
+	// called for every message, so it does as little as it can
+	public void add(String line)
+	{
+		lock.lock();
+		try
+		{
+			pending.add(line);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	// draws the last n lines again on the next frame
+	public void scroll(int n)
+	{
+		lock.lock();
+		try
+		{
+			scrollRequest = Math.max(1, Math.min(n, SCROLLBACK));
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public long getFrames()
+	{
+		return frames;
+	}
+
+	public void run()
+	{
+		long frameNanos = 1_000_000_000L / FRAMES_PER_SECOND;
+		long next = System.nanoTime();
+		while (keepRunning)
+		{
+			next += frameNanos;
+			long wait = next - System.nanoTime();
+			if (wait > 0) LockSupport.parkNanos(wait);
+			else next = System.nanoTime(); // a slow frame. don't try to catch up
+			draw();
+		}
+	}
+
+	// draws whatever is waiting. public so the last messages can be drawn before the client exits
+	public void draw()
+	{
+		drawing.lock();
+		try
+		{
+			drawFrame();
+		}
+		finally
+		{
+			drawing.unlock();
+		}
+	}
+
+	private void drawFrame()
+	{
+		List<String> batch;
+		int scroll;
+		lock.lock();
+		try
+		{
+			if (pending.isEmpty() && scrollRequest == 0) return;
+			batch = pending;
+			pending = new ArrayList<>(Math.max(16, batch.size()));
+			scroll = scrollRequest;
+			scrollRequest = 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		StringBuilder sb = new StringBuilder(ERASE_PROMPT);
+		int shown = Math.min(batch.size(), MAX_LINES_PER_FRAME);
+		if (batch.size() > shown)
+		{
+			int skipped = batch.size() - shown;
+			sb.append(PROMPT).append(DIM).append("... ").append(skipped).append(" earlier messages not shown. 'scroll [n]' shows the last n")
+				.append(RESET).append('\n');
+		}
+		for (int i = batch.size() - shown; i < batch.size(); i++) sb.append(PROMPT).append(batch.get(i)).append('\n');
+		for (String line : batch) scrollback[(int) (lines++ % SCROLLBACK)] = line;
+
+		if (scroll > 0)
+		{
+			long from = Math.max(lines - scroll, Math.max(0, lines - SCROLLBACK));
+			sb.append(PROMPT).append(DIM).append("----- the last ").append(lines - from).append(" messages -----").append(RESET).append('\n');
+			for (long l = from; l < lines; l++) sb.append(PROMPT).append(scrollback[(int) (l % SCROLLBACK)]).append('\n');
+		}
+		sb.append(PROMPT);
+
+		try
+		{
+			out.write(sb.toString().getBytes(charset));
+			out.flush();
+		}
+		catch (IOException e)
+		{
+		}
+		frames++;
+	}
+
+	public void start()
+	{
+		if (controlThread == null)
+		{
+			keepRunning = true;
+			controlThread = new Thread(this, "screen");
+			controlThread.setDaemon(true);
+			controlThread.start();
+		}
+	}
+
+	// draws anything still waiting and stops
+	public void stop()
+	{
+		keepRunning = false;
+		draw();
+	}
+}
@@ -1,12 +1,24 @@
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Server class for Terminal Chat. This will accept new connections and dispatch them to ConnectionHandlers.
@@ -16,64 +28,229 @@ import java.util.Scanner;
 public class Server implements Runnable
 {
 	public static final int PORT = 5045;
+	private static final int LIMIT_CHECK_EVERY = 32; // group messages between checks of the members' mailbox limits
 	public volatile boolean keepRunning;
-    private Map<String, Integer> userIDs; // userName : id
+	private UserNames users; // userName : id, and back
     private Map<String, Group> groups; // groupName : Group
-	private Map<Integer, List<Message>> messages; // id : [messages intended for them]
+	private IdMap<Mailbox> messages; // id : messages intended for them
+	private IdMap<ConnectionHandler> handlers; // id : handler of a connected user
+	private IdMap<Group[]> userGroups; // id : the groups they are in. copied on change, under its own lock
 	private Thread controlThread;
-	private ServerSocket ss;
+	private volatile ServerSocket ss;
+	private NioServer nio;
+	private MessageStore store; // offline messages. null if they are only kept in memory
+	private History history; // what was said, for the history and search commands. null if it is turned off
+	private Cluster cluster; // links to the other nodes. null unless --peers is given
+	private ServerConfig config;
+	private ThreadFactory connectionThreads; // makes the threads of every ConnectionHandler
+	private Metrics metrics = new Metrics();
+	private LongAdder messagesIn;
+	private Metrics.Histogram fanoutMembers;
+	private Metrics.Histogram fanoutNanos;
+	private LongAdder mailboxDropped; // messages thrown away because a mailbox was full
+	private LongAdder mailboxRejected;
+	private LongAdder mailboxSpilled;
+	private LongAdder mailboxDisconnects;
+	private AdminServer admin;
+	private FloodControl flood; // what users may ask for, and how fast
+	private ScheduledThreadPoolExecutor timer; // one thread runs the deadlines of every poll
+	private ScheduledThreadPoolExecutor snapshots; // takes a Snapshot every so often. null if they are turned off
+	private Metrics.Histogram snapshotNanos;
+	private final Object snapshotLock = new Object(); // one snapshot at a time. not this, which would hold up nextUserID
 	private int userID = 0;
 	
 	public Server()
 	{
-		userIDs = Collections.synchronizedMap(new HashMap<String, Integer>());
+		this(new ServerConfig());
+	}
+
+	public Server(ServerConfig config)
+	{
+		this.config = config;
+		Log.setLevel(config.logLevel);
+		connectionThreads = connectionThreads(config);
+		users = new UserNames();
 		groups = Collections.synchronizedMap(new HashMap<String, Group>());
-		messages = Collections.synchronizedMap(new HashMap<Integer, List<Message>>());
+		messages = new IdMap<>();
+		handlers = new IdMap<>();
+		userGroups = new IdMap<>();
+		messagesIn = metrics.counter("messages.in");
+		fanoutMembers = metrics.histogram("group.fanout.members");
+		fanoutNanos = metrics.histogram("group.fanout.nanos");
+		metrics.counter("polls.active");
+		mailboxDropped = metrics.counter("mailbox.dropped");
+		mailboxRejected = metrics.counter("mailbox.rejected");
+		mailboxSpilled = metrics.counter("mailbox.spilled");
+		mailboxDisconnects = metrics.counter("mailbox.disconnects");
+		metrics.gauge("users.connected", handlers::size);
+		metrics.gauge("users.known", users::size);
+		metrics.gauge("groups", groups::size);
+		metrics.gauge("mailbox.depth.max", this::largestMailbox);
+		timer = new ScheduledThreadPoolExecutor(1, r ->
+		{
+			Thread t = new Thread(r, "timer");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true); // polls that everyone voted on don't leave their deadline queued
+		if (config.storeDir != null)
+		{
+			try
+			{
+				store = new MessageStore(new File(config.storeDir), config.segmentMB << 20, config.maxSegments);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("unable to open the message store", e);
+			}
+		}
+		else if (config.mailboxPolicy == Mailbox.SPILL)
+			Log.warn("--mailbox-policy=spill needs --store. full mailboxes will drop their oldest messages instead");
+		if (config.historySize > 0) history = new History(config.historySize, metrics);
+		flood = new FloodControl(this);
 		addGroup("all", new LinkedList<String>());
+		snapshotNanos = metrics.histogram("snapshot.nanos");
+		if (config.snapshotFile != null) restore(new File(config.snapshotFile));
+		if (config.peers != null) cluster = new Cluster(this, config);
+	}
+
+	// puts back the users, groups and polls of the last snapshot, if there is one. before anyone can connect
+	private void restore(File file)
+	{
+		if (!file.exists()) return;
+		long start = System.nanoTime();
+		Snapshot s;
+		try
+		{
+			s = Snapshot.read(file);
+		}
+		catch (IOException e)
+		{
+			// moved aside so the next snapshot doesn't write over it
+			File damaged = new File(file.getPath() + ".damaged");
+			Log.warn("unable to read snapshot {}: {}. Starting without it. It was moved to {}", file, e.getMessage(), damaged);
+			file.renameTo(damaged);
+			return;
+		}
+
+		for (int i = 0; i < s.ids.length; i++)
+		{
+			messages.put(s.ids[i], new Mailbox(config.mailboxMax, config.mailboxMaxKB * 1024));
+			users.add(s.names[i], s.ids[i]);
+			userID = Math.max(userID, s.ids[i] + 1);
+		}
+		Group[] restored = new Group[s.groups.size()];
+		int[] counts = new int[userID]; // groups each user is in
+		for (int i = 0; i < restored.length; i++)
+		{
+			Snapshot.GroupState gs = s.groups.get(i);
+			Group g = restored[i] = new Group(gs.name, this);
+			g.newerVersion(gs.version, gs.versionNode);
+			g.addMembers(gs.members); // all at once. joining one at a time copies the members each time
+			for (int id : gs.members)
+			{
+				Mailbox mb = messages.get(id);
+				if (mb == null) continue;
+				mb.follow(g.getLog(), id);
+				counts[id]++;
+			}
+			groups.put(gs.name, g);
+			g.restorePolls(gs.lastPollID, gs.polls); // after, since a poll that is already over announces its result to the group
+		}
+
+		// userGroups in one go, rather than copying a user's array once per group they are in
+		Group[][] joined = new Group[counts.length][];
+		for (int i = 0; i < restored.length; i++)
+		{
+			for (int id : s.groups.get(i).members)
+			{
+				if (id >= counts.length || messages.get(id) == null) continue;
+				if (joined[id] == null) joined[id] = new Group[counts[id]];
+				joined[id][--counts[id]] = restored[i];
+			}
+		}
+		for (int id = 0; id < joined.length; id++) if (joined[id] != null) userGroups.put(id, joined[id]);
+		Log.info("restored {} users and {} groups from snapshot {} in {} ms", s.ids.length, s.groups.size(), file,
+			(System.nanoTime() - start) / 1_000_000);
+	}
+
+	// saves the users, groups and polls. runs alongside everything else. returns the size of the file, or -1 if it failed
+	public long snapshot()
+	{
+		if (config.snapshotFile == null) return -1;
+		synchronized (snapshotLock)
+		{
+			long start = System.nanoTime();
+			List<Group> known;
+			synchronized (groups)
+			{
+				known = new ArrayList<>(groups.values());
+			}
+			try
+			{
+				long bytes = Snapshot.write(new File(config.snapshotFile), users, known);
+				snapshotNanos.record(System.nanoTime() - start);
+				Log.debug("took a snapshot of {} users and {} groups ({} bytes)", users.size(), known.size() - 1, bytes);
+				return bytes;
+			}
+			catch (IOException e)
+			{
+				Log.warn("unable to take a snapshot: {}", e.getMessage());
+				return -1;
+			}
+		}
 	}
 
 	public void addUser(String userName, ConnectionHandler ch, int userID)
 	{
 		// they haven't connected or been mentioned before
-		if (!userIDs.containsKey(userName))
+		int id = users.id(userName);
+		if (id < 0)
 		{
-		    userIDs.put(userName, userID);
-		    messages.put(userID, new LinkedList<Message>());
-		    System.out.println("SERVER: added new user " + userName + "[id:" + userID + "]");
+		    messages.put(userID, new Mailbox(config.mailboxMax, config.mailboxMaxKB * 1024)); // before the name so nobody finds the id without a mailbox
+		    id = users.add(userName, userID); // someone else's id if they added the name first
+		    if (id != userID) messages.remove(userID);
+		    else Log.info("added new user {}[id:{}]", userName, userID);
 		}
-		else // they are a returning user or have already been messaged
+		if (id != userID) // they are a returning user or have already been messaged
 		{
-		    userID = userIDs.get(userName);
-		    ch.setID(userID); // update the connectionhandler's id
-		    System.out.println("SERVER: adding existing user " + userName + "[id:" + userID + "]");
+		    userID = id;
+		    if (ch != null) ch.setID(userID); // update the connectionhandler's id
+		    Log.info("adding existing user {}[id:{}]", userName, userID);
 		}
 	
 		// add them to the 'all' group if they are actually online
 		if (ch != null)
 		{
-			System.out.println("SERVER: adding " + userName + " to 'all' group");
-			groups.get("all").addMember(userName, userID);
+			Log.debug("adding {} to 'all' group", userName);
+			handlers.put(userID, ch); // first, so this node is their home when they join
+			joinGroup(groups.get("all"), userName, userID);
+			if (cluster != null)
+			{
+				cluster.userOnline(userName);
+				rehome(userName);
+			}
 		}
     }
 
     public void addGroup(String groupName, List<String> memberNames)
     {
-		Map<Integer, String> members = Collections.synchronizedMap(new HashMap<>());
+		Group g = new Group(groupName, this);
 
-		// add members to members map
+		// add members to the group
 		for (String name : memberNames) 
 		{
 			// if a user doesn't exist yet, add them
-			if (!userIDs.containsKey(name)) addUser(name, null, userID++);
-			members.put(userIDs.get(name), name);
+			if (!users.contains(name)) addUser(name, null, nextUserID());
+			joinGroup(g, name, users.id(name));
 
 			// SERVER will notify people that they've been added to the group. first member name is creator
 			addMessage(new Message("SERVER", name, 
 						"you were added to the " + groupName + " group by " + memberNames.get(0)));
 		}
-        groups.put(groupName, new Group(groupName, members, this));
-		System.out.println("SERVER: created group " + groupName + " with " 
-			+ memberNames.size() + " members: " + memberNames);
+        groups.put(groupName, g);
+		publishGroup(g);
+		Log.info("created group {} with {} members: {}", groupName, memberNames.size(), memberNames);
 	}
 	
 	public void addUserToGroup(int senderID, String currentMemberName, String groupName, String newMemberName)
@@ -81,12 +258,13 @@ public class Server implements Runnable
 		Group g = groups.get(groupName);
 
 		// we don't know this newMemberName. let's add them
-		if (!userIDs.containsKey(newMemberName)) addUser(newMemberName, null, userID++);
+		if (!users.contains(newMemberName)) addUser(newMemberName, null, nextUserID());
 
 		// check if the person trying to add newMemberName is in the group
-		if (g.getMembers().keySet().contains(senderID))
+		if (g.isMember(senderID))
 		{
-			g.addMember(newMemberName, userIDs.get(newMemberName));
+			joinGroup(g, newMemberName, users.id(newMemberName));
+			publishGroup(g);
 			addMessage(new Message("SERVER", newMemberName, 
 					"You have been added to the '" + groupName + "' group by " + currentMemberName));
 		}
@@ -97,25 +275,103 @@ public class Server implements Runnable
 		Group g = groups.get(groupName);
 
 		// cannot leave 'all' group. check if the person trying to add newMemberName is in the group
-		if (!groupName.equals("all") && g.getMembers().keySet().contains(userID))
+		if (!groupName.equals("all") && g.isMember(userID))
 		{
-			g.removeMember(userID);
+			partGroup(g, userID);
+			publishGroup(g);
 			addMessage(new Message("SERVER", name, "You have left the '" + groupName + "' group"));
 		}
 	}
 
+	// members read group messages from the group's log, so their mailbox has to follow it
+	// in a cluster only the member's home node follows the log
+	// every membership change goes through these, so userGroups stays in step with the groups
+	private void joinGroup(Group g, String name, int id)
+	{
+		g.addMember(id);
+		indexJoin(id, g);
+		if (cluster == null || cluster.home(name, handlers.containsKey(id)) == cluster.getNode()) messages.get(id).follow(g.getLog(), id);
+	}
+
+	private void partGroup(Group g, int id)
+	{
+		g.removeMember(id);
+		indexPart(id, g);
+		messages.get(id).unfollow(g.getLog(), id);
+	}
+
+	private void indexJoin(int id, Group g)
+	{
+		synchronized (userGroups)
+		{
+			Group[] joined = userGroups.get(id);
+			if (joined == null) joined = new Group[0];
+			for (Group j : joined) if (j == g) return;
+			joined = Arrays.copyOf(joined, joined.length + 1);
+			joined[joined.length - 1] = g;
+			userGroups.put(id, joined);
+		}
+	}
+
+	private void indexPart(int id, Group g)
+	{
+		synchronized (userGroups)
+		{
+			Group[] joined = userGroups.get(id);
+			if (joined == null) return;
+			for (int i = 0; i < joined.length; i++)
+			{
+				if (joined[i] != g) continue;
+				Group[] left = new Group[joined.length - 1];
+				System.arraycopy(joined, 0, left, 0, i);
+				System.arraycopy(joined, i + 1, left, i, left.length - i);
+				if (left.length == 0) userGroups.remove(id);
+				else userGroups.put(id, left);
+				return;
+			}
+		}
+	}
+
     public void removeUser(int userID)
     {
-		String name = groups.get("all").getMembers().get(userID);
-		if (name == null) return;
-		groups.get("all").removeMember(userID);
-		System.out.println("SERVER: user:" + name + " has disconnected. They have been removed from 'all'");
+		if (!groups.get("all").isMember(userID)) return;
+		String name = users.name(userID);
+		partGroup(groups.get("all"), userID);
+		handlers.remove(userID);
+		Log.info("user:{} has disconnected. They have been removed from 'all'", name);
+		if (cluster != null)
+		{
+			cluster.userOffline(name);
+			rehome(name);
+		}
     }
 
+	// tells the other nodes who is in a group now
+	private void publishGroup(Group g)
+	{
+		if (cluster == null || g.getName().equals("all")) return;
+		long version = g.nextVersion(cluster.getNode());
+		cluster.publishGroup(g.getName(), version, memberNames(g));
+	}
+
+	private List<String> memberNames(Group g)
+	{
+		return userNames(g.getMembers());
+	}
+
+	// the names of the ids in the set
+	private List<String> userNames(IdSet.View ids)
+	{
+		List<String> names = new ArrayList<>(ids.size());
+		for (int id = ids.next(-1); id >= 0; id = ids.next(id)) names.add(users.name(id));
+		return names;
+	}
+
 	public void addMessage(Message m)
 	{
 		String recipient = m.receiver;
 		String sender = m.sender;
+		messagesIn.increment();
 
         // check if this is a group message
         if (groups.containsKey(recipient))
@@ -123,7 +379,8 @@ public class Server implements Runnable
 			Group g = groups.get(recipient);
 
 			// users can only message groups that they are in. SERVER can send to anyone
-			if (!sender.equals("SERVER") && !g.getMembers().containsKey(userIDs.get(sender)))
+			int from = users.id(sender); // -1 for SERVER, which has no id
+			if (!sender.equals("SERVER") && !g.isMember(from))
 			{
 				addMessage(new Message("SERVER", sender, 
 						"you do not have permission to message the " + recipient + " group."));
@@ -131,38 +388,345 @@ public class Server implements Runnable
 			}
 
 			// recipient is the groupName
-			m.sender = "[" + recipient + "] " + m.sender;
-			Map<Integer, String> members = g.getMembers();
-			
-			// iterate through group members, messaging everyone except the sender
-			for (Integer id : members.keySet())
-			{
-				if (members.get(id).equals(sender)) continue;
-				messages.get(id).add(m);
-			}
-			System.out.println("SERVER: " + sender + " messaged the '" + recipient + "' group: " 
-				+ g.getMembers().values());
+			remember(recipient, sender, recipient, m.content);
+			// a new message rather than changing m, which may already have been sent (and its frame encoded) as the sender's echo
+			m = new Message("[" + recipient + "] " + sender, recipient, m.content);
+			IdSet.View ids = fanOut(g, from, sender, m);
+			if (cluster != null) cluster.sendGroupMessage(homes(g, ids), recipient, sender, m);
         }
         else // not a group message. let's add the message to the user's list
         {
             // we don't know this reciever. let's add them
-            if (!userIDs.containsKey(recipient)) addUser(recipient, null, userID++);
+            if (!users.contains(recipient)) addUser(recipient, null, nextUserID());
 
-            int receiverID = userIDs.get(recipient);
-			messages.get(receiverID).add(m);
-			System.out.println("SERVER: " + m.sender + " messaged " + recipient);
+            int receiverID = users.id(recipient);
+			remember(null, sender, recipient, m.content);
+			if (cluster != null)
+			{
+				int home = cluster.home(recipient, handlers.containsKey(receiverID));
+				if (home != cluster.getNode())
+				{
+					cluster.deliver(home, m, 0);
+					Log.debug("{} messaged {} on node {}", m.sender, recipient, home);
+					return;
+				}
+			}
+			deliver(m, sender, recipient, receiverID);
         }
 	}
+
+	// adds a message to the history. indexing happens later on the history's own thread
+	private void remember(String group, String sender, String receiver, String content)
+	{
+		if (history != null && !sender.equals("SERVER")) history.record(group, sender, receiver, content);
+	}
+
+	// puts a direct message in the recipient's mailbox, or the store if they are offline
+	private void deliver(Message m, String sender, String recipient, int receiverID)
+	{
+		if (!storeOffline(recipient, receiverID, m))
+		{
+			Mailbox mb = messages.get(receiverID);
+			if (config.mailboxPolicy == Mailbox.REJECT && !mb.hasRoom())
+			{
+				rejected(sender, recipient, new int[] { receiverID });
+				return;
+			}
+			mb.add(m);
+			if (config.mailboxPolicy != Mailbox.REJECT && mb.overLimit()) overflow(receiverID, recipient, mb);
+		}
+		notifyUser(receiverID);
+		Log.debug("{} messaged {}", m.sender, recipient);
+	}
+
+	// stores a group message once in the group's log and wakes the members who read it here. returns the members' ids
+	private IdSet.View fanOut(Group g, int from, String sender, Message m)
+	{
+		// the members as they are now. nothing is locked or copied, so waking them can't pin a virtual thread
+		long start = System.nanoTime();
+		IdSet.View ids = g.getMembers();
+
+		// the message is stored once in the group's log. members read it from there
+		int[] full = (config.mailboxPolicy == Mailbox.REJECT) ? fullMailboxes(ids, from) : null;
+		long position = g.getLog().append(Mailbox.nextSequence(), from, m, full);
+		if (full != null) rejected(sender, g.getName(), full);
+
+		// wake everyone except the sender who is online so they read it. checking every member's
+		// limit costs more than the rest of the fan out, so it is only done every so often and a
+		// mailbox can go over by a few group messages. rejecting has already kept them from growing
+		boolean limit = config.mailboxPolicy != Mailbox.REJECT && position % LIMIT_CHECK_EVERY == 0;
+		for (int id = ids.next(-1); id >= 0; id = ids.next(id))
+		{
+			if (id == from) continue;
+			Mailbox mb = messages.get(id);
+			if (limit && mb != null && mb.overLimit()) overflow(id, users.name(id), mb);
+			notifyUser(id);
+		}
+		fanoutNanos.record(System.nanoTime() - start);
+		fanoutMembers.record(ids.size());
+		Log.debug("{} messaged the '{}' group ({} members)", sender, g.getName(), ids.size());
+		return ids;
+	}
+
+	// the nodes that are home to at least one of the members. every node is for 'all', whose
+	// members are the users connected to each node
+	private BitSet homes(Group g, IdSet.View ids)
+	{
+		if (g.getName().equals("all")) return cluster.liveNodes();
+		BitSet nodes = new BitSet();
+		for (int id = ids.next(-1); id >= 0; id = ids.next(id))
+		{
+			String name = users.name(id);
+			if (name != null) nodes.set(cluster.home(name, handlers.containsKey(id)));
+		}
+		return nodes;
+	}
+
+	// the members whose mailboxes have no room for another message, or null if there are none
+	private int[] fullMailboxes(IdSet.View ids, int from)
+	{
+		int[] full = null;
+		int n = 0;
+		for (int id = ids.next(-1); id >= 0; id = ids.next(id))
+		{
+			Mailbox mb = messages.get(id);
+			if (id == from || mb == null || mb.hasRoom()) continue;
+			if (full == null) full = new int[ids.size()];
+			full[n++] = id;
+		}
+		return (full == null) ? null : Arrays.copyOf(full, n);
+	}
+
+	// tells the sender who didn't get their message under the reject policy
+	private void rejected(String sender, String recipient, int[] ids)
+	{
+		mailboxRejected.add(ids.length);
+		if (sender.equals("SERVER")) return; // nobody to tell, and telling them could overflow another mailbox
+		List<String> who = new ArrayList<>();
+		for (int i = 0; i < Math.min(ids.length, 10); i++) who.add(users.name(ids[i]));
+		if (ids.length > 10) who.add("and " + (ids.length - 10) + " more");
+		addMessage(new Message("SERVER", sender, "Your message to " + recipient + " was not delivered to "
+			+ String.join(", ", who) + ". Their mailbox is full."));
+	}
+
+	// a mailbox has gone over its limit. what happens depends on --mailbox-policy
+	private void overflow(int id, String name, Mailbox mb)
+	{
+		ConnectionHandler ch = handlers.get(id);
+		if (config.mailboxPolicy == Mailbox.DISCONNECT && ch != null && ch.isSending())
+		{
+			// closing the socket also frees a sender that is stuck writing to a client that stopped reading
+			mailboxDisconnects.increment();
+			Log.info("disconnecting {}: their mailbox is full", name);
+			ch.drop();
+		}
+
+		long maxCount = (config.mailboxMax > 0) ? config.mailboxMax : Long.MAX_VALUE;
+		long maxBytes = (config.mailboxMaxKB > 0) ? config.mailboxMaxKB * 1024 : Long.MAX_VALUE;
+		if (config.mailboxPolicy == Mailbox.SPILL && store != null && name != null)
+		{
+			// spill down to half the limit so a consumer that stays slow doesn't spill on every message
+			synchronized (mb) // keeps the spilled messages in order if two threads overflow the same mailbox
+			{
+				List<Message> spill = mb.trim(maxCount / 2, maxBytes / 2);
+				for (Message m : spill)
+				{
+					try
+					{
+						if (store.append(name, m))
+						{
+							mailboxSpilled.increment();
+							continue;
+						}
+					}
+					catch (IOException e)
+					{
+						Log.warn("unable to spill a message for {}: {}", name, e.getMessage());
+					}
+					mailboxDropped.increment();
+				}
+			}
+			return;
+		}
+
+		List<Message> dropped = mb.trim(maxCount, maxBytes);
+		mailboxDropped.add(dropped.size());
+		Log.debug("dropped {} messages from the full mailbox of {}", dropped.size(), name);
+	}
 	
-	// returns true if the poll was created
-	public boolean createPoll(String groupName, String question, int userID)
+	// returns true if the recipient isn't connected and the message went to the MessageStore
+	private boolean storeOffline(String recipient, int id, Message m)
+	{
+		if (store == null || handlers.containsKey(id)) return false;
+		try
+		{
+			return store.append(recipient, m);
+		}
+		catch (IOException e)
+		{
+			Log.warn("unable to store a message for {}: {}", recipient, e.getMessage());
+			return false;
+		}
+	}
+
+	// wake the connection of an online user so the new message is sent right away
+	private void notifyUser(int id)
+	{
+		ConnectionHandler ch = handlers.get(id);
+		if (ch != null) ch.messagesWaiting();
+	}
+	
+	/**
+	 * Moves a user's mailbox to their home node. Called whenever the node they are connected to,
+	 * or the set of nodes that are up, changes. The home follows the logs of their groups; any
+	 * other node stops following them and hands on whatever was waiting.
+	 */
+	private void rehome(String name)
+	{
+		int id = users.id(name);
+		if (id < 0) return;
+		Mailbox mb = messages.get(id);
+		List<Group> joined = groupsOf(id);
+		int home = cluster.home(name, handlers.containsKey(id));
+		if (home == cluster.getNode())
+		{
+			for (Group g : joined) mb.follow(g.getLog(), id);
+			return;
+		}
+
+		List<Message> waiting;
+		synchronized (mb) // keeps a second move from overtaking this one
+		{
+			waiting = takeMessages(id, name);
+			for (Group g : joined) mb.unfollow(g.getLog(), id);
+		}
+		if (waiting.isEmpty()) return;
+		cluster.handoff(home, name, waiting);
+		Log.debug("handed {} messages for {} to node {}", waiting.size(), name, home);
+	}
+
+	// a user connected to another node
+	public void remoteOnline(String name, int node)
+	{
+		ConnectionHandler ch = handlers.get(users.id(name));
+		if (ch != null)
+		{
+			// the same name connected to two nodes at once. the node later in the list drops its connection
+			if (cluster.getNode() > node)
+			{
+				Log.info("{} also connected to node {}. disconnecting them here", name, node);
+				ch.drop();
+			}
+			return;
+		}
+		rehome(name);
+	}
+
+	public void remoteOffline(String name)
+	{
+		rehome(name);
+	}
+
+	// links to other nodes came up or went down, so some users have a new home
+	public void clusterChanged()
+	{
+		for (String name : users.names()) rehome(name);
+	}
+
+	// a node that has just linked up learns who is connected here and the groups we know
+	public void sendDirectory(int node)
+	{
+		for (String name : memberNames(groups.get("all"))) cluster.sendOnline(node, name);
+		List<Group> known;
+		synchronized (groups)
+		{
+			known = new ArrayList<>(groups.values());
+		}
+		for (Group g : known)
+		{
+			if (g.getName().equals("all")) continue;
+			cluster.sendGroup(node, g.getName(), g.getVersion(), g.getVersionNode(), memberNames(g));
+		}
+	}
+
+	// another node changed a group. the newest change wins, so nodes agree once the changes have spread
+	public void applyGroup(String groupName, long version, int node, List<String> memberNames)
+	{
+		if (groupName.equals("all")) return;
+		Group g = groups.computeIfAbsent(groupName, n -> new Group(n, this));
+		if (!g.newerVersion(version, node)) return;
+
+		for (String name : memberNames)
+		{
+			if (!users.contains(name)) addUser(name, null, nextUserID());
+			int id = users.id(name);
+			if (!g.isMember(id)) joinGroup(g, name, id);
+		}
+		Set<String> wanted = new HashSet<>(memberNames);
+		IdSet.View ids = g.getMembers();
+		for (int id = ids.next(-1); id >= 0; id = ids.next(id)) if (!wanted.contains(users.name(id))) partGroup(g, id);
+		Log.debug("group {} has {} members after a change from node {}", groupName, memberNames.size(), node);
+	}
+
+	// a direct message sent on another node to a user homed here
+	public void deliverFromPeer(Message m, int hops)
+	{
+		String recipient = m.receiver;
+		if (!users.contains(recipient)) addUser(recipient, null, nextUserID());
+		int receiverID = users.id(recipient);
+
+		// they moved while it was on its way
+		int home = cluster.home(recipient, handlers.containsKey(receiverID));
+		if (home != cluster.getNode() && hops < Cluster.MAX_HOPS)
+		{
+			cluster.deliver(home, m, hops + 1);
+			return;
+		}
+		remember(null, m.sender, recipient, m.content);
+		deliver(m, m.sender, recipient, receiverID);
+	}
+
+	// messages that were waiting on another node for a user who is now homed here
+	public void handoffFromPeer(String name, List<Message> msgs)
+	{
+		if (!users.contains(name)) addUser(name, null, nextUserID());
+		int id = users.id(name);
+		Mailbox mb = messages.get(id);
+		for (Message m : msgs) if (!storeOffline(name, id, m)) mb.add(m);
+		if (config.mailboxPolicy != Mailbox.REJECT && mb.overLimit()) overflow(id, name, mb);
+		Log.debug("{} messages for {} were handed over by another node", msgs.size(), name);
+
+		if (cluster.home(name, handlers.containsKey(id)) != cluster.getNode()) rehome(name); // moved again already
+		else notifyUser(id);
+	}
+
+	// a group message sent on another node. it goes in this node's copy of the group's log
+	public void groupMessageFromPeer(String groupName, String sender, Message m)
 	{
 		Group g = groups.get(groupName);
-		if (g.getMembers().containsKey(userID)) // make sure they are in the group
+		if (g == null)
 		{
-			if (g.getPollQuestion().length() > 0) return false; // there is already a poll
-			else g.addPoll(question);
-			return true;
+			Log.debug("message from {} for unknown group {} from another node", sender, groupName);
+			return;
+		}
+		remember(groupName, sender, groupName, m.content);
+		fanOut(g, -1, sender, m);
+	}
+
+	// runs task on the timer thread after the given number of seconds
+	public ScheduledFuture<?> schedule(Runnable task, int seconds)
+	{
+		return timer.schedule(task, seconds, TimeUnit.SECONDS);
+	}
+
+	// returns true if the poll was created. seconds <= 0 uses the default length
+	public boolean createPoll(String groupName, String question, int seconds, int userID)
+	{
+		Group g = groups.get(groupName);
+		if (g.isMember(userID)) // make sure they are in the group
+		{
+			if (seconds <= 0) seconds = config.pollSeconds;
+			return g.addPoll(question, Math.min(seconds, config.maxPollSeconds)) != null; // null if the group has too many polls open
 		}
 		return false; // the user with that userID is not in the group
 	}
@@ -173,37 +737,75 @@ public class Server implements Runnable
 		addMessage(new Message ("SERVER", groupName, message));
 	}
 
-	public boolean voteOnPoll(String groupName, boolean isYesVote, int userID)
+	// pollID 0 votes on the newest poll in the group
+	public boolean voteOnPoll(String groupName, boolean isYesVote, int pollID, int userID)
 	{
 		Group g = groups.get(groupName);
-		if (g.getMembers().containsKey(userID)) // make sure they are in the group
+		if (g.isMember(userID)) // make sure they are in the group
 		{
-			// if there is no poll or the voteOnPoll returns false (this means they already voted)
-			if (g.getPollQuestion().length() == 0 || !g.voteOnPoll(isYesVote, userID)) return false;
-			return true;
+			// false if there is no such poll or they already voted
+			return g.voteOnPoll(isYesVote, userID, pollID);
 		}
 		return false; // the user with that userID is not in the group 
 	}
 
 	public List<Message> getMessagesForUser(int userID)
 	{
-        LinkedList<Message> msgs = new LinkedList<>();
-        if (!messages.get(userID).isEmpty()) 
-        {
-            msgs.addAll(messages.get(userID));
-            messages.get(userID).clear(); // clear the messages because we're about to send them
-        }
+		return takeMessages(userID, groups.get("all").isMember(userID) ? users.name(userID) : null);
+	}
+
+	private List<Message> takeMessages(int userID, String name)
+	{
+		Mailbox mb = messages.get(userID);
+		if (mb == null) return new LinkedList<>();
+		List<Message> msgs = mb.drain(); // takes the messages out because we're about to send them
+
+		// anything stored while they were offline is older, so it goes first
+		if (store != null && name != null && store.hasMail(name))
+		{
+			try
+			{
+				List<Message> stored = store.drain(name);
+				stored.addAll(msgs);
+				return stored;
+			}
+			catch (IOException e)
+			{
+				Log.warn("unable to read stored messages for {}: {}", name, e.getMessage());
+			}
+		}
 		return msgs;
 	}
 
+	/**
+	 * A page of what was said in a group, or to and by the user if groupName is null, from before
+	 * the cursor. null if history is turned off.
+	 */
+	public History.Page getHistory(String userName, String groupName, int n, long before)
+	{
+		if (history == null) return null;
+		return history.conversation((groupName == null) ? "@" + userName : "#" + groupName, n, before);
+	}
+
+	// a page of the messages the user can see that have every word of the query. null if history is turned off
+	public History.Page search(String userName, String query, int n, long before)
+	{
+		if (history == null) return null;
+		return history.search(query, userName, getGroupsForUser(userName), n, before);
+	}
+
+	// everyone connected to any node
 	public List<String> getConnectedUsers()
 	{
-		return new LinkedList<>(groups.get("all").getMembers().values());
+		List<String> users = new LinkedList<>(memberNames(groups.get("all")));
+		if (cluster != null) users.addAll(cluster.remoteUsers());
+		return users;
 	}
 
 	public List<String> getGroup(String groupName)
 	{
-		return new LinkedList<>(groups.get(groupName).getMembers().values());
+		if (groupName.equals("all")) return getConnectedUsers();
+		return new LinkedList<>(memberNames(groups.get(groupName)));
 	}
 
 	public List<String> getGroupNames()
@@ -213,12 +815,108 @@ public class Server implements Runnable
 
 	public List<String>getGroupsForUser(String user)
 	{
-		LinkedList<String> groupsListret = new LinkedList<String>();
-		for (Group g : groups.values())
+		List<String> names = new LinkedList<String>();
+		for (Group g : groupsOf(users.id(user))) names.add(g.getName());
+		return names;
+	}
+
+	// the groups the user is in. one array read, and the array is never changed once it is in userGroups
+	private List<Group> groupsOf(int id)
+	{
+		Group[] joined = userGroups.get(id);
+		return (joined == null) ? Collections.emptyList() : Arrays.asList(joined);
+	}
+
+	public boolean groupExists(String groupName)
+	{
+		return groups.containsKey(groupName);
+	}
+
+	public boolean isConnected(String userName)
+	{
+		return handlers.containsKey(users.id(userName)) || (cluster != null && cluster.isOnline(userName));
+	}
+
+	public boolean isMember(String groupName, String userName)
+	{
+		Group g = groups.get(groupName);
+		return g != null && g.isMember(users.id(userName));
+	}
+
+	// flood control for something a connected user asked for. false, and they have been told why, if they are over a limit.
+	// only a member's message or poll fans out, so a non-member is never charged to the group. otherwise anyone could
+	// keep a group's bucket empty. the command turns them away itself
+	public boolean allow(int userID, int action, String target)
+	{
+		Group g = groups.get(target);
+		if (g != null && !g.isMember(userID)) g = null;
+		return flood.allow(userID, users.name(userID), action, target, g);
+	}
+
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	// the metrics followed by the users with the most messages waiting
+	public String statsReport(int mailboxes)
+	{
+		List<Map.Entry<Integer, Long>> depths = new ArrayList<>();
+		for (int id = 0; id < messages.end(); id++)
+		{
+			Mailbox mb = messages.get(id);
+			if (mb != null) depths.add(Map.entry(id, mb.depth()));
+		}
+		depths.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+		StringBuilder sb = new StringBuilder(metrics.report());
+		sb.append("largest mailboxes:").append(System.lineSeparator());
+		for (Map.Entry<Integer, Long> e : depths.subList(0, Math.max(0, Math.min(mailboxes, depths.size()))))
+			sb.append(String.format("  %-26s %12d%n", users.name(e.getKey()), e.getValue()));
+		return sb.toString();
+	}
+
+	private long largestMailbox()
+	{
+		long max = 0;
+		for (Mailbox mb : messages.values()) max = Math.max(max, mb.depth());
+		return max;
+	}
+
+	public ServerConfig getConfig()
+	{
+		return config;
+	}
+
+	// unstarted thread for a ConnectionHandler or its MessageSender
+	public Thread newThread(Runnable r)
+	{
+		return connectionThreads.newThread(r);
+	}
+
+	private static ThreadFactory connectionThreads(ServerConfig config)
+	{
+		if (config.virtualThreads)
 		{
-			if (g.getMembers().containsValue(user)) groupsListret.add(g.getName());
+			try
+			{
+				// Thread.ofVirtual().factory(). looked up at runtime so the server still builds and runs on Java 17
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				Log.warn("virtual threads need Java 21 or later. Using platform threads");
+			}
 		}
-		return groupsListret;
+		long stackSize = config.stackKB * 1024L;
+		return r -> new Thread(null, r, "connection", stackSize);
+	}
+
+	// ids handed out to new connections and to users who are mentioned before they connect
+	public synchronized int nextUserID()
+	{
+		return userID++;
 	}
 
 	public void run()
@@ -226,14 +924,14 @@ public class Server implements Runnable
 		try
 		{
 			Socket s; 
-			ss = new ServerSocket(PORT);
+			ss = new ServerSocket(config.port);
 			ss.setSoTimeout(300000);
 			
 			while (keepRunning)
 			{
 				s = ss.accept();
-				System.out.println("SERVER: accepted a connection");
-                ConnectionHandler ch = new ConnectionHandler(s, this, userID++);
+				Log.debug("accepted a connection");
+                ConnectionHandler ch = new ConnectionHandler(s, this, nextUserID());
 				ch.start();
 			}
 			// controlThread = null;
@@ -245,6 +943,42 @@ public class Server implements Runnable
 	
 	public void start()
 	{
+		if (cluster != null)
+		{
+			try
+			{
+				cluster.start();
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("unable to listen for the other nodes of the cluster", e);
+			}
+		}
+		metrics.registerMBean("TerminalChat:type=Server,port=" + config.port);
+		if (config.snapshotFile != null && snapshots == null)
+		{
+			snapshots = new ScheduledThreadPoolExecutor(1, r ->
+			{
+				Thread t = new Thread(r, "snapshot");
+				t.setDaemon(true);
+				return t;
+			});
+			snapshots.scheduleWithFixedDelay(this::snapshot, config.snapshotSeconds, config.snapshotSeconds, TimeUnit.SECONDS);
+		}
+		if (config.adminPort > 0 && admin == null)
+		{
+			admin = new AdminServer(this, config.adminPort);
+			admin.start();
+		}
+		if (config.nio)
+		{
+			if (nio == null)
+			{
+				nio = new NioServer(this, config);
+				nio.start();
+			}
+			return;
+		}
 		if (controlThread == null)
 		{
 			keepRunning = true;
@@ -253,18 +987,102 @@ public class Server implements Runnable
 		}
 	}
 	
+	/**
+	 * Stops without losing messages. New connections are turned away, then every connected user
+	 * is sent what is waiting for them, all at once on their own connections, for up to
+	 * --shutdown-seconds. Anyone still receiving at the deadline is disconnected. Whatever is
+	 * left in a mailbox after that goes to the MessageStore, or to the user's new home node in a
+	 * cluster, and is only dropped if there is no store. The counts are logged.
+	 */
 	public void stop() throws InterruptedException
 	{
-		System.out.println("SERVER: Shutting down in 5 seconds.");
-		System.out.flush();
-		addMessage(new Message("SERVER", "all", "SHUTDOWN"));
-		Thread.sleep(5000); // wait for a second before stopping the server
+		long start = System.nanoTime();
+		Log.info("Shutting down. Connected users have {} seconds to receive their messages", config.shutdownSeconds);
 		keepRunning = false;
+		try
+		{
+			if (ss != null) ss.close(); // also gets the accept loop out of accept()
+		}
+		catch (IOException e)
+		{
+		}
+		if (nio != null) nio.stopAccepting();
+		LongAdder sent = metrics.counter("messages.out");
+		long sentBefore = sent.sum();
+
+		// only this node's users. the rest of the cluster carries on. each connection sends
+		// everything ahead of this in its mailbox and then closes
+		fanOut(groups.get("all"), -1, "SERVER", new Message("[all] SERVER", "all", "SHUTDOWN"));
+		long deadline = start + config.shutdownSeconds * 1_000_000_000L;
+		while (System.nanoTime() < deadline && !drained()) Thread.sleep(20);
+
+		int cutOff = 0;
+		for (int id = 0; id < handlers.end(); id++)
+		{
+			ConnectionHandler ch = handlers.get(id);
+			if (ch == null) continue;
+			if (ch.isClosed()) removeUser(id); // in a cluster this hands anything that arrived since to their new home
+			else
+			{
+				ch.drop();
+				cutOff++;
+			}
+		}
+		long delivered = sent.sum() - sentBefore;
+		if (nio != null) nio.stop();
+
+		// what is left: mail for users who were cut off or are offline, including group messages,
+		// which otherwise only live in memory
+		long persisted = 0;
+		long dropped = 0;
+		for (int id = 0; id < messages.end(); id++)
+		{
+			Mailbox mb = messages.get(id);
+			String name = users.name(id);
+			if (mb == null || name == null) continue;
+			for (Message m : mb.drain())
+			{
+				if (m.sender.equals("[all] SERVER") && m.content.equals("SHUTDOWN")) continue;
+				try
+				{
+					if (store != null && store.append(name, m))
+					{
+						persisted++;
+						continue;
+					}
+				}
+				catch (IOException e)
+				{
+					Log.warn("unable to store a message for {}: {}", name, e.getMessage());
+				}
+				dropped++;
+			}
+		}
+		Log.info("shut down in {} ms: {} messages delivered, {} persisted, {} dropped. {} users were cut off at the deadline",
+			(System.nanoTime() - start) / 1_000_000, delivered, persisted, dropped, cutOff);
+		if (dropped > 0 && store == null) Log.warn("{} messages were lost. --store keeps them for the next start", dropped);
+
+		if (cluster != null) cluster.stop();
+		if (snapshots != null) snapshots.shutdown();
+		snapshot();
+		if (history != null) history.stop();
+		if (store != null) store.close();
+		if (admin != null) admin.stop();
+		timer.shutdownNow();
+		metrics.unregisterMBean();
+		Log.flush(1000);
+	}
+
+	// every connected user's connection has sent everything and closed
+	private boolean drained()
+	{
+		for (ConnectionHandler ch : handlers.values()) if (!ch.isClosed()) return false;
+		return nio == null || nio.unflushed() == 0;
 	}
 
 	public static void main(String[] args) throws InterruptedException
 	{
-		Server s = new Server();
+		Server s = new Server(ServerConfig.parse(args));
 		s.start();
 		Scanner sc = new Scanner(System.in);
 		sc.nextLine();
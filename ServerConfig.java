@@ -0,0 +1,100 @@
+/**
+ * Startup options for the Terminal Chat server. Options are given on the command line
+ * as --name or --name=value, e.g. "java Server --nio --loops=4".
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class ServerConfig
+{
+	public int port = Server.PORT;
+	public boolean nio = false; // use the selector based NioServer instead of a thread per connection
+	public int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	public double commandRate = 50; // commands per second per connection. 0 turns the limit off
+	public int commandBurst = 100; // commands a connection may send at once before being limited
+	public double floodRate = 20; // tokens per second each user earns for messages, groups and polls. 0 turns the user limit off
+	public int floodBurst = 100; // tokens a user can save up
+	public int[] floodCosts = { 1, 2, 20, 10 }; // tokens taken for a direct message, a group message, creating or adding to a group, and a poll
+	public int groupRate = 100000; // deliveries per second one group's messages and polls may cause, a token per member. 0 turns the group limit off
+	public String storeDir = null; // keep offline messages in a MessageStore in this directory. null keeps them in memory
+	public int segmentMB = 64; // size of each MessageStore segment file
+	public int maxSegments = 16; // past this the oldest undelivered mail is copied forward
+	public boolean virtualThreads = false; // blocking mode runs each connection's threads as virtual threads (Java 21+)
+	public int stackKB = 0; // stack size of platform connection threads. 0 uses the JVM default
+	public int adminPort = 0; // localhost port that answers with the metrics report. 0 turns it off
+	public int logLevel = Log.INFO; // every message sent is logged at debug
+	public boolean tcpNoDelay = true; // send each flush right away. writes are coalesced before they reach the socket, so Nagle only adds delay
+	public int writeBufferKB = 8; // a connection's writes are buffered in this much memory. NIO mode stops delivering while more is unsent
+	public int socketBufferKB = 0; // SO_SNDBUF of client sockets. 0 leaves the OS default
+	public int compressionLevel = 1; // deflate level for clients that ask for compression, 1-9. 0 turns compression off
+	public int compressMinBytes = 128; // batches smaller than this are sent uncompressed
+	public long mailboxMax = 10000; // messages that may wait for one user. 0 is no limit
+	public long mailboxMaxKB = 4096; // and how much memory they may take up
+	public int mailboxPolicy = Mailbox.DROP_OLDEST; // what happens to a mailbox over its limit
+	public int pollSeconds = 30; // how long a poll stays open when the question doesn't say
+	public int maxPollSeconds = 3600; // longest a poll can be asked to stay open
+	public String snapshotFile = null; // users, groups and open polls are saved here and read back at startup. null turns snapshots off
+	public int snapshotSeconds = 60; // how often a snapshot is taken. one is also taken when the server stops
+	public int shutdownSeconds = 30; // how long stopping waits for connected users to receive what is waiting for them
+	public int historySize = 100000; // messages kept for the history and search commands. 0 turns history off
+	public String[] peers = null; // host:port of every node in the cluster, the same list on each. null runs on its own
+	public int node = 0; // this server's index in peers. it listens for the other nodes on that entry's port
+
+	public static ServerConfig parse(String[] args)
+	{
+		ServerConfig config = new ServerConfig();
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("Unknown argument '" + arg + "'");
+
+			String[] kv = arg.substring(2).split("=", 2);
+			String key = kv[0].toLowerCase();
+			String value = (kv.length > 1) ? kv[1] : "true";
+
+			if      (key.equals("port")) config.port = Integer.parseInt(value);
+			else if (key.equals("nio")) config.nio = Boolean.parseBoolean(value);
+			else if (key.equals("loops")) config.eventLoops = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("command-rate")) config.commandRate = Double.parseDouble(value);
+			else if (key.equals("command-burst")) config.commandBurst = Integer.parseInt(value);
+			else if (key.equals("flood-rate")) config.floodRate = Double.parseDouble(value);
+			else if (key.equals("flood-burst")) config.floodBurst = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("flood-costs")) config.floodCosts = parseCosts(value);
+			else if (key.equals("group-rate")) config.groupRate = Integer.parseInt(value);
+			else if (key.equals("store")) config.storeDir = value;
+			else if (key.equals("segment-mb")) config.segmentMB = Integer.parseInt(value);
+			else if (key.equals("max-segments")) config.maxSegments = Integer.parseInt(value);
+			else if (key.equals("threads")) config.virtualThreads = value.equalsIgnoreCase("virtual");
+			else if (key.equals("stack-kb")) config.stackKB = Integer.parseInt(value);
+			else if (key.equals("admin-port")) config.adminPort = Integer.parseInt(value);
+			else if (key.equals("log-level")) config.logLevel = Log.parseLevel(value);
+			else if (key.equals("tcp-nodelay")) config.tcpNoDelay = Boolean.parseBoolean(value);
+			else if (key.equals("write-buffer-kb")) config.writeBufferKB = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("socket-buffer-kb")) config.socketBufferKB = Integer.parseInt(value);
+			else if (key.equals("compression")) config.compressionLevel = Math.max(0, Math.min(9, Integer.parseInt(value)));
+			else if (key.equals("compress-min-bytes")) config.compressMinBytes = Integer.parseInt(value);
+			else if (key.equals("mailbox-max")) config.mailboxMax = Long.parseLong(value);
+			else if (key.equals("mailbox-max-kb")) config.mailboxMaxKB = Long.parseLong(value);
+			else if (key.equals("mailbox-policy")) config.mailboxPolicy = Mailbox.parsePolicy(value);
+			else if (key.equals("poll-seconds")) config.pollSeconds = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("max-poll-seconds")) config.maxPollSeconds = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("snapshot")) config.snapshotFile = value;
+			else if (key.equals("snapshot-seconds")) config.snapshotSeconds = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("shutdown-seconds")) config.shutdownSeconds = Math.max(0, Integer.parseInt(value));
+			else if (key.equals("history")) config.historySize = Integer.parseInt(value);
+			else if (key.equals("peers")) config.peers = value.split(",");
+			else if (key.equals("node")) config.node = Integer.parseInt(value);
+			else throw new IllegalArgumentException("Unknown option '--" + key + "'");
+		}
+		return config;
+	}
+
+	// "direct,group,change,poll", e.g. "1,2,20,10"
+	private static int[] parseCosts(String value)
+	{
+		String[] parts = value.split(",");
+		if (parts.length != 4) throw new IllegalArgumentException("--flood-costs needs four numbers: direct,group,change,poll");
+		int[] costs = new int[4];
+		for (int i = 0; i < 4; i++) costs[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+		return costs;
+	}
+}
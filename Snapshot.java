@@ -0,0 +1,266 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The server's directory at one point in time, so a restarted server comes back with the same
+ * users, ids, groups, members and open polls. Messages aren't in it; offline mail is the
+ * MessageStore's job.
+ *
+ * Taking one doesn't stop anything else. Names are only ever added and a group's members are an
+ * immutable IdSet.View, so write() reads them without locks while messages keep flowing. A
+ * change made while it runs may or may not be in it, and will be in the next one. The file is
+ * written beside the old one and renamed over it, so a crash part way through leaves the last
+ * good snapshot.
+ *
+ * Layout. var is an unsigned varint, 7 bits a byte, low bits first. str is a var byte length
+ * then UTF-8. Lists of ids are sorted and each is written as the gap from the one before.
+ *   int   MAGIC, byte VERSION, long when it was taken (epoch millis)
+ *   var   users, then per user: var id gap, str name
+ *   var   groups, then per group: str name, long version, var versionNode, var lastPollID,
+ *         var members, their ids, var polls, then per poll: var id, str question, var seconds,
+ *         long endsAt (epoch millis), var yes, var no, var voters, their ids
+ *   int   CRC32 of everything before it
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class Snapshot
+{
+	private static final int MAGIC = 0x54435344; // "TCSD"
+	private static final byte VERSION = 1;
+
+	public final long taken;
+	public final int[] ids; // ids[i] is names[i]'s, in order
+	public final String[] names;
+	public final List<GroupState> groups;
+
+	public static class GroupState
+	{
+		public final String name;
+		public final long version;
+		public final int versionNode;
+		public final int lastPollID;
+		public final int[] members;
+		public final List<Poll> polls;
+
+		GroupState(String name, long version, int versionNode, int lastPollID, int[] members, List<Poll> polls)
+		{
+			this.name = name;
+			this.version = version;
+			this.versionNode = versionNode;
+			this.lastPollID = lastPollID;
+			this.members = members;
+			this.polls = polls;
+		}
+	}
+
+	private Snapshot(long taken, int[] ids, String[] names, List<GroupState> groups)
+	{
+		this.taken = taken;
+		this.ids = ids;
+		this.names = names;
+		this.groups = groups;
+	}
+
+	// 'all' is left out. its members are whoever is connected. returns the size of the file
+	public static long write(File file, UserNames users, List<Group> groups) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileOutputStream fos = new FileOutputStream(tmp))
+		{
+			// buffered before the checksum so it is worked out a block at a time
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(System.currentTimeMillis());
+
+			// the members before the names. a user's name is added before they join anything, so
+			// every member written has a name written too
+			List<Group> saved = new ArrayList<>();
+			List<IdSet.View> members = new ArrayList<>();
+			for (Group g : groups)
+			{
+				if (g.getName().equals("all")) continue;
+				saved.add(g);
+				members.add(g.getMembers());
+			}
+
+			int end = users.end();
+			int[] ids = new int[end];
+			int count = 0;
+			for (int id = 0; id < end; id++) if (users.name(id) != null) ids[count++] = id;
+			writeVar(out, count);
+			int last = -1;
+			for (int i = 0; i < count; i++)
+			{
+				writeVar(out, ids[i] - last);
+				writeString(out, users.name(ids[i]));
+				last = ids[i];
+			}
+
+			writeVar(out, saved.size());
+			for (int i = 0; i < saved.size(); i++)
+			{
+				Group g = saved.get(i);
+				writeString(out, g.getName());
+				out.writeLong(g.getVersion());
+				writeVar(out, g.getVersionNode());
+				writeVar(out, g.getLastPollID());
+				IdSet.View view = members.get(i);
+				writeVar(out, view.size());
+				last = -1;
+				for (int id = view.next(-1); id >= 0; id = view.next(id))
+				{
+					writeVar(out, id - last);
+					last = id;
+				}
+
+				List<Poll> polls = new ArrayList<>();
+				for (Poll p : g.getPolls()) if (!p.isClosed()) polls.add(p);
+				writeVar(out, polls.size());
+				for (Poll p : polls)
+				{
+					writeVar(out, p.getID());
+					writeString(out, p.getQuestion());
+					writeVar(out, p.getSeconds());
+					out.writeLong(p.getEndsAt());
+					writeVar(out, p.getYesVotes());
+					writeVar(out, p.getNoVotes());
+					BitSet voters = p.getVoters();
+					writeVar(out, voters.cardinality());
+					last = -1;
+					for (int id = voters.nextSetBit(0); id >= 0; id = voters.nextSetBit(id + 1))
+					{
+						writeVar(out, id - last);
+						last = id;
+					}
+				}
+			}
+			out.flush();
+			out.writeInt((int) crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file.length();
+	}
+
+	// the whole file is read in one go and parsed from memory. throws IOException if it is damaged
+	public static Snapshot read(File file) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < 17) throw new IOException("snapshot " + file + " is too short");
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		if (in.getInt(bytes.length - 4) != (int) crc.getValue()) throw new IOException("snapshot " + file + " is damaged");
+		in.limit(bytes.length - 4);
+
+		try
+		{
+			if (in.getInt() != MAGIC) throw new IOException(file + " is not a snapshot");
+			byte version = in.get();
+			if (version != VERSION) throw new IOException("snapshot " + file + " is version " + version + ", expected " + VERSION);
+			long taken = in.getLong();
+
+			int count = readVar(in);
+			int[] ids = new int[count];
+			String[] names = new String[count];
+			int last = -1;
+			for (int i = 0; i < count; i++)
+			{
+				ids[i] = last += readVar(in);
+				names[i] = readString(in);
+			}
+
+			int groupCount = readVar(in);
+			List<GroupState> groups = new ArrayList<>(groupCount);
+			for (int g = 0; g < groupCount; g++)
+			{
+				String name = readString(in);
+				long groupVersion = in.getLong();
+				int versionNode = readVar(in);
+				int lastPollID = readVar(in);
+				int[] members = readIds(in);
+				int pollCount = readVar(in);
+				List<Poll> polls = new ArrayList<>(pollCount);
+				for (int p = 0; p < pollCount; p++)
+				{
+					int id = readVar(in);
+					String question = readString(in);
+					int seconds = readVar(in);
+					long endsAt = in.getLong();
+					int yes = readVar(in);
+					int no = readVar(in);
+					BitSet voters = new BitSet();
+					for (int voter : readIds(in)) voters.set(voter);
+					polls.add(new Poll(id, question, seconds, endsAt, yes, no, voters));
+				}
+				groups.add(new GroupState(name, groupVersion, versionNode, lastPollID, members, polls));
+			}
+			if (in.hasRemaining()) throw new IOException("snapshot " + file + " has " + in.remaining() + " bytes left over");
+			return new Snapshot(taken, ids, names, groups);
+		}
+		catch (RuntimeException e) // a count or length that runs off the end
+		{
+			throw new IOException("snapshot " + file + " is damaged", e);
+		}
+	}
+
+	private static int[] readIds(ByteBuffer in)
+	{
+		int[] ids = new int[readVar(in)];
+		int last = -1;
+		for (int i = 0; i < ids.length; i++) ids[i] = last += readVar(in);
+		return ids;
+	}
+
+	private static void writeVar(DataOutputStream out, int v) throws IOException
+	{
+		while ((v & ~0x7f) != 0)
+		{
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVar(ByteBuffer in)
+	{
+		int v = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0) return v;
+			if (shift >= 28) throw new IllegalStateException("varint too long");
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVar(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		int length = readVar(in);
+		String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+}
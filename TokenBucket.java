@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket. Tokens refill at a fixed rate up to a burst size. Instead of
+ * counting tokens the bucket stores the time at which it would be completely full again,
+ * so taking tokens is a single compareAndSet and there is no refill thread.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class TokenBucket
+{
+	private final long nanosPerToken;
+	private final long burstNanos; // how far ahead of now the full time may be
+	private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+	public TokenBucket(double tokensPerSecond, int burst)
+	{
+		if (tokensPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("rate and burst must be positive");
+		nanosPerToken = Math.max(1, (long) (1_000_000_000L / tokensPerSecond));
+		burstNanos = nanosPerToken * burst;
+	}
+
+	/**
+	 * Takes cost tokens if they are available. Returns 0 if they were taken, otherwise how
+	 * many nanoseconds to wait before there will be enough (nothing is taken in that case).
+	 */
+	public long tryAcquire(int cost)
+	{
+		long now = System.nanoTime();
+		long needed = Math.min(nanosPerToken * cost, burstNanos); // a cost above the burst size could never be paid
+		while (true)
+		{
+			long full = fullAt.get();
+			long next = Math.max(full, now) + needed;
+			long over = next - now - burstNanos;
+			if (over > 0) return over;
+			if (fullAt.compareAndSet(full, next)) return 0;
+		}
+	}
+
+	// puts back cost tokens taken by tryAcquire, when what they paid for didn't happen after all
+	public void release(int cost)
+	{
+		fullAt.addAndGet(-Math.min(nanosPerToken * cost, burstNanos));
+	}
+
+	// blocks until cost tokens have been taken
+	public void acquire(int cost) throws InterruptedException
+	{
+		long wait;
+		while ((wait = tryAcquire(cost)) > 0)
+			Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+	}
+}
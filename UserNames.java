@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Every user name the server knows and its id. A name is kept once, here, and everything else
+ * keeps the id; name(id) gives back the same String every time. Users are never forgotten, so
+ * names are only ever added.
+ *
+ * Looking a name up is open addressing on an int table: each slot holds an id (plus one, so 0 is
+ * empty), found by the name's hash and checked against the names array. It never locks or
+ * allocates. Adding locks, and the table is rebuilt at twice the size once it is half full.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class UserNames
+{
+	// both arrays are replaced together when either grows
+	private static final class Table
+	{
+		final AtomicIntegerArray slots;
+		final AtomicReferenceArray<String> names; // by id
+
+		Table(int slots, int names)
+		{
+			this.slots = new AtomicIntegerArray(slots);
+			this.names = new AtomicReferenceArray<>(names);
+		}
+	}
+
+	private volatile Table table = new Table(256, 128);
+	private volatile int size; // written under this
+
+	// the name's id, or -1 if it isn't known
+	public int id(String name)
+	{
+		Table t = table;
+		int mask = t.slots.length() - 1;
+		for (int i = hash(name) & mask; ; i = (i + 1) & mask)
+		{
+			int slot = t.slots.get(i);
+			if (slot == 0) return -1;
+			if (name.equals(t.names.get(slot - 1))) return slot - 1;
+		}
+	}
+
+	// null if nobody has the id
+	public String name(int id)
+	{
+		AtomicReferenceArray<String> names = table.names;
+		return (id >= 0 && id < names.length()) ? names.get(id) : null;
+	}
+
+	public boolean contains(String name)
+	{
+		return id(name) >= 0;
+	}
+
+	// gives the name the id unless it already has one. returns the name's id either way
+	public synchronized int add(String name, int id)
+	{
+		if (id < 0) throw new IllegalArgumentException("bad id " + id);
+		int known = id(name);
+		if (known >= 0) return known;
+		if (name(id) != null) throw new IllegalStateException("id " + id + " is already " + name(id));
+
+		Table t = table;
+		if ((size + 1) * 2 > t.slots.length() || id >= t.names.length())
+		{
+			t = grow(t, id, size + 1);
+			table = t;
+		}
+		// the name goes in before the slot, so a reader that finds the slot finds the name
+		t.names.set(id, name);
+		insert(t, name, id);
+		size++;
+		return id;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	// every id is below this
+	public int end()
+	{
+		return table.names.length();
+	}
+
+	// a copy, so it can be walked without holding anything
+	public List<String> names()
+	{
+		AtomicReferenceArray<String> names = table.names;
+		List<String> all = new ArrayList<>(size);
+		for (int id = 0; id < names.length(); id++)
+		{
+			String name = names.get(id);
+			if (name != null) all.add(name);
+		}
+		return all;
+	}
+
+	// a copy with room for count names and for id
+	private static Table grow(Table t, int id, int count)
+	{
+		int slots = t.slots.length();
+		while (count * 2 > slots) slots *= 2;
+		int names = t.names.length();
+		while (names <= id) names *= 2;
+		Table grown = new Table(slots, names);
+		for (int i = 0; i < t.names.length(); i++)
+		{
+			String name = t.names.get(i);
+			if (name == null) continue;
+			grown.names.set(i, name);
+			insert(grown, name, i);
+		}
+		return grown;
+	}
+
+	private static void insert(Table t, String name, int id)
+	{
+		int mask = t.slots.length() - 1;
+		int i = hash(name) & mask;
+		while (t.slots.get(i) != 0) i = (i + 1) & mask;
+		t.slots.set(i, id + 1);
+	}
+
+	// spreads the high bits down, since only the low ones pick the slot
+	private static int hash(String name)
+	{
+		int h = name.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,260 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary protocol for Terminal Chat. This replaces sending Java serialized Strings
+ * and Messages for clients that ask for it when they connect. Old clients that open an
+ * ObjectOutputStream keep using serialization.
+ *
+ * A client asks for the binary protocol by sending MAGIC followed by the version it wants
+ * before anything else. The server answers with MAGIC and the version it will use.
+ * From version 2 (DEFLATE_VERSION) the server may send DEFLATED frames, see Compression.
+ *
+ * After that every command is a frame:
+ *   int32 length    number of bytes that follow
+ *   u8    opcode    which command (CONNECT, MESSAGE, ...)
+ *   field ...       the command's arguments, as many as the command takes
+ *
+ * A field is a varint holding the UTF-8 byte length + 1 (0 means null) and then the bytes.
+ * A Message is sent as three fields: sender, receiver and content.
+ *
+ * Commands are decoded into the same objects the serialized protocol sends (the command
+ * name, then its arguments) so ConnectionHandler handles both protocols the same way.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class WireProtocol
+{
+	public static final byte[] MAGIC = { 'T', 'C', 'W', 'P' };
+	public static final byte VERSION = 2;
+	public static final byte DEFLATE_VERSION = 2; // the first version the server can send DEFLATED frames to
+	public static final int HANDSHAKE_LENGTH = MAGIC.length + 1;
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	// opcodes, indexed to match COMMANDS
+	public static final byte CONNECT = 1;
+	public static final byte MESSAGE = 2;
+	public static final byte DISCONNECT = 3;
+	public static final byte CREATE_GROUP = 4;
+	public static final byte POLL = 5;
+	public static final byte ADD_TO_GROUP = 6;
+	public static final byte LEAVE_GROUP = 7;
+	public static final byte MY_GROUPS = 8;
+	public static final byte LIST_MEMBERS = 9;
+	public static final byte HISTORY = 10;
+	public static final byte SEARCH = 11;
+	public static final byte DEFLATED = 64; // only sent by the server. frames compressed by Compression
+
+	private static final String[] COMMANDS = { null, "connect", "message", "disconnect", "creategroup",
+		"poll", "addtogroup", "leavegroup", "mygroups", "listmembers", "history", "search" };
+	private static final int[] ARG_COUNTS = { 0, 1, 1, 0, 2, 2, 2, 1, 0, 1, 1, 1 };
+
+	public static byte[] handshake(byte version)
+	{
+		byte[] hs = new byte[HANDSHAKE_LENGTH];
+		System.arraycopy(MAGIC, 0, hs, 0, MAGIC.length);
+		hs[MAGIC.length] = version;
+		return hs;
+	}
+
+	// the version the server answers a client's handshake with
+	public static byte agree(byte asked, boolean compression)
+	{
+		return (byte) Math.min(asked, compression ? VERSION : DEFLATE_VERSION - 1);
+	}
+
+	// true if the first bytes a client sent are the start of a binary handshake
+	public static boolean isHandshake(byte[] buf, int off, int len)
+	{
+		for (int i = 0; i < MAGIC.length && i < len; i++) if (buf[off + i] != MAGIC[i]) return false;
+		return true;
+	}
+
+	public static byte opcode(String command)
+	{
+		for (int i = 1; i < COMMANDS.length; i++) if (COMMANDS[i].equalsIgnoreCase(command)) return (byte) i;
+		return 0;
+	}
+
+	/**
+	 * Encodes a whole frame for a command. args are Strings, or a single Message for "message".
+	 */
+	public static byte[] encode(String command, Object... args)
+	{
+		byte op = opcode(command);
+		if (op == 0) throw new IllegalArgumentException("no opcode for command '" + command + "'");
+
+		// turn the arguments into the fields we need to write
+		List<String> fields = new ArrayList<>(3);
+		for (Object arg : args)
+		{
+			if (arg instanceof Message) addFields(fields, (Message) arg);
+			else fields.add((String) arg);
+		}
+		return encodeFields(op, fields);
+	}
+
+	// a Message is sent as three fields
+	public static void addFields(List<String> fields, Message m)
+	{
+		fields.add(m.sender);
+		fields.add(m.receiver);
+		fields.add(m.content);
+	}
+
+	/**
+	 * Encodes a frame with any opcode and any number of fields. Commands from clients use the
+	 * opcodes above. The cluster's peer links use their own.
+	 */
+	public static byte[] encodeFields(byte op, List<String> strings)
+	{
+		List<byte[]> fields = new ArrayList<>(strings.size());
+		for (String s : strings) fields.add(utf8(s));
+
+		int length = 1;
+		for (byte[] f : fields) length += varintSize(f == null ? 0 : f.length + 1) + (f == null ? 0 : f.length);
+
+		byte[] frame = new byte[4 + length];
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		frame[4] = op;
+		int pos = 5;
+		for (byte[] f : fields)
+		{
+			pos = writeVarint(frame, pos, f == null ? 0 : f.length + 1);
+			if (f == null) continue;
+			System.arraycopy(f, 0, frame, pos, f.length);
+			pos += f.length;
+		}
+		return frame;
+	}
+
+	// every field of a whole frame, whatever its opcode. the opcode is frame[4]
+	public static List<String> decodeFields(byte[] frame) throws StreamCorruptedException
+	{
+		List<String> fields = new ArrayList<>();
+		int[] pos = { 5 };
+		while (pos[0] < frame.length) fields.add(readField(frame, pos, frame.length));
+		return fields;
+	}
+
+	public static byte[] encodeMessage(Message m)
+	{
+		return encode("message", m);
+	}
+
+	/**
+	 * The frame for a message that may go to many connections, like a group message read from
+	 * its GroupLog. It is encoded once, the first time it is sent, and every connection after
+	 * that writes the same bytes, so nothing may change them or the message once it is sent.
+	 */
+	public static byte[] frame(Message m)
+	{
+		byte[] frame = m.frame;
+		if (frame == null) m.frame = frame = encodeMessage(m); // two threads may both encode it. either copy will do
+		return frame;
+	}
+
+	/**
+	 * Returns the length of the frame at buf[off..off+len) including its length prefix, or -1
+	 * if it hasn't been fully received yet.
+	 */
+	public static int frameLength(byte[] buf, int off, int len) throws StreamCorruptedException
+	{
+		if (len < 4) return -1;
+		int length = ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+			| ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+		if (length < 1 || length > MAX_FRAME_LENGTH) throw new StreamCorruptedException("bad frame length " + length);
+		return (len - 4 >= length) ? length + 4 : -1;
+	}
+
+	/**
+	 * Decodes a complete frame (as measured by frameLength) into the command name followed by
+	 * its arguments, the same objects ConnectionHandler reads from an ObjectInputStream.
+	 */
+	public static List<Object> decode(byte[] buf, int off, int frameLength) throws StreamCorruptedException
+	{
+		int end = off + frameLength;
+		int op = buf[off + 4];
+		if (op < 1 || op >= COMMANDS.length) throw new StreamCorruptedException("unknown opcode " + op);
+
+		List<Object> command = new ArrayList<>(1 + ARG_COUNTS[op]);
+		command.add(COMMANDS[op]);
+		int[] pos = { off + 5 };
+		if (op == MESSAGE)
+			command.add(new Message(readField(buf, pos, end), readField(buf, pos, end), readField(buf, pos, end)));
+		else
+			for (int i = 0; i < ARG_COUNTS[op]; i++) command.add(readField(buf, pos, end));
+
+		if (pos[0] != end) throw new StreamCorruptedException("frame has " + (end - pos[0]) + " extra bytes");
+		return command;
+	}
+
+	// blocking read of one frame
+	public static List<Object> read(DataInputStream in) throws IOException
+	{
+		byte[] frame = readFrame(in);
+		return decode(frame, 0, frame.length);
+	}
+
+	// blocking read of one whole frame, length prefix included, without decoding it
+	public static byte[] readFrame(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME_LENGTH) throw new StreamCorruptedException("bad frame length " + length);
+		byte[] frame = new byte[length + 4];
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		in.readFully(frame, 4, length);
+		return frame;
+	}
+
+	private static String readField(byte[] buf, int[] pos, int end) throws StreamCorruptedException
+	{
+		int size = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			if (pos[0] >= end || shift > 28) throw new StreamCorruptedException("bad field length");
+			byte b = buf[pos[0]++];
+			size |= (b & 0x7F) << shift;
+			if (b >= 0) break;
+		}
+		if (size == 0) return null;
+		size--;
+		if (size < 0 || size > end - pos[0]) throw new StreamCorruptedException("field runs past the end of the frame");
+		String s = new String(buf, pos[0], size, StandardCharsets.UTF_8);
+		pos[0] += size;
+		return s;
+	}
+
+	private static byte[] utf8(String s)
+	{
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int varintSize(int value)
+	{
+		int size = 1;
+		while ((value >>>= 7) != 0) size++;
+		return size;
+	}
+
+	private static int writeVarint(byte[] buf, int pos, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+}
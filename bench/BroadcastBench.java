@@ -0,0 +1,164 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Measures what the server spends fanning a group message out. Starts a Server in this JVM
+ * with the given options, puts that many receivers in one group and has one sender send it
+ * messages of the given size as fast as the server takes them, then reports per delivered
+ * message the CPU time and the bytes allocated by every thread in the process (the receivers
+ * only read and throw away, so nearly all of it is the server's).
+ *
+ * Receivers ask for protocol version 1 so what is measured is the fan out rather than
+ * compression. Compare blocking and --nio runs, and small and large messages.
+ *
+ * Usage: java BroadcastBench [receivers] [messages] [size] [server options...]
+ *   e.g. java BroadcastBench 100 20000 1024 --port=5049 --nio
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class BroadcastBench
+{
+	private static final long QUIET_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int receivers = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		int size = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+		String[] options = new String[Math.max(0, args.length - 3)];
+		System.arraycopy(args, Math.min(3, args.length), options, 0, options.length);
+		ServerConfig config = ServerConfig.parse(options);
+		config.commandRate = 0;
+		config.floodRate = 0;
+		config.groupRate = 0;
+		config.logLevel = Log.WARN;
+		config.mailboxMax = 0; // so every message is delivered to everyone however far behind they get
+		config.mailboxMaxKB = 0;
+
+		Server server = new Server(config);
+		server.start();
+		Thread.sleep(500);
+		Metrics metrics = server.getMetrics();
+
+		Selector selector = Selector.open();
+		ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < receivers; i++)
+		{
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", config.port));
+			ch.write(ByteBuffer.wrap(WireProtocol.handshake((byte) 1)));
+			ch.write(ByteBuffer.wrap(WireProtocol.encode("connect", "r" + i)));
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ);
+			members.append(' ').append("r" + i);
+		}
+		Thread reader = new Thread(() -> {
+			try
+			{
+				while (true) drain(selector, sink);
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		Socket sender = new Socket("localhost", config.port);
+		sender.setTcpNoDelay(true);
+		OutputStream out = sender.getOutputStream();
+		DataInputStream in = new DataInputStream(sender.getInputStream());
+		out.write(WireProtocol.handshake((byte) 1));
+		in.readFully(new byte[WireProtocol.HANDSHAKE_LENGTH]);
+		Thread echoes = new Thread(() -> {
+			try
+			{
+				while (true) WireProtocol.read(in);
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		echoes.setDaemon(true);
+		echoes.start();
+		out.write(WireProtocol.encode("connect", "sender"));
+		while (server.getConnectedUsers().size() < receivers + 1) Thread.sleep(10);
+		out.write(WireProtocol.encode("createGroup", "bench", members.toString()));
+		while (!server.isMember("bench", "r" + (receivers - 1))) Thread.sleep(10);
+		waitForQuiet(metrics);
+
+		char[] text = new char[size];
+		Arrays.fill(text, 'x');
+		String content = new String(text);
+		long deliveredBefore = metrics.counter("messages.out").sum();
+		long cpuBefore = processCpu();
+		long allocatedBefore = allocated();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < messages; i++) out.write(WireProtocol.encode("message", new Message("sender", "bench", content)));
+		out.flush();
+		double secs = (waitForQuiet(metrics) - start) / 1e9;
+
+		long delivered = metrics.counter("messages.out").sum() - deliveredBefore;
+		long cpu = processCpu() - cpuBefore;
+		long allocated = allocated() - allocatedBefore;
+		System.out.printf("%s, %d byte messages: %d receivers, %d messages, %d delivered in %.2fs (%.0f/s)%n",
+			config.nio ? "nio" : "blocking", size, receivers, messages, delivered, secs, delivered / secs);
+		System.out.printf("per delivered message: cpu %.0f ns  allocated %.0f bytes%n", (double) cpu / delivered, (double) allocated / delivered);
+		System.exit(0);
+	}
+
+	private static long processCpu()
+	{
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	// bytes allocated so far by the threads that are still running
+	private static long allocated()
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) if (bytes > 0) total += bytes;
+		return total;
+	}
+
+	// waits until the server has gone QUIET_MILLIS without sending anything. returns when it last sent
+	private static long waitForQuiet(Metrics metrics) throws InterruptedException
+	{
+		long last = -1;
+		long changed = System.nanoTime();
+		long now;
+		while (System.nanoTime() - changed < QUIET_MILLIS * 1_000_000)
+		{
+			if ((now = metrics.counter("messages.out").sum()) != last)
+			{
+				last = now;
+				changed = System.nanoTime();
+			}
+			Thread.sleep(5);
+		}
+		return changed;
+	}
+
+	private static void drain(Selector selector, ByteBuffer sink) throws IOException
+	{
+		selector.select();
+		for (SelectionKey key : selector.selectedKeys())
+		{
+			SocketChannel ch = (SocketChannel) key.channel();
+			int n;
+			while ((n = ch.read(sink)) > 0) sink.clear();
+			if (n < 0) key.cancel();
+		}
+		selector.selectedKeys().clear();
+	}
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how many commands per second a single connection can get through the server.
+ * Each connection sends "message" commands as fast as it can and counts the echoes the
+ * server writes back while handling them, so the rate is the server's read path and not
+ * message delivery. Works against any server, including ones older than this benchmark.
+ * Messages over the server's flood control aren't echoed, so start it with --flood-rate=0.
+ *
+ * Usage: java CommandRateBench [host] [port] [commands] [connections]
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class CommandRateBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : 5045;
+		int commands = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int connections = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+
+		double[] rates = new double[connections];
+		CountDownLatch done = new CountDownLatch(connections);
+		for (int c = 0; c < connections; c++)
+		{
+			int index = c;
+			new Thread(() -> {
+				try
+				{
+					rates[index] = run(host, port, "bench" + index + "-" + System.nanoTime() % 100000, commands);
+				}
+				catch (IOException | ClassNotFoundException e)
+				{
+					System.out.println("connection " + index + " failed: " + e);
+				}
+				done.countDown();
+			}).start();
+		}
+		done.await();
+
+		double total = 0, min = Double.MAX_VALUE;
+		for (double r : rates)
+		{
+			total += r;
+			min = Math.min(min, r);
+		}
+		System.out.printf("%d connection(s) x %d commands: %.1f commands/sec per connection (slowest %.1f), %.1f total%n",
+			connections, commands, total / connections, min, total);
+		System.exit(0);
+	}
+
+	// returns the commands per second this connection managed
+	private static double run(String host, int port, String name, int commands) throws IOException, ClassNotFoundException
+	{
+		try (Socket s = new Socket(host, port))
+		{
+			ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+			ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+			out.writeObject("connect");
+			out.writeObject(name);
+
+			// wait for the welcome so we only time commands from a connected user
+			while (true)
+			{
+				if (!"message".equals(in.readObject())) continue;
+				if (((Message) in.readObject()).content.startsWith("Welcome")) break;
+			}
+
+			Thread writer = new Thread(() -> {
+				try
+				{
+					for (int i = 0; i < commands; i++)
+					{
+						out.writeObject("message");
+						out.writeObject(new Message(name, name + "-sink", "message " + i));
+						out.reset(); // don't let the stream remember every message we sent
+					}
+					out.flush();
+				}
+				catch (IOException e)
+				{
+				}
+			});
+
+			long start = System.nanoTime();
+			writer.start();
+			int echoes = 0;
+			while (echoes < commands)
+			{
+				if (!"message".equals(in.readObject())) continue;
+				Message m = (Message) in.readObject();
+				if (m.sender.equals(name)) echoes++;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			out.writeObject("disconnect");
+			return commands / seconds;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what compressing what the server sends saves in bandwidth and costs in CPU. Starts a
+ * Server in this JVM with the given options, puts that many receivers in one group and has a
+ * few senders send the group chat-like messages, either as fast as the server takes them
+ * (rate 0, so messages go out in big batches) or at a steady rate (so most batches are one
+ * message). Then it reports:
+ *
+ *   sent       bytes written to client sockets per delivered message
+ *   saved      how much smaller that is than the frames before compression
+ *   cpu        CPU time of the whole process (server and clients) per delivered message. The
+ *              difference from a --compression=0 run is what compression costs
+ *   deflate    time the server spent compressing (compress.nanos) per delivered message. It is
+ *              wall time, so it includes time the thread was waiting for a CPU
+ *   inflate    CPU time of a client reading every frame through Compression.Input, per
+ *              message it read, to compare with the same client's time with --compression=0
+ *
+ * Compare runs with --compression=0 (off), --compression=N (deflate level) and
+ * --compress-min-bytes=N, in blocking and --nio mode.
+ *
+ * Usage: java CompressionBench [receivers] [messages] [rate] [server options...]
+ *   e.g. java CompressionBench 50 20000 0 --port=5048
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class CompressionBench
+{
+	private static final long QUIET_MILLIS = 1000;
+	private static final int SENDERS = 5;
+	private static final String[] WORDS = { "the", "build", "is", "green", "again", "who", "broke", "deploy", "lunch", "at",
+		"noon", "review", "my", "pull", "request", "please", "meeting", "moved", "to", "three", "thanks", "looks", "good", "ship", "it" };
+
+	public static void main(String[] args) throws Exception
+	{
+		int receivers = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		int rate = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+		String[] options = new String[Math.max(0, args.length - 3)];
+		System.arraycopy(args, Math.min(3, args.length), options, 0, options.length);
+		ServerConfig config = ServerConfig.parse(options);
+		config.commandRate = 0;
+		config.floodRate = 0;
+		config.groupRate = 0;
+		config.logLevel = Log.WARN;
+
+		Server server = new Server(config);
+		server.start();
+		Thread.sleep(500);
+		Metrics metrics = server.getMetrics();
+
+		// all but one of the receivers share a selector that throws away what the server sends
+		Selector selector = Selector.open();
+		ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+		StringBuilder members = new StringBuilder();
+		for (int i = 1; i < receivers; i++)
+		{
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", config.port));
+			ch.write(ByteBuffer.wrap(WireProtocol.handshake(WireProtocol.VERSION)));
+			ch.write(ByteBuffer.wrap(WireProtocol.encode("connect", "r" + i)));
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ);
+			members.append(' ').append("r" + i);
+		}
+		Thread drainer = new Thread(() -> {
+			try
+			{
+				while (true) drain(selector, sink);
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		drainer.setDaemon(true);
+		drainer.start();
+
+		// and one decodes everything, as a client would, on a thread whose CPU time we can measure
+		AtomicLong decoded = new AtomicLong();
+		Socket reader = new Socket("localhost", config.port);
+		DataInputStream in = handshake(reader);
+		reader.getOutputStream().write(WireProtocol.encode("connect", "r0"));
+		members.append(" r0");
+		Thread readerThread = new Thread(() -> {
+			try
+			{
+				while (true)
+				{
+					List<Object> command = WireProtocol.read(in);
+					if (command.get(0).equals("message")) decoded.incrementAndGet();
+				}
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		OutputStream[] senders = new OutputStream[SENDERS];
+		for (int i = 0; i < SENDERS; i++)
+		{
+			Socket s = new Socket("localhost", config.port);
+			s.setTcpNoDelay(true);
+			DataInputStream echoes = handshake(s);
+			Thread t = new Thread(() -> {
+				try
+				{
+					while (true) WireProtocol.read(echoes);
+				}
+				catch (IOException e)
+				{
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+			senders[i] = s.getOutputStream();
+			senders[i].write(WireProtocol.encode("connect", "sender" + i));
+			members.append(" sender" + i);
+		}
+		while (server.getConnectedUsers().size() < receivers + SENDERS) Thread.sleep(10);
+		senders[0].write(WireProtocol.encode("createGroup", "bench", members.toString()));
+		while (!server.isMember("bench", "r0")) Thread.sleep(10);
+		waitForQuiet(metrics);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long deliveredBefore = metrics.counter("messages.out").sum();
+		long bytesBefore = metrics.counter("socket.bytes").sum();
+		long rawBefore = metrics.counter("compress.raw.bytes").sum();
+		long deflatedBefore = metrics.counter("compress.deflated.bytes").sum();
+		long nanosBefore = metrics.counter("compress.nanos").sum();
+		long decodedBefore = decoded.get();
+		long readerCpuBefore = threads.getThreadCpuTime(readerThread.getId());
+		long cpuBefore = processCpu();
+		long start = System.nanoTime();
+
+		Random random = new Random(42);
+		for (int i = 0; i < messages; i++)
+		{
+			StringBuilder content = new StringBuilder();
+			for (int w = 3 + random.nextInt(8); w > 0; w--) content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			content.append(i);
+			int s = random.nextInt(SENDERS);
+			senders[s].write(WireProtocol.encode("message", new Message("sender" + s, "bench", content.toString())));
+			if (rate > 0)
+			{
+				long due = start + (long) ((i + 1) * 1e9 / rate);
+				while (System.nanoTime() < due) Thread.sleep(0, 200_000);
+			}
+		}
+		double secs = (waitForQuiet(metrics) - start) / 1e9;
+
+		long delivered = metrics.counter("messages.out").sum() - deliveredBefore;
+		long bytes = metrics.counter("socket.bytes").sum() - bytesBefore;
+		long raw = metrics.counter("compress.raw.bytes").sum() - rawBefore;
+		long deflated = metrics.counter("compress.deflated.bytes").sum() - deflatedBefore;
+		long deflateNanos = metrics.counter("compress.nanos").sum() - nanosBefore;
+		long read = decoded.get() - decodedBefore;
+		long readerCpu = threads.getThreadCpuTime(readerThread.getId()) - readerCpuBefore;
+		long cpu = processCpu() - cpuBefore;
+		long uncompressed = bytes - deflated + raw; // what would have been sent without compression
+
+		System.out.printf("%s, compression %d, min %d bytes, rate %s: %d receivers, %d messages, %d delivered in %.2fs (%.0f/s)%n",
+			config.nio ? "nio" : "blocking", config.compressionLevel, config.compressMinBytes, (rate > 0) ? rate + "/s" : "flood",
+			receivers, messages, delivered, secs, delivered / secs);
+		System.out.printf("sent %.1f bytes/msg (%.1f uncompressed), saved %.1f%%%n", (double) bytes / delivered, (double) uncompressed / delivered,
+			100.0 * (uncompressed - bytes) / Math.max(1, uncompressed));
+		System.out.printf("cpu %.0f ns/msg, deflate %.0f ns/msg, inflate %.0f ns/msg (%d msgs read)%n", (double) cpu / delivered,
+			(double) deflateNanos / delivered, (double) readerCpu / Math.max(1, read), read);
+		System.exit(0);
+	}
+
+	private static DataInputStream handshake(Socket s) throws IOException
+	{
+		s.getOutputStream().write(WireProtocol.handshake(WireProtocol.VERSION));
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		byte[] hs = new byte[WireProtocol.HANDSHAKE_LENGTH];
+		in.readFully(hs);
+		return Compression.input(in, hs[WireProtocol.MAGIC.length]);
+	}
+
+	// -1 where the JVM doesn't say
+	private static long processCpu()
+	{
+		if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+		return -1;
+	}
+
+	// waits until the server has gone QUIET_MILLIS without sending anything. returns when it last sent
+	private static long waitForQuiet(Metrics metrics) throws InterruptedException
+	{
+		long last = -1;
+		long changed = System.nanoTime();
+		long now;
+		while (System.nanoTime() - changed < QUIET_MILLIS * 1_000_000)
+		{
+			if ((now = metrics.counter("messages.out").sum()) != last)
+			{
+				last = now;
+				changed = System.nanoTime();
+			}
+			Thread.sleep(5);
+		}
+		return changed;
+	}
+
+	private static void drain(Selector selector, ByteBuffer sink) throws IOException
+	{
+		selector.select();
+		for (SelectionKey key : selector.selectedKeys())
+		{
+			SocketChannel ch = (SocketChannel) key.channel();
+			int n;
+			while ((n = ch.read(sink)) > 0) sink.clear();
+			if (n < 0) key.cancel();
+		}
+		selector.selectedKeys().clear();
+	}
+}
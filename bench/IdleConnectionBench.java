@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Measures what mostly idle connections cost the server. Starts a Server in this JVM with
+ * the given options, connects that many binary clients and waits for the chat to go quiet,
+ * then reports the platform thread count, the heap in use after a GC and the resident size
+ * of the process. Run it once with --threads=platform and once with --threads=virtual (or
+ * --nio) to compare.
+ *
+ * The clients share one selector thread that reads and throws away whatever the server
+ * sends, so they add the same small amount to every run. Every connect is announced to
+ * everyone already online, so the join traffic grows with the square of the connections.
+ *
+ * Usage: java IdleConnectionBench [connections] [server options...]
+ *   e.g. java -Xss256k IdleConnectionBench 5000 --threads=virtual --port=5046
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IdleConnectionBench
+{
+	private static final long QUIET_MILLIS = 2000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		String[] options = new String[Math.max(0, args.length - 1)];
+		System.arraycopy(args, Math.min(1, args.length), options, 0, options.length);
+		ServerConfig config = ServerConfig.parse(options);
+		config.commandRate = 0;
+		config.floodRate = 0;
+		config.groupRate = 0;
+
+		Server server = new Server(config);
+		server.start();
+		Thread.sleep(500);
+		long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heapBefore = usedHeap();
+
+		long start = System.nanoTime();
+		Selector selector = Selector.open();
+		ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+		for (int i = 0; i < connections; i++)
+		{
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", config.port));
+			ch.write(ByteBuffer.wrap(WireProtocol.handshake(WireProtocol.VERSION)));
+			ch.write(ByteBuffer.wrap(WireProtocol.encode("connect", "idle" + i)));
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ);
+			drain(selector, sink, 0);
+		}
+		while (server.getConnectedUsers().size() < connections) drain(selector, sink, 100);
+		double connectSecs = (System.nanoTime() - start) / 1e9;
+
+		// wait for the join announcements to finish arriving
+		long quietSince = System.currentTimeMillis();
+		while (System.currentTimeMillis() - quietSince < QUIET_MILLIS)
+			if (drain(selector, sink, 100) > 0) quietSince = System.currentTimeMillis();
+
+		long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heap = usedHeap();
+		System.out.printf("%s: %d connections in %.1fs. platform threads %d (+%d), heap %.1f MB (+%.1f), rss %.1f MB%n",
+			config.nio ? "nio" : (config.virtualThreads ? "virtual" : "platform"), connections, connectSecs,
+			threads, threads - threadsBefore, heap / 1e6, (heap - heapBefore) / 1e6, rss() / 1e6);
+		System.exit(0);
+	}
+
+	// reads and discards whatever has arrived. returns the number of bytes read
+	private static long drain(Selector selector, ByteBuffer sink, long timeout) throws IOException
+	{
+		if (timeout == 0) selector.selectNow();
+		else selector.select(timeout);
+
+		long total = 0;
+		for (SelectionKey key : selector.selectedKeys())
+		{
+			SocketChannel ch = (SocketChannel) key.channel();
+			int n;
+			while ((n = ch.read(sink)) > 0)
+			{
+				total += n;
+				sink.clear();
+			}
+			if (n < 0) key.cancel();
+		}
+		selector.selectedKeys().clear();
+		return total;
+	}
+
+	private static long usedHeap()
+	{
+		for (int i = 0; i < 3; i++) System.gc();
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	// resident set size from /proc, 0 where that isn't available
+	private static long rss()
+	{
+		try
+		{
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+				if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+		}
+		catch (IOException e)
+		{
+		}
+		return 0;
+	}
+}
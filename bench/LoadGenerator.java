@@ -0,0 +1,362 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator. Connects N simulated users to a running server with the binary
+ * WireProtocol, puts them in groups, and has them send a mix of direct, group and "all"
+ * messages, the same commands Client sends for msg and creategroup. Every message carries
+ * the time it was sent, and every copy that arrives is timed, so the report has throughput
+ * and send-to-receive latency percentiles.
+ *
+ * Sends are paced to --rate messages per second per user (0 sends as fast as the server
+ * takes them). Start the server with --command-rate=0 --flood-rate=0 --group-rate=0, or
+ * limits above the rates used here, otherwise the server's own limits are what get measured.
+ *
+ * Usage: java LoadGenerator [--host=localhost] [--port=5045] [--users=100] [--seconds=30]
+ *            [--warmup=5] [--rate=5] [--mix=70:25:5] [--group-size=10] [--size=64] [--senders=4]
+ *   --mix is the percentage of direct:group:all messages
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class LoadGenerator
+{
+	private static final long DRAIN_SECONDS = 30; // longest we wait for a backed up server after sending stops
+
+	private String host = "localhost";
+	private int port = 5045;
+	private int users = 100;
+	private int seconds = 30;
+	private int warmup = 5;
+	private double rate = 5;
+	private int[] mix = { 70, 25, 5 };
+	private int groupSize = 10;
+	private int size = 64;
+	private int senders = 4;
+
+	private User[] all;
+	private volatile long measureFrom = Long.MAX_VALUE; // copies of messages sent before this aren't timed
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong expected = new AtomicLong(); // copies the server should deliver for the timed messages
+	private String padding;
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadGenerator lg = new LoadGenerator();
+		lg.parse(args);
+		lg.run();
+		System.exit(0);
+	}
+
+	private void parse(String[] args)
+	{
+		for (String arg : args)
+		{
+			String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+			String value = (kv.length > 1) ? kv[1] : "";
+			switch (kv[0])
+			{
+				case "host": host = value; break;
+				case "port": port = Integer.parseInt(value); break;
+				case "users": users = Integer.parseInt(value); break;
+				case "seconds": seconds = Integer.parseInt(value); break;
+				case "warmup": warmup = Integer.parseInt(value); break;
+				case "rate": rate = Double.parseDouble(value); break;
+				case "group-size": groupSize = Math.max(2, Integer.parseInt(value)); break;
+				case "size": size = Integer.parseInt(value); break;
+				case "senders": senders = Math.max(1, Integer.parseInt(value)); break;
+				case "mix":
+					String[] parts = value.split(":");
+					for (int i = 0; i < 3; i++) mix[i] = (i < parts.length) ? Integer.parseInt(parts[i]) : 0;
+					break;
+				default: throw new IllegalArgumentException("Unknown option '" + arg + "'");
+			}
+		}
+	}
+
+	private void run() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < size) sb.append("load test ");
+		padding = sb.substring(0, size);
+
+		// connect everyone and wait for their welcomes
+		long start = System.nanoTime();
+		all = new User[users];
+		CountDownLatch welcomed = new CountDownLatch(users);
+		for (int i = 0; i < users; i++)
+		{
+			all[i] = new User("load" + i, welcomed);
+			all[i].send("connect", all[i].name);
+		}
+		if (!welcomed.await(60, TimeUnit.SECONDS)) throw new IOException("users did not all connect");
+		System.out.printf("connected %d users in %.1fs%n", users, (System.nanoTime() - start) / 1e9);
+
+		// split them into groups. the first member of each creates it
+		CountDownLatch added = new CountDownLatch(users);
+		for (int first = 0; first < users; first += groupSize)
+		{
+			String groupName = "lg" + first / groupSize;
+			StringBuilder members = new StringBuilder();
+			for (int i = first; i < Math.min(users, first + groupSize); i++)
+			{
+				all[i].group = groupName;
+				all[i].groupSize = Math.min(users, first + groupSize) - first;
+				all[i].added = added;
+				members.append(' ').append(all[i].name);
+			}
+			all[first].send("createGroup", groupName, members.toString());
+		}
+		if (!added.await(60, TimeUnit.SECONDS)) throw new IOException("groups were not all created");
+
+		// the senders run for the warmup and the measured time
+		List<Thread> threads = new ArrayList<>();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + seconds);
+		for (int t = 0; t < senders; t++)
+		{
+			int slice = t;
+			Thread th = new Thread(() -> sendLoop(slice, end));
+			threads.add(th);
+			th.start();
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+		measureFrom = System.nanoTime();
+		for (Thread th : threads) th.join();
+		double measured = (System.nanoTime() - measureFrom) / 1e9;
+		long sentMeasured = sent.get();
+
+		// give the last messages time to arrive. a server past its limit may still be working through a backlog
+		long received = 0;
+		long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+		for (int quiet = 0; quiet < 10 && System.nanoTime() < drainUntil; )
+		{
+			Thread.sleep(200);
+			long now = 0;
+			for (User u : all) now += u.arrived;
+			quiet = (now == received) ? quiet + 1 : 0;
+			received = now;
+		}
+		double drained = (System.nanoTime() - measureFrom) / 1e9 - measured;
+
+		Histogram latency = new Histogram();
+		for (User u : all) latency.add(u.latency);
+		System.out.printf("%d users, %.0f msg/s each, mix %d:%d:%d direct:group:all, %d byte messages, %.1fs measured%n",
+			users, rate, mix[0], mix[1], mix[2], size, measured);
+		System.out.printf("sent %d (%.0f/s), delivered %d of %d copies (%.0f/s), waited %.1fs after sending for the rest%n",
+			sentMeasured, sentMeasured / measured, latency.count(), expected.get(), latency.count() / (measured + drained), drained);
+		System.out.printf("latency ms: p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+			latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+
+		for (User u : all) u.send("disconnect");
+	}
+
+	// every sender thread looks after the users whose index % senders == slice
+	private void sendLoop(int slice, long end)
+	{
+		Random random = new Random(slice);
+		int mine = (users - slice + senders - 1) / senders;
+		long interval = (rate > 0) ? (long) (1e9 / (rate * mine)) : 0;
+		long next = System.nanoTime();
+		int turn = 0;
+		try
+		{
+			while (System.nanoTime() < end && mine > 0)
+			{
+				if (interval > 0)
+				{
+					long wait = next - System.nanoTime();
+					if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+					next += interval;
+				}
+				User from = all[slice + senders * (turn++ % mine)];
+				send(from, random);
+			}
+		}
+		catch (IOException | InterruptedException e)
+		{
+			System.out.println("sender " + slice + " stopped: " + e);
+		}
+	}
+
+	private void send(User from, Random random) throws IOException
+	{
+		int pick = random.nextInt(Math.max(1, mix[0] + mix[1] + mix[2]));
+		String to;
+		int copies;
+		if (pick < mix[0])
+		{
+			User u = all[random.nextInt(users)];
+			if (u == from) u = all[(u.index + 1) % users];
+			to = u.name;
+			copies = (u == from) ? 0 : 1;
+		}
+		else if (pick < mix[0] + mix[1])
+		{
+			to = from.group;
+			copies = from.groupSize - 1;
+		}
+		else
+		{
+			to = "all";
+			copies = users - 1;
+		}
+
+		long now = System.nanoTime();
+		from.send("message", new Message(from.name, to, now + " " + padding));
+		if (now >= measureFrom)
+		{
+			sent.incrementAndGet();
+			expected.addAndGet(copies);
+		}
+	}
+
+	// one simulated user: a connection and a thread reading what the server sends it
+	private class User implements Runnable
+	{
+		final String name;
+		final int index;
+		String group;
+		int groupSize;
+		volatile CountDownLatch added;
+		final Histogram latency = new Histogram(); // only the reader thread records into it
+		volatile long arrived; // copies of other users' messages, timed or not
+		private CountDownLatch welcomed;
+		private Socket sock;
+		private OutputStream out;
+		private DataInputStream in;
+
+		User(String name, CountDownLatch welcomed) throws IOException
+		{
+			this.name = name;
+			this.index = Integer.parseInt(name.substring(4));
+			this.welcomed = welcomed;
+			sock = new Socket(host, port);
+			sock.setTcpNoDelay(true);
+			out = new BufferedOutputStream(sock.getOutputStream());
+			out.write(WireProtocol.handshake(WireProtocol.VERSION));
+			out.flush();
+			in = new DataInputStream(sock.getInputStream());
+			byte[] hs = new byte[WireProtocol.HANDSHAKE_LENGTH];
+			in.readFully(hs);
+			in = Compression.input(in, hs[WireProtocol.MAGIC.length]);
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		// only one sender thread sends for each user, apart from setup
+		synchronized void send(String command, Object... args) throws IOException
+		{
+			out.write(WireProtocol.encode(command, args));
+			out.flush();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					List<Object> command = WireProtocol.read(in);
+					if (!"message".equals(command.get(0))) continue;
+					Message m = (Message) command.get(1);
+					if (m.sender.equals(name)) continue; // the server echoes what we send
+
+					if (m.sender.startsWith("SERVER") || m.sender.endsWith("] SERVER"))
+					{
+						if (welcomed != null && m.content.startsWith("Welcome"))
+						{
+							welcomed.countDown();
+							welcomed = null;
+						}
+						else if (added != null && m.content.startsWith("you were added"))
+						{
+							added.countDown();
+							added = null;
+						}
+						continue;
+					}
+
+					arrived++;
+					int space = m.content.indexOf(' ');
+					if (space < 0) continue;
+					long sentAt = Long.parseLong(m.content.substring(0, space));
+					if (sentAt >= measureFrom) latency.record((System.nanoTime() - sentAt) / 1000);
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Counts of microsecond values in buckets that are exact below 1024 and within 0.2% above,
+	 * so it stays small however many values go in.
+	 */
+	private static class Histogram
+	{
+		private static final int SUB = 512;
+		private final long[] counts = new long[1024 + 54 * SUB];
+		private volatile long count;
+		private long max;
+
+		void record(long micros)
+		{
+			counts[index(Math.max(0, micros))]++;
+			max = Math.max(max, micros);
+			count++; // only the owning thread writes, volatile so the main thread sees progress
+		}
+
+		long count()
+		{
+			return count;
+		}
+
+		long max()
+		{
+			return max;
+		}
+
+		void add(Histogram h)
+		{
+			for (int i = 0; i < counts.length; i++) counts[i] += h.counts[i];
+			count += h.count;
+			max = Math.max(max, h.max);
+		}
+
+		double percentile(double p)
+		{
+			long target = (long) Math.ceil(count * p / 100);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= target && seen > 0) return value(i);
+			}
+			return 0;
+		}
+
+		private static int index(long v)
+		{
+			if (v < 1024) return (int) v;
+			int exp = 63 - Long.numberOfLeadingZeros(v); // 10 or more
+			return 1024 + (exp - 10) * SUB + (int) ((v >> (exp - 9)) & (SUB - 1));
+		}
+
+		private static long value(int index)
+		{
+			if (index < 1024) return index;
+			int exp = (index - 1024) / SUB + 10;
+			return ((long) (SUB + (index - 1024) % SUB)) << (exp - 9);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap the server uses per user and per group membership, and how long checking a
+ * membership takes. Builds a Server in this JVM (it never listens), adds that many offline
+ * users, then that many groups of random members, and reports the heap after each step with
+ * everything else collected. A membership includes the member's cursor in the group's log, not
+ * just the group's record of who is in it.
+ *
+ * Usage: java MembershipBench [users] [groups] [members per group]
+ *   e.g. java -Xmx2g MembershipBench 100000 2000 200
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class MembershipBench
+{
+	private static final int CHECKS = 10_000_000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int userCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int groupCount = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		int members = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+		ServerConfig config = new ServerConfig();
+		config.logLevel = Log.WARN;
+		config.historySize = 0;
+
+		long empty = heap();
+		Server server = new Server(config);
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < userCount; i++)
+		{
+			names.add("user" + i);
+			server.addUser(names.get(i), null, server.nextUserID());
+		}
+		long withUsers = heap();
+
+		java.util.Random random = new java.util.Random(42);
+		for (int g = 0; g < groupCount; g++)
+		{
+			List<String> group = new ArrayList<>();
+			for (int i = 0; i < members; i++) group.add(names.get(random.nextInt(userCount)));
+			server.addGroup("group" + g, group);
+		}
+		// addGroup tells every member they were added. those messages aren't part of a membership
+		for (int id = 0; id < userCount; id++) server.getMessagesForUser(id);
+		long withGroups = heap();
+
+		long joined = 0;
+		String[] groupNames = new String[groupCount];
+		for (int g = 0; g < groupCount; g++)
+		{
+			groupNames[g] = "group" + g;
+			joined += server.getGroup(groupNames[g]).size();
+		}
+		long start = System.nanoTime();
+		int found = 0;
+		for (int i = 0; i < CHECKS; i++) if (server.isMember(groupNames[i % groupCount], names.get(i % userCount))) found++;
+		long nanos = System.nanoTime() - start;
+
+		System.out.printf("%d users: %.0f bytes each%n", userCount, (double) (withUsers - empty) / userCount);
+		System.out.printf("%d groups, %d memberships: %.0f bytes each%n", groupCount, joined, (double) (withGroups - withUsers) / joined);
+		System.out.printf("isMember by name: %.1f ns (%d found)%n", (double) nanos / CHECKS, found);
+	}
+
+	private static long heap() throws InterruptedException
+	{
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
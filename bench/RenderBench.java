@@ -0,0 +1,93 @@
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Compares drawing incoming messages one at a time, the way the client used to (escape
+ * sequences, the line and a flush for every message), with the client's Screen, which draws
+ * a frame of them at a time. Both write to the same place, /dev/null by default or a terminal
+ * such as /dev/tty to see what the terminal itself can keep up with.
+ *
+ * For each it reports how fast the receiving thread got through the messages, how long until
+ * the last one was on the screen, and the write calls and bytes that took.
+ *
+ * Usage: java RenderBench [messages] [output]
+ *   e.g. java RenderBench 200000 /dev/tty
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class RenderBench
+{
+	private static class Counting extends FilterOutputStream
+	{
+		long writes;
+		long bytes;
+
+		Counting(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			writes++;
+			bytes += len;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			writes++;
+			bytes++;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		String output = (args.length > 1) ? args[1] : "/dev/null";
+
+		// a message at a time, as Client.MessageReceiver used to draw them
+		try (FileOutputStream file = new FileOutputStream(output))
+		{
+			Counting counted = new Counting(file);
+			PrintStream ps = new PrintStream(counted, false);
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++)
+			{
+				String sender = "[all] user" + (i % 50);
+				ps.print("\033[2K");
+				ps.print(String.format("\033[%dA", 1));
+				ps.print("\033[2K");
+				if (sender.split(" ")[sender.split(" ").length - 1].equals("SERVER")) ps.print("");
+				ps.print("\n> \u001B[42m\u001B[30m" + sender + "\u001B[0m: message number " + i + "\n\n> ");
+				ps.flush();
+			}
+			report("per message", messages, System.nanoTime() - start, System.nanoTime() - start, counted, 0);
+		}
+
+		// the Screen
+		try (FileOutputStream file = new FileOutputStream(output))
+		{
+			Counting counted = new Counting(file);
+			Screen screen = new Screen(counted);
+			screen.start();
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) screen.add("\u001B[42m\u001B[30m[all] user" + (i % 50) + "\u001B[0m: message number " + i);
+			long received = System.nanoTime() - start;
+			screen.stop();
+			report("screen", messages, received, System.nanoTime() - start, counted, screen.getFrames());
+		}
+	}
+
+	private static void report(String mode, int messages, long receiveNanos, long drawnNanos, Counting out, long frames)
+	{
+		System.err.printf("%-12s received %,.0f msgs/s, all drawn after %.1f ms: %,d writes, %,d bytes%s%n", mode,
+			messages / (receiveNanos / 1e9), drawnNanos / 1e6, out.writes, out.bytes, (frames > 0) ? ", " + frames + " frames" : "");
+	}
+}
@@ -0,0 +1,94 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures taking and loading a Snapshot. Builds a Server in this JVM (it never listens) with
+ * that many offline users and groups of random members, some with an open poll, and takes a
+ * snapshot while another thread keeps sending direct messages, to show the traffic carrying on.
+ * Then it starts a second Server from the file and reports how long that took.
+ *
+ * Usage: java SnapshotBench [users] [groups] [members per group] [file]
+ *   e.g. java -Xmx4g SnapshotBench 1000000 100000 10 /tmp/terminalchat.snapshot
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class SnapshotBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int userCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int groupCount = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		int members = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		File file = new File((args.length > 3) ? args[3] : "terminalchat.snapshot");
+		file.delete();
+		ServerConfig config = new ServerConfig();
+		config.logLevel = Log.WARN;
+		config.historySize = 0;
+		config.mailboxMax = 100;
+		config.snapshotFile = file.getPath();
+
+		long start = System.nanoTime();
+		Server server = new Server(config);
+		List<String> names = new ArrayList<>();
+		int[] ids = new int[userCount];
+		for (int i = 0; i < userCount; i++)
+		{
+			names.add("user" + i);
+			ids[i] = server.nextUserID();
+			server.addUser(names.get(i), null, ids[i]);
+		}
+		Random random = new Random(42);
+		for (int g = 0; g < groupCount; g++)
+		{
+			List<String> group = new ArrayList<>();
+			int first = random.nextInt(userCount);
+			group.add(names.get(first));
+			for (int i = 1; i < members; i++) group.add(names.get(random.nextInt(userCount)));
+			server.addGroup("group" + g, group);
+			if (g % 100 == 0)
+			{
+				server.createPoll("group" + g, "lunch?", 3600, ids[first]);
+				server.voteOnPoll("group" + g, true, 0, ids[first]);
+			}
+		}
+		for (int id = 0; id < userCount; id++) server.getMessagesForUser(id);
+		System.out.printf("built %d users and %d groups of %d in %.1fs%n", userCount, groupCount, members, (System.nanoTime() - start) / 1e9);
+
+		// traffic while the snapshot is taken
+		long[] sent = { 0 };
+		long[] slowest = { 0 };
+		boolean[] stop = { false };
+		Thread sender = new Thread(() -> {
+			int i = 0;
+			while (!stop[0])
+			{
+				long t = System.nanoTime();
+				server.addMessage(new Message("user0", names.get(i++ % userCount), "hello"));
+				slowest[0] = Math.max(slowest[0], System.nanoTime() - t);
+				sent[0]++;
+			}
+		});
+		sender.start();
+		Thread.sleep(200);
+		long sentBefore = sent[0];
+		slowest[0] = 0;
+		start = System.nanoTime();
+		long bytes = server.snapshot();
+		double took = (System.nanoTime() - start) / 1e9;
+		long sentDuring = sent[0] - sentBefore;
+		long slowestDuring = slowest[0];
+		stop[0] = true;
+		sender.join();
+		System.out.printf("snapshot: %d bytes (%.1f per user) in %.2fs. %d messages sent meanwhile, slowest %.2f ms%n",
+			bytes, (double) bytes / userCount, took, sentDuring, slowestDuring / 1e6);
+
+		start = System.nanoTime();
+		Server restarted = new Server(config);
+		double loaded = (System.nanoTime() - start) / 1e9;
+		System.out.printf("loaded in %.2fs: %d groups, user%d is in %s%n", loaded, restarted.getGroupNames().size() - 1,
+			userCount - 1, restarted.getGroupsForUser("user" + (userCount - 1)));
+		System.exit(0);
+	}
+}
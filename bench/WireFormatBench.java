@@ -0,0 +1,132 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+/**
+ * Compares the serialized object protocol with the binary WireProtocol for the "message"
+ * command: bytes on the wire per message, and the time to encode and decode one.
+ *
+ * The object protocol is measured the way the server uses it, on a long lived stream, so
+ * the Message class descriptor is only paid for once per BATCH messages.
+ *
+ * Usage: java WireFormatBench [content sizes...]
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class WireFormatBench
+{
+	private static final int BATCH = 1000;
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) throws Exception
+	{
+		int[] sizes = { 16, 128, 1024 };
+		if (args.length > 0)
+		{
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.printf("%-8s %-8s %12s %12s %12s%n", "content", "format", "bytes/msg", "encode ns", "decode ns");
+		for (int size : sizes)
+		{
+			Message[] msgs = new Message[BATCH];
+			for (int i = 0; i < BATCH; i++) msgs[i] = new Message("[all] user" + (i % 50), "all", content(size, i));
+
+			// warm up both before timing either
+			for (int i = 0; i < ROUNDS / 4; i++)
+			{
+				decodeObjects(encodeObjects(msgs));
+				decodeFrames(encodeFrames(msgs));
+			}
+
+			report(size, "object", encodeObjects(msgs).length, timeObjects(msgs, true), timeObjects(msgs, false));
+			report(size, "binary", encodeFrames(msgs).length, timeFrames(msgs, true), timeFrames(msgs, false));
+		}
+	}
+
+	private static void report(int size, String format, int bytes, double encodeNs, double decodeNs)
+	{
+		System.out.printf("%-8d %-8s %12.1f %12.1f %12.1f%n", size, format, (double) bytes / BATCH, encodeNs, decodeNs);
+	}
+
+	private static String content(int size, int seed)
+	{
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size) sb.append("hello everyone ").append(seed).append(' ');
+		return sb.substring(0, size);
+	}
+
+	private static double timeObjects(Message[] msgs, boolean encode) throws IOException, ClassNotFoundException
+	{
+		byte[] bytes = encodeObjects(msgs);
+		long start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++)
+		{
+			if (encode) encodeObjects(msgs);
+			else decodeObjects(bytes);
+		}
+		return (System.nanoTime() - start) / (double) (ROUNDS * BATCH);
+	}
+
+	private static double timeFrames(Message[] msgs, boolean encode) throws IOException
+	{
+		byte[] bytes = encodeFrames(msgs);
+		long start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++)
+		{
+			if (encode) encodeFrames(msgs);
+			else decodeFrames(bytes);
+		}
+		return (System.nanoTime() - start) / (double) (ROUNDS * BATCH);
+	}
+
+	private static byte[] encodeObjects(Message[] msgs) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (Message m : msgs)
+		{
+			out.writeObject("message");
+			out.writeObject(m);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static int decodeObjects(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		int n = 0;
+		for (int i = 0; i < BATCH; i++)
+		{
+			in.readObject();
+			n += ((Message) in.readObject()).content.length();
+		}
+		return n;
+	}
+
+	private static byte[] encodeFrames(Message[] msgs)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (Message m : msgs) bytes.writeBytes(WireProtocol.encodeMessage(m));
+		return bytes.toByteArray();
+	}
+
+	private static int decodeFrames(byte[] bytes) throws IOException
+	{
+		int n = 0;
+		int pos = 0;
+		while (pos < bytes.length)
+		{
+			int length = WireProtocol.frameLength(bytes, pos, bytes.length - pos);
+			List<Object> command = WireProtocol.decode(bytes, pos, length);
+			n += ((Message) command.get(1)).content.length();
+			pos += length;
+		}
+		return n;
+	}
+}
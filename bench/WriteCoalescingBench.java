@@ -0,0 +1,182 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Measures what delivering a message costs in socket writes and TCP packets. Starts a Server
+ * in this JVM with the given options, puts that many receivers in one group and has one
+ * sender send the group messages as fast as the server takes them, then reports per
+ * delivered message:
+ *
+ *   writes    write calls on client sockets (the server's socket.writes counter), which is
+ *             the number of write syscalls
+ *   bytes     bytes written to client sockets
+ *   segments  TCP segments sent by this machine, from OutSegs in /proc/net/snmp. Everything
+ *             is on loopback, so this also counts the clients' ACKs and the sender's frames,
+ *             and anything else the machine sends while the benchmark runs
+ *   batch     mean number of messages written per flush
+ *
+ * Compare --tcp-nodelay=false, --write-buffer-kb and --nio runs with the defaults.
+ *
+ * Usage: java WriteCoalescingBench [receivers] [messages] [server options...]
+ *   e.g. java WriteCoalescingBench 50 20000 --port=5047
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class WriteCoalescingBench
+{
+	private static final long QUIET_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int receivers = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		String[] options = new String[Math.max(0, args.length - 2)];
+		System.arraycopy(args, Math.min(2, args.length), options, 0, options.length);
+		ServerConfig config = ServerConfig.parse(options);
+		config.commandRate = 0;
+		config.floodRate = 0;
+		config.groupRate = 0;
+		config.logLevel = Log.WARN;
+
+		Server server = new Server(config);
+		server.start();
+		Thread.sleep(500);
+		Metrics metrics = server.getMetrics();
+
+		// the receivers share one selector that reads and throws away what the server sends
+		Selector selector = Selector.open();
+		ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < receivers; i++)
+		{
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", config.port));
+			ch.write(ByteBuffer.wrap(WireProtocol.handshake(WireProtocol.VERSION)));
+			ch.write(ByteBuffer.wrap(WireProtocol.encode("connect", "r" + i)));
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ);
+			members.append(' ').append("r" + i);
+		}
+		Thread reader = new Thread(() -> {
+			try
+			{
+				while (true) drain(selector, sink);
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		Socket sender = new Socket("localhost", config.port);
+		sender.setTcpNoDelay(true);
+		OutputStream out = sender.getOutputStream();
+		DataInputStream din = new DataInputStream(sender.getInputStream());
+		out.write(WireProtocol.handshake(WireProtocol.VERSION));
+		byte[] hs = new byte[WireProtocol.HANDSHAKE_LENGTH];
+		din.readFully(hs);
+		DataInputStream in = Compression.input(din, hs[WireProtocol.MAGIC.length]);
+		Thread echoes = new Thread(() -> {
+			try
+			{
+				while (true) WireProtocol.read(in);
+			}
+			catch (IOException e)
+			{
+			}
+		});
+		echoes.setDaemon(true);
+		echoes.start();
+		out.write(WireProtocol.encode("connect", "sender"));
+		while (server.getConnectedUsers().size() < receivers + 1) Thread.sleep(10);
+		out.write(WireProtocol.encode("createGroup", "bench", members.toString()));
+		while (!server.isMember("bench", "r" + (receivers - 1))) Thread.sleep(10);
+		waitForQuiet(metrics);
+
+		long deliveredBefore = metrics.counter("messages.out").sum();
+		long writesBefore = metrics.counter("socket.writes").sum();
+		long bytesBefore = metrics.counter("socket.bytes").sum();
+		Metrics.Histogram batches = metrics.histogram("flush.messages");
+		long flushesBefore = batches.count();
+		long segmentsBefore = outSegments();
+		long start = System.nanoTime();
+
+		String content = "write coalescing benchmark message";
+		for (int i = 0; i < messages; i++) out.write(WireProtocol.encode("message", new Message("sender", "bench", content)));
+		out.flush();
+		double secs = (waitForQuiet(metrics) - start) / 1e9;
+
+		long delivered = metrics.counter("messages.out").sum() - deliveredBefore;
+		long writes = metrics.counter("socket.writes").sum() - writesBefore;
+		long bytes = metrics.counter("socket.bytes").sum() - bytesBefore;
+		long flushes = batches.count() - flushesBefore;
+		long segments = outSegments() - segmentsBefore;
+		System.out.printf("%s, nodelay %b, %d KB buffer: %d receivers, %d messages, %d delivered in %.2fs (%.0f/s)%n",
+			config.nio ? "nio" : "blocking", config.tcpNoDelay, config.writeBufferKB, receivers, messages, delivered, secs, delivered / secs);
+		System.out.printf("per delivered message: writes %.3f  bytes %.1f  segments %s  batch %.1f%n",
+			(double) writes / delivered, (double) bytes / delivered,
+			(segmentsBefore < 0) ? "n/a" : String.format("%.3f", (double) segments / delivered),
+			(flushes == 0) ? 0.0 : (double) delivered / flushes);
+		System.exit(0);
+	}
+
+	// waits until the server has gone QUIET_MILLIS without sending anything. returns when it last sent
+	private static long waitForQuiet(Metrics metrics) throws InterruptedException
+	{
+		long last = -1;
+		long changed = System.nanoTime();
+		long now;
+		while (System.nanoTime() - changed < QUIET_MILLIS * 1_000_000)
+		{
+			if ((now = metrics.counter("messages.out").sum()) != last)
+			{
+				last = now;
+				changed = System.nanoTime();
+			}
+			Thread.sleep(5);
+		}
+		return changed;
+	}
+
+	private static void drain(Selector selector, ByteBuffer sink) throws IOException
+	{
+		selector.select();
+		for (SelectionKey key : selector.selectedKeys())
+		{
+			SocketChannel ch = (SocketChannel) key.channel();
+			int n;
+			while ((n = ch.read(sink)) > 0) sink.clear();
+			if (n < 0) key.cancel();
+		}
+		selector.selectedKeys().clear();
+	}
+
+	// TCP segments this machine has sent, -1 where /proc/net/snmp isn't available
+	private static long outSegments()
+	{
+		try
+		{
+			String[] names = null;
+			for (String line : Files.readAllLines(Paths.get("/proc/net/snmp")))
+			{
+				if (!line.startsWith("Tcp:")) continue;
+				String[] fields = line.split("\\s+");
+				if (names == null) names = fields;
+				else for (int i = 0; i < names.length; i++) if (names[i].equals("OutSegs")) return Long.parseLong(fields[i]);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import terminalchat.jmh.HotPaths;
+
+/**
+ * The operations the JMH benchmarks time, written against the server's classes. Every
+ * operation gets its own Server so benchmarks can't affect each other.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class ServerHotPaths implements HotPaths
+{
+	private static final int DRAIN_EVERY = 256; // messages sent before the recipients' mailboxes are emptied
+	private static final int MESSAGES = 1024; // distinct messages the round trips cycle through
+
+	// history is off: it would add indexing to every operation, which the results from before it
+	// existed don't include, and each fixture would leave an indexer thread behind
+	private static Server newServer()
+	{
+		ServerConfig config = new ServerConfig();
+		config.historySize = 0;
+		return new Server(config);
+	}
+
+	public Op directMessage(int size)
+	{
+		Server serv = newServer();
+		int id = addOfflineUser(serv, "receiver");
+		String content = content(size, 0);
+		int[] sent = { 0 };
+		return () -> {
+			serv.addMessage(new Message("sender", "receiver", content));
+			if (++sent[0] % DRAIN_EVERY == 0) serv.getMessagesForUser(id);
+			return serv;
+		};
+	}
+
+	public Op groupMessage(int members, int size)
+	{
+		Server serv = newServer();
+		List<String> names = new ArrayList<>();
+		int[] ids = new int[members];
+		for (int i = 0; i < members; i++)
+		{
+			names.add("member" + i);
+			ids[i] = addOfflineUser(serv, names.get(i));
+		}
+		serv.addGroup("bench", names);
+		String content = content(size, 0);
+		int[] sent = { 0 };
+		return () -> {
+			serv.addMessage(new Message("member0", "bench", content));
+			if (++sent[0] % DRAIN_EVERY == 0) for (int id : ids) serv.getMessagesForUser(id);
+			return serv;
+		};
+	}
+
+	public Op drain(int batch, int size)
+	{
+		Server serv = newServer();
+		int id = addOfflineUser(serv, "receiver");
+		String content = content(size, 0);
+		return () -> {
+			for (int i = 0; i < batch; i++) serv.addMessage(new Message("sender", "receiver", content));
+			return serv.getMessagesForUser(id);
+		};
+	}
+
+	public Op vote(int members)
+	{
+		Server serv = newServer();
+		Group g = new Group("bench", serv);
+		for (int i = 0; i < members; i++) g.addMember(i);
+		int sink = addOfflineUser(serv, "bench"); // the server doesn't know the group, so its announcements go to a user
+		int[] next = { members };
+		return () -> {
+			if (next[0] == members)
+			{
+				// the last vote closed the poll, so start another. its deadline is far enough away never to fire
+				g.addPoll("lunch?", 3600);
+				serv.getMessagesForUser(sink);
+				next[0] = 0;
+			}
+			int id = next[0]++;
+			return g.voteOnPoll(id % 2 == 0, id, 0);
+		};
+	}
+
+	public Op objectRoundTrip(int size) throws IOException
+	{
+		// one long lived stream each way, like a connection. a pipe is fine on one thread as long as
+		// a message fits in its buffer
+		PipedInputStream pipeIn = new PipedInputStream(64 * 1024);
+		ObjectOutputStream out = new ObjectOutputStream(new PipedOutputStream(pipeIn));
+		out.flush();
+		ObjectInputStream in = new ObjectInputStream(pipeIn);
+		Message[] msgs = messages(size);
+		int[] next = { 0 };
+		return () -> {
+			// reset once per cycle so the stream doesn't send back references to messages it already sent
+			if (next[0] == msgs.length)
+			{
+				out.reset();
+				next[0] = 0;
+			}
+			out.writeObject("message");
+			out.writeObject(msgs[next[0]++]);
+			out.flush();
+			in.readObject();
+			return in.readObject();
+		};
+	}
+
+	public Op binaryRoundTrip(int size)
+	{
+		Message[] msgs = messages(size);
+		int[] next = { 0 };
+		return () -> {
+			byte[] frame = WireProtocol.encodeMessage(msgs[next[0]++ % msgs.length]);
+			return WireProtocol.decode(frame, 0, frame.length);
+		};
+	}
+
+	// a user who has been mentioned but isn't connected. returns their id
+	private static int addOfflineUser(Server serv, String name)
+	{
+		int id = serv.nextUserID();
+		serv.addUser(name, null, id);
+		return id;
+	}
+
+	private static Message[] messages(int size)
+	{
+		Message[] msgs = new Message[MESSAGES];
+		for (int i = 0; i < msgs.length; i++) msgs[i] = new Message("[all] user" + (i % 50), "all", content(size, i));
+		return msgs;
+	}
+
+	private static String content(int size, int seed)
+	{
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size) sb.append("hello everyone ").append(seed).append(' ');
+		return sb.substring(0, size);
+	}
+}
@@ -0,0 +1,44 @@
+package terminalchat.jmh;
+
+import java.io.IOException;
+
+/**
+ * The server's classes are in the default package, which code in a package can't refer to,
+ * and JMH only runs benchmarks that are in a package. So the benchmarks get at the server
+ * through this interface. ServerHotPaths implements it in the default package, next to the
+ * server, and is loaded by name.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public interface HotPaths
+{
+	// one operation of a benchmark, already set up
+	interface Op
+	{
+		Object run() throws Exception;
+	}
+
+	Op directMessage(int size);
+
+	Op groupMessage(int members, int size);
+
+	Op drain(int batch, int size);
+
+	Op vote(int members);
+
+	Op objectRoundTrip(int size) throws IOException;
+
+	Op binaryRoundTrip(int size);
+
+	static HotPaths load()
+	{
+		try
+		{
+			return (HotPaths) Class.forName("ServerHotPaths").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("ServerHotPaths is not on the classpath", e);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package terminalchat.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a Message and reading it back, with the serialized object protocol on a long lived
+ * stream and with the binary WireProtocol.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBench
+{
+	@Param({ "16", "256", "4096" })
+	int size;
+	HotPaths.Op objects;
+	HotPaths.Op binary;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		HotPaths paths = HotPaths.load();
+		objects = paths.objectRoundTrip(size);
+		binary = paths.binaryRoundTrip(size);
+	}
+
+	@Benchmark
+	public Object objectRoundTrip() throws Exception
+	{
+		return objects.run();
+	}
+
+	@Benchmark
+	public Object binaryRoundTrip() throws Exception
+	{
+		return binary.run();
+	}
+}
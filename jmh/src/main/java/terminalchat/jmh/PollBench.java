@@ -0,0 +1,46 @@
+package terminalchat.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Group.voteOnPoll. Every member votes in turn and a new poll is started once they all have,
+ * so the cost of starting and finishing a poll is spread over the votes in it.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PollBench
+{
+	@Param({ "10", "100", "1000" })
+	int members;
+	HotPaths.Op op;
+
+	@Setup
+	public void setUp()
+	{
+		op = HotPaths.load().vote(members);
+	}
+
+	@Benchmark
+	public Object vote() throws Exception
+	{
+		return op.run();
+	}
+}
@@ -0,0 +1,96 @@
+package terminalchat.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server.addMessage for direct and group messages, and Server.getMessagesForUser. Users are
+ * offline, so these measure the server's bookkeeping and not the sockets.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBench
+{
+	@State(Scope.Thread)
+	public static class Direct
+	{
+		@Param({ "16", "256", "4096" })
+		int size;
+		HotPaths.Op op;
+
+		@Setup
+		public void setUp()
+		{
+			op = HotPaths.load().directMessage(size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Fanout
+	{
+		@Param({ "10", "100", "1000" })
+		int members;
+		@Param({ "16", "256", "4096" })
+		int size;
+		HotPaths.Op op;
+
+		@Setup
+		public void setUp()
+		{
+			op = HotPaths.load().groupMessage(members, size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Drain
+	{
+		@Param({ "1", "16", "256" })
+		int batch;
+		@Param({ "256" })
+		int size;
+		HotPaths.Op op;
+
+		@Setup
+		public void setUp()
+		{
+			op = HotPaths.load().drain(batch, size);
+		}
+	}
+
+	// one direct message. the mailbox is emptied every so often so it doesn't grow for the whole run
+	@Benchmark
+	public Object directMessage(Direct s) throws Exception
+	{
+		return s.op.run();
+	}
+
+	// one message to a group, including every member reading it from the group's log
+	@Benchmark
+	public Object groupMessage(Fanout s) throws Exception
+	{
+		return s.op.run();
+	}
+
+	// batch direct messages added and then drained in one getMessagesForUser
+	@Benchmark
+	public Object drain(Drain s) throws Exception
+	{
+		return s.op.run();
+	}
+}
@@ -0,0 +1,196 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for Compression: batches go out as DEFLATED frames without the sync flush tail and read
+ * back as the frames written, small batches go out as they are, large ones are split without
+ * splitting a frame, and a version 1 client's stream isn't touched.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class CompressionTest
+{
+	private static final int MIN_BYTES = 64;
+
+	private final Metrics metrics = new Metrics();
+	private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+	private final Compression.Output out = new Compression.Output(sent, 6, MIN_BYTES, metrics);
+
+	private static byte[] message(int i)
+	{
+		return WireProtocol.encodeMessage(new Message("[team] alice", "team", "message number " + i));
+	}
+
+	// splits what was sent into its frames
+	private List<byte[]> sentFrames() throws Exception
+	{
+		byte[] bytes = sent.toByteArray();
+		List<byte[]> frames = new ArrayList<>();
+		int pos = 0;
+		while (pos < bytes.length)
+		{
+			int len = WireProtocol.frameLength(bytes, pos, bytes.length - pos);
+			assertTrue(len > 0, "partial frame at " + pos);
+			frames.add(Arrays.copyOfRange(bytes, pos, pos + len));
+			pos += len;
+		}
+		return frames;
+	}
+
+	// reads everything sent back the way a version 2 client does
+	private List<String> readBack(int count) throws Exception
+	{
+		DataInputStream in = Compression.input(new DataInputStream(new ByteArrayInputStream(sent.toByteArray())), WireProtocol.VERSION);
+		List<String> contents = new ArrayList<>();
+		for (int i = 0; i < count; i++) contents.add(((Message) WireProtocol.read(in).get(1)).content);
+		assertEquals(0, in.available());
+		return contents;
+	}
+
+	private static List<String> expected(int from, int to)
+	{
+		List<String> contents = new ArrayList<>();
+		for (int i = from; i < to; i++) contents.add("message number " + i);
+		return contents;
+	}
+
+	@Test
+	public void aBatchIsOneDeflatedFrame() throws Exception
+	{
+		int raw = 0;
+		for (int i = 0; i < 20; i++)
+		{
+			byte[] m = message(i);
+			out.write(m);
+			raw += m.length;
+		}
+		assertEquals(0, sent.size()); // nothing goes out until the flush
+		out.flush();
+
+		List<byte[]> frames = sentFrames();
+		assertEquals(1, frames.size());
+		byte[] frame = frames.get(0);
+		assertEquals(WireProtocol.DEFLATED, frame[4]);
+		assertTrue(frame.length < raw / 2, frame.length + " of " + raw);
+		byte[] tail = Arrays.copyOfRange(frame, frame.length - 4, frame.length);
+		assertFalse(Arrays.equals(new byte[] { 0, 0, (byte) 0xFF, (byte) 0xFF }, tail), "sync flush tail was sent");
+
+		assertEquals(raw, metrics.counter("compress.raw.bytes").sum());
+		assertEquals(frame.length, metrics.counter("compress.deflated.bytes").sum());
+		assertEquals(expected(0, 20), readBack(20));
+	}
+
+	@Test
+	public void laterBatchesUseWhatTheClientHasAlreadySeen() throws Exception
+	{
+		for (int i = 0; i < 20; i++) out.write(message(i));
+		out.flush();
+		int raw = 0;
+		for (int i = 20; i < 23; i++)
+		{
+			out.write(message(i));
+			raw += message(i).length;
+		}
+		out.flush();
+
+		List<byte[]> frames = sentFrames();
+		assertEquals(2, frames.size());
+		assertEquals(WireProtocol.DEFLATED, frames.get(1)[4]);
+		assertTrue(frames.get(1).length < raw / 3, "second batch took " + frames.get(1).length + " of " + raw + " bytes");
+		assertEquals(expected(0, 23), readBack(23));
+	}
+
+	@Test
+	public void smallBatchesAreSentAsTheyAre() throws Exception
+	{
+		byte[] small = WireProtocol.encode("connect", "al");
+		assertTrue(small.length < MIN_BYTES);
+		out.write(small);
+		out.flush();
+
+		assertArrayEquals(small, sent.toByteArray());
+		assertEquals(0, metrics.counter("compress.raw.bytes").sum());
+		DataInputStream in = Compression.input(new DataInputStream(new ByteArrayInputStream(sent.toByteArray())), WireProtocol.VERSION);
+		assertEquals(List.of("connect", "al"), WireProtocol.read(in));
+	}
+
+	@Test
+	public void rawAndDeflatedBatchesInterleave() throws Exception
+	{
+		byte[] small = WireProtocol.encodeMessage(new Message("a", "b", "x"));
+		assertTrue(small.length < MIN_BYTES);
+		List<String> expected = new ArrayList<>();
+		for (int round = 0; round < 5; round++)
+		{
+			out.write(small);
+			out.flush();
+			expected.add("x");
+			for (int i = 0; i < 10; i++)
+			{
+				out.write(message(round * 10 + i));
+				expected.add("message number " + (round * 10 + i));
+			}
+			out.flush();
+		}
+
+		List<byte[]> frames = sentFrames();
+		assertEquals(10, frames.size());
+		for (int i = 0; i < frames.size(); i++) assertEquals(i % 2 == 0 ? WireProtocol.MESSAGE : WireProtocol.DEFLATED, frames.get(i)[4]);
+		assertEquals(expected, readBack(expected.size()));
+	}
+
+	@Test
+	public void largeBatchesAreSplitBetweenFrames() throws Exception
+	{
+		// 200KB of messages is split at 64KB, between frames
+		int count = 0;
+		while (count * message(0).length < 200 * 1024) out.write(message(count++));
+		out.flush();
+
+		List<byte[]> frames = sentFrames();
+		assertTrue(frames.size() >= 3, frames.size() + " frames");
+		for (byte[] f : frames) assertEquals(WireProtocol.DEFLATED, f[4]);
+		assertEquals(expected(0, count), readBack(count));
+	}
+
+	@Test
+	public void framesNearTheLimitAreNotCompressed() throws Exception
+	{
+		char[] text = new char[WireProtocol.MAX_FRAME_LENGTH / 2 + 100];
+		Arrays.fill(text, 'z');
+		byte[] big = WireProtocol.encodeMessage(new Message("a", "b", new String(text)));
+		out.write(big);
+		out.flush();
+
+		assertArrayEquals(big, sent.toByteArray());
+	}
+
+	@Test
+	public void version1StreamsAreNotWrapped()
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(new byte[0]));
+		assertSame(in, Compression.input(in, (byte) 1));
+	}
+
+	@Test
+	public void aCorruptDeflatedFrameIsRefused() throws Exception
+	{
+		byte[] garbage = { 0, 0, 0, 5, WireProtocol.DEFLATED, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+		DataInputStream in = Compression.input(new DataInputStream(new ByteArrayInputStream(garbage)), WireProtocol.VERSION);
+		assertThrows(StreamCorruptedException.class, () -> WireProtocol.read(in));
+	}
+}
@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for GroupLog: members read entries in the order they were appended, never their own
+ * or ones that skip them, chunks are only dropped once every member has read past them, and
+ * a reader keeps up with writers appending at the same time.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class GroupLogTest
+{
+	private static final int CHUNK = 256; // GroupLog.CHUNK_SIZE
+
+	private static Message msg(String content)
+	{
+		return new Message("sender", "group", content);
+	}
+
+	private static List<String> read(GroupLog log, GroupLog.Cursor c)
+	{
+		List<GroupLog.Entry> entries = new ArrayList<>();
+		log.read(c, entries);
+		List<String> out = new ArrayList<>();
+		for (GroupLog.Entry e : entries) out.add(e.msg.content);
+		return out;
+	}
+
+	@Test
+	public void readsInOrderWithoutOwnMessages()
+	{
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor alice = log.subscribe(1);
+		GroupLog.Cursor bob = log.subscribe(2);
+		log.append(1, 1, msg("a0"));
+		log.append(2, 2, msg("b0"));
+		log.append(3, 1, msg("a1"));
+
+		assertEquals(List.of("b0"), read(log, alice));
+		assertEquals(List.of("a0", "a1"), read(log, bob));
+		assertTrue(read(log, alice).isEmpty());
+		assertEquals(0, log.unread(alice));
+	}
+
+	@Test
+	public void newMembersOnlySeeLaterMessages()
+	{
+		GroupLog log = new GroupLog();
+		log.subscribe(1);
+		log.append(1, 1, msg("before"));
+		GroupLog.Cursor late = log.subscribe(2);
+		log.append(2, 1, msg("after"));
+
+		assertEquals(List.of("after"), read(log, late));
+	}
+
+	@Test
+	public void skippedMembersDontGetTheEntry()
+	{
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor alice = log.subscribe(1);
+		GroupLog.Cursor bob = log.subscribe(2);
+		log.subscribe(3);
+		log.append(1, 3, msg("m0"));
+		log.append(2, 3, msg("m1"), new int[] { 2 });
+		log.append(3, 3, msg("m2"));
+
+		assertEquals(2, log.unread(bob));
+		assertEquals(2 * Mailbox.bytes(msg("m0")), log.unreadBytes(bob));
+		assertEquals(List.of("m0", "m2"), read(log, bob));
+		assertEquals(List.of("m0", "m1", "m2"), read(log, alice));
+	}
+
+	@Test
+	public void peekAndSkipStepThroughEntries()
+	{
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor c = log.subscribe(1);
+		for (int i = 0; i < 3; i++) log.append(i, 2, msg("m" + i));
+
+		assertEquals("m0", log.peek(c).msg.content);
+		log.skip(c);
+		assertEquals(2, log.unread(c));
+		assertEquals("m1", log.peek(c).msg.content);
+		assertEquals(List.of("m1", "m2"), read(log, c));
+		assertNull(log.peek(c));
+	}
+
+	@Test
+	public void slowMemberKeepsChunksUntilTheyRead()
+	{
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor fast = log.subscribe(1);
+		GroupLog.Cursor slow = log.subscribe(2);
+		int total = 10 * CHUNK + 1;
+		for (int i = 0; i < total; i++)
+		{
+			log.append(i, 3, msg("m" + i));
+			read(log, fast);
+		}
+		assertEquals(0, log.first()); // the slow member still needs all of it
+		assertEquals(total, log.unread(slow));
+
+		List<String> got = read(log, slow);
+		assertEquals(total, got.size());
+		for (int i = 0; i < total; i++) assertEquals("m" + i, got.get(i));
+
+		// everyone has read everything now, so the next new chunk drops the rest
+		for (int i = 0; i < CHUNK; i++) log.append(total + i, 3, msg("x"));
+		assertEquals(10 * CHUNK, log.first());
+		assertEquals(CHUNK, log.unread(fast));
+		assertEquals(CHUNK, read(log, slow).size());
+	}
+
+	@Test
+	public void unsubscribingLetsTheLogTrim()
+	{
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor reader = log.subscribe(1);
+		log.subscribe(2); // never reads
+		for (int i = 0; i < 3 * CHUNK; i++)
+		{
+			log.append(i, 3, msg("m"));
+			read(log, reader);
+		}
+		assertEquals(0, log.first());
+
+		log.unsubscribe(2);
+		log.append(3 * CHUNK, 3, msg("m"));
+		assertEquals(3 * CHUNK, log.first());
+		assertEquals(1, read(log, reader).size());
+	}
+
+	@Test
+	public void readerKeepsUpWithConcurrentWriters() throws Exception
+	{
+		int writers = 4;
+		int each = 20_000;
+		GroupLog log = new GroupLog();
+		GroupLog.Cursor reader = log.subscribe(0);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int w = 1; w <= writers; w++)
+		{
+			int id = w;
+			Thread t = new Thread(() ->
+			{
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				for (int i = 0; i < each; i++) log.append(Mailbox.nextSequence(), id, msg(id + ":" + i));
+			});
+			t.start();
+			threads.add(t);
+		}
+
+		int[] next = new int[writers + 1];
+		int received = 0;
+		start.countDown();
+		List<GroupLog.Entry> entries = new ArrayList<>();
+		while (received < writers * each)
+		{
+			entries.clear();
+			log.read(reader, entries);
+			for (GroupLog.Entry e : entries)
+			{
+				String[] parts = e.msg.content.split(":");
+				int id = Integer.parseInt(parts[0]);
+				assertEquals(next[id]++, Integer.parseInt(parts[1]), "out of order from writer " + id);
+				received++;
+			}
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(0, log.unread(reader));
+		assertTrue(log.first() > 0); // the reader was the only member, so what it read was dropped
+	}
+}
@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for IdSet: it holds the same ids as a TreeSet through any mix of adds and removes,
+ * switches between a bitset and a sorted array as the ids get denser or sparser, and a View
+ * taken before a change doesn't see it.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IdSetTest
+{
+	private static void assertMatches(TreeSet<Integer> expected, IdSet set)
+	{
+		IdSet.View v = set.view();
+		assertEquals(expected.size(), v.size());
+		int[] ids = expected.stream().mapToInt(Integer::intValue).toArray();
+		assertArrayEquals(ids, v.toArray());
+
+		// walking with next() visits the same ids
+		int n = 0;
+		for (int id = v.next(-1); id >= 0; id = v.next(id)) assertEquals(ids[n++], id);
+		assertEquals(ids.length, n);
+	}
+
+	@Test
+	public void addAndRemove()
+	{
+		IdSet set = new IdSet();
+		assertTrue(set.add(7));
+		assertFalse(set.add(7));
+		assertTrue(set.add(3));
+		assertTrue(set.contains(3));
+		assertFalse(set.contains(4));
+		assertFalse(set.contains(-1));
+		assertEquals(2, set.size());
+
+		assertTrue(set.remove(7));
+		assertFalse(set.remove(7));
+		assertFalse(set.remove(-1));
+		assertEquals(-1, set.view().next(3));
+		assertThrows(IllegalArgumentException.class, () -> set.add(-1));
+		assertThrows(IllegalArgumentException.class, () -> set.addAll(new int[] { 1, -2 }));
+	}
+
+	@Test
+	public void denseSetsAreBitsetsAndSparseOnesArrays()
+	{
+		IdSet set = new IdSet();
+		set.add(0);
+		assertFalse(set.view().isBitset());
+		for (int id = 1; id < 1000; id++) set.add(id);
+		assertTrue(set.view().isBitset());
+
+		// one large id would make the bitset 16K words
+		set.add(1 << 20);
+		assertFalse(set.view().isBitset());
+		assertTrue(set.contains(1 << 20));
+		assertEquals(1 << 20, set.view().next(999));
+
+		set.remove(1 << 20);
+		assertTrue(set.view().isBitset());
+
+		// emptied down to the two ends of the range
+		for (int id = 1; id < 999; id++) set.remove(id);
+		assertFalse(set.view().isBitset());
+		assertArrayEquals(new int[] { 0, 999 }, set.view().toArray());
+	}
+
+	@Test
+	public void addAllDropsDuplicatesAndPicksTheSmallerForm()
+	{
+		IdSet set = new IdSet();
+		set.add(5);
+		set.addAll(new int[] { 9, 5, 1, 9, 3 });
+		assertArrayEquals(new int[] { 1, 3, 5, 9 }, set.view().toArray());
+		assertEquals(4, set.size());
+
+		int[] dense = new int[500];
+		for (int i = 0; i < dense.length; i++) dense[i] = i;
+		set.addAll(dense);
+		assertEquals(500, set.size());
+		assertTrue(set.view().isBitset());
+
+		IdSet sparse = new IdSet();
+		sparse.addAll(new int[] { 100_000, 2_000_000, 5 });
+		assertFalse(sparse.view().isBitset());
+		assertEquals(3, sparse.size());
+	}
+
+	@Test
+	public void aViewDoesNotChange()
+	{
+		IdSet set = new IdSet();
+		for (int id = 0; id < 100; id++) set.add(id);
+		IdSet.View before = set.view();
+		set.remove(50);
+		set.add(1 << 20);
+
+		assertTrue(before.contains(50));
+		assertFalse(before.contains(1 << 20));
+		assertEquals(100, before.size());
+		assertFalse(set.contains(50));
+	}
+
+	@Test
+	public void matchesATreeSet()
+	{
+		Random random = new Random(22);
+		IdSet set = new IdSet();
+		TreeSet<Integer> expected = new TreeSet<>();
+		boolean[] seen = new boolean[2]; // both forms were tested
+		for (int i = 0; i < 20_000; i++)
+		{
+			// mostly a dense range, sometimes one of two far away ids, which come and go so the set keeps switching
+			boolean far = random.nextInt(20) == 0;
+			int id = far ? (1 << 20) + random.nextInt(2) : random.nextInt(300);
+			if (random.nextInt(far ? 2 : 3) == 0) assertEquals(expected.remove(id), set.remove(id));
+			else assertEquals(expected.add(id), set.add(id));
+			assertEquals(expected.contains(id), set.contains(id));
+			if (i % 100 == 0) assertMatches(expected, set);
+			seen[set.view().isBitset() ? 1 : 0] = true;
+		}
+		assertMatches(expected, set);
+		assertTrue(seen[0] && seen[1]);
+	}
+}
@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for IntMap: it agrees with a HashMap through any mix of puts and removes while it
+ * grows, and removing from the middle of a run of colliding keys leaves the rest findable.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class IntMapTest
+{
+	// the home slot IntMap picks for a key
+	private static int home(int key, int slots)
+	{
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (slots - 1);
+	}
+
+	private static void assertMatches(Map<Integer, String> expected, IntMap<String> map, int keys)
+	{
+		assertEquals(expected.size(), map.size());
+		for (int key = 0; key < keys; key++) assertEquals(expected.get(key), map.get(key), "key " + key);
+
+		// walking the slots finds each value once
+		Map<String, Integer> walked = new HashMap<>();
+		for (int i = 0; i < map.slots(); i++) if (map.valueAt(i) != null) walked.merge(map.valueAt(i), 1, Integer::sum);
+		assertEquals(expected.size(), walked.size());
+	}
+
+	@Test
+	public void putGetRemove()
+	{
+		IntMap<String> map = new IntMap<>();
+		assertNull(map.put(1, "a"));
+		assertEquals("a", map.put(1, "b"));
+		assertEquals("b", map.get(1));
+		assertNull(map.get(2));
+		assertNull(map.get(-1));
+		assertEquals(1, map.size());
+
+		assertEquals("b", map.remove(1));
+		assertNull(map.remove(1));
+		assertEquals(0, map.size());
+		assertThrows(IllegalArgumentException.class, () -> map.put(-1, "x"));
+	}
+
+	@Test
+	public void growsAndKeepsEverything()
+	{
+		IntMap<String> map = new IntMap<>();
+		for (int key = 0; key < 10_000; key++) map.put(key * 31, "v" + key);
+		assertEquals(10_000, map.size());
+		assertTrue(map.slots() * 3 >= map.size() * 4);
+		for (int key = 0; key < 10_000; key++) assertEquals("v" + key, map.get(key * 31));
+	}
+
+	@Test
+	public void removingFromACollisionRunKeepsTheRestFindable()
+	{
+		// 40 entries is 64 slots. pick 10 keys with the same home slot and 30 with others
+		IntMap<String> map = new IntMap<>();
+		List<Integer> colliding = new ArrayList<>();
+		List<Integer> others = new ArrayList<>();
+		for (int key = 0; colliding.size() < 10 || others.size() < 30; key++)
+		{
+			if (home(key, 64) == 7) { if (colliding.size() < 10) colliding.add(key); }
+			else if (others.size() < 30) others.add(key);
+		}
+		Map<Integer, String> expected = new HashMap<>();
+		for (int i = 0; i < 40; i++)
+		{
+			// interleaved, so the run has other keys pushed into it too
+			int key = (i % 4 == 0) ? colliding.get(i / 4) : others.get(i - i / 4 - 1);
+			map.put(key, "v" + key);
+			expected.put(key, "v" + key);
+		}
+		assertEquals(64, map.slots());
+		int keys = Math.max(colliding.get(9), others.get(29)) + 1;
+		assertMatches(expected, map, keys);
+
+		// the middle of the run, its first, its last, then one that has moved back
+		for (int i : new int[] { 5, 0, 9, 2 })
+		{
+			int key = colliding.get(i);
+			assertEquals("v" + key, map.remove(key));
+			expected.remove(key);
+			assertMatches(expected, map, keys);
+		}
+	}
+
+	@Test
+	public void matchesAHashMap()
+	{
+		Random random = new Random(22);
+		IntMap<String> map = new IntMap<>();
+		Map<Integer, String> expected = new HashMap<>();
+		int keys = 500;
+		for (int i = 0; i < 50_000; i++)
+		{
+			int key = random.nextInt(keys);
+			if (random.nextInt(5) < 2) assertEquals(expected.remove(key), map.remove(key));
+			else
+			{
+				String value = "v" + i;
+				assertEquals(expected.put(key, value), map.put(key, value));
+			}
+			if (i % 500 == 0) assertMatches(expected, map, keys);
+		}
+		assertMatches(expected, map, keys);
+	}
+}
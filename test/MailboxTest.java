@@ -0,0 +1,262 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for Mailbox: messages come out in the order they were sent, direct and group messages
+ * are merged by sequence, trim() takes the oldest first, and nothing is lost or handed out
+ * twice while producers add and the consumer drains and trims at the same time.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class MailboxTest
+{
+	private static final int ME = 1; // the mailbox's owner
+	private static final int OTHER = 2;
+
+	private static Message msg(String content)
+	{
+		return new Message("sender", "me", content);
+	}
+
+	private static List<String> contents(List<Message> msgs)
+	{
+		List<String> out = new ArrayList<>();
+		for (Message m : msgs) out.add(m.content);
+		return out;
+	}
+
+	@Test
+	public void drainsInTheOrderAdded()
+	{
+		Mailbox box = new Mailbox();
+		for (int i = 0; i < 1000; i++) box.add(msg("m" + i));
+		assertEquals(1000, box.depth());
+
+		List<String> got = contents(box.drain());
+		assertEquals(1000, got.size());
+		for (int i = 0; i < 1000; i++) assertEquals("m" + i, got.get(i));
+		assertEquals(0, box.depth());
+		assertEquals(0, box.depthBytes());
+		assertTrue(box.drain().isEmpty());
+	}
+
+	@Test
+	public void mergesGroupAndDirectMessagesInSendOrder()
+	{
+		Mailbox box = new Mailbox();
+		GroupLog a = new GroupLog();
+		GroupLog b = new GroupLog();
+		box.follow(a, ME);
+		box.follow(b, ME);
+
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 30; i++)
+		{
+			String content = "m" + i;
+			switch (i % 3)
+			{
+				case 0: box.add(msg(content)); break;
+				case 1: a.append(Mailbox.nextSequence(), OTHER, msg(content)); break;
+				default: b.append(Mailbox.nextSequence(), OTHER, msg(content)); break;
+			}
+			sent.add(content);
+		}
+		assertEquals(30, box.depth());
+		a.append(Mailbox.nextSequence(), ME, msg("mine")); // the owner doesn't get their own
+
+		assertEquals(sent, contents(box.drain()));
+		assertEquals(0, box.depth());
+	}
+
+	@Test
+	public void unfollowedGroupsAreNotDrained()
+	{
+		Mailbox box = new Mailbox();
+		GroupLog log = new GroupLog();
+		box.follow(log, ME);
+		log.append(Mailbox.nextSequence(), OTHER, msg("before"));
+		box.unfollow(log, ME);
+		log.append(Mailbox.nextSequence(), OTHER, msg("after"));
+		box.add(msg("direct"));
+
+		assertEquals(List.of("direct"), contents(box.drain()));
+	}
+
+	@Test
+	public void trimTakesTheOldestFirst()
+	{
+		Mailbox box = new Mailbox(5, 0);
+		GroupLog log = new GroupLog();
+		box.follow(log, ME);
+		for (int i = 0; i < 10; i++)
+		{
+			if (i % 2 == 0) box.add(msg("m" + i));
+			else log.append(Mailbox.nextSequence(), OTHER, msg("m" + i));
+		}
+		assertTrue(box.overLimit());
+		assertFalse(box.hasRoom());
+
+		assertEquals(List.of("m0", "m1", "m2", "m3", "m4"), contents(box.trim(5, Long.MAX_VALUE)));
+		assertEquals(5, box.depth());
+		assertFalse(box.overLimit());
+		assertEquals(List.of("m5", "m6", "m7", "m8", "m9"), contents(box.drain()));
+	}
+
+	@Test
+	public void trimByBytes()
+	{
+		Mailbox box = new Mailbox();
+		for (int i = 0; i < 10; i++) box.add(msg("m" + i));
+		long each = Mailbox.bytes(msg("m0"));
+		assertEquals(10 * each, box.depthBytes());
+
+		assertEquals(7, box.trim(Long.MAX_VALUE, 3 * each).size());
+		assertEquals(3 * each, box.depthBytes());
+		assertEquals(List.of("m7", "m8", "m9"), contents(box.drain()));
+	}
+
+	@Test
+	public void concurrentProducersKeepTheirOrderAndLoseNothing() throws Exception
+	{
+		int producers = 8;
+		int each = 20_000;
+		Mailbox box = new Mailbox();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++)
+		{
+			int id = p;
+			Thread t = new Thread(() ->
+			{
+				await(start);
+				for (int i = 0; i < each; i++) box.add(msg(id + ":" + i));
+			});
+			t.start();
+			threads.add(t);
+		}
+
+		int[] next = new int[producers]; // the next message expected from each producer
+		int received = 0;
+		start.countDown();
+		while (received < producers * each)
+		{
+			for (Message m : box.drain())
+			{
+				String[] parts = m.content.split(":");
+				int id = Integer.parseInt(parts[0]);
+				assertEquals(next[id]++, Integer.parseInt(parts[1]), "out of order from producer " + id);
+				received++;
+			}
+		}
+		for (Thread t : threads) t.join();
+		assertTrue(box.drain().isEmpty());
+		assertEquals(0, box.depth());
+	}
+
+	@Test
+	public void twoConsumersNeverGetTheSameMessage() throws Exception
+	{
+		// a reconnecting user can briefly have two connections draining one mailbox
+		int count = 50_000;
+		Mailbox box = new Mailbox();
+		AtomicBoolean done = new AtomicBoolean();
+		List<Message> second = new ArrayList<>();
+		Thread other = new Thread(() ->
+		{
+			while (!done.get()) second.addAll(box.drain());
+		});
+		other.start();
+
+		List<Message> first = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			box.add(msg("m" + i));
+			if (i % 100 == 0) first.addAll(box.drain());
+		}
+		done.set(true);
+		other.join();
+		first.addAll(box.drain());
+
+		Set<String> seen = new HashSet<>();
+		for (Message m : first) assertTrue(seen.add(m.content), "handed out twice: " + m.content);
+		for (Message m : second) assertTrue(seen.add(m.content), "handed out twice: " + m.content);
+		assertEquals(count, seen.size());
+	}
+
+	@Test
+	public void concurrentDrainAndTrimHandOutEveryMessageOnce() throws Exception
+	{
+		int producers = 4;
+		int each = 20_000;
+		Mailbox box = new Mailbox();
+		GroupLog log = new GroupLog();
+		box.follow(log, ME);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++)
+		{
+			int id = p;
+			Thread t = new Thread(() ->
+			{
+				await(start);
+				for (int i = 0; i < each; i++)
+				{
+					// half of the producers post to the group, so trim() has to skip log entries too
+					if (id % 2 == 0) box.add(msg(id + ":" + i));
+					else log.append(Mailbox.nextSequence(), OTHER, msg(id + ":" + i));
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+
+		AtomicBoolean done = new AtomicBoolean();
+		List<Message> trimmed = new ArrayList<>();
+		Thread trimmer = new Thread(() ->
+		{
+			await(start);
+			while (!done.get()) trimmed.addAll(box.trim(50, Long.MAX_VALUE));
+		});
+		trimmer.start();
+
+		List<Message> drained = new ArrayList<>();
+		start.countDown();
+		for (Thread t : threads)
+		{
+			while (t.isAlive()) drained.addAll(box.drain());
+			t.join();
+		}
+		done.set(true);
+		trimmer.join();
+		drained.addAll(box.drain());
+
+		Set<String> seen = new HashSet<>();
+		for (Message m : drained) assertTrue(seen.add(m.content), "drained twice: " + m.content);
+		for (Message m : trimmed) assertTrue(seen.add(m.content), "trimmed and drained: " + m.content);
+		assertEquals(producers * each, seen.size());
+		assertFalse(trimmed.isEmpty());
+		assertEquals(0, box.depth());
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
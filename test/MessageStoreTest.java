@@ -0,0 +1,254 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for MessageStore: mail survives a restart until it is drained and not after, a record
+ * torn or cut off by a crash is dropped without losing the ones before it, and segments are
+ * deleted or compacted away without losing an idle user's mail.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class MessageStoreTest
+{
+	private static final int SEGMENT = 4096;
+
+	@TempDir
+	File dir;
+
+	@BeforeAll
+	public static void quiet()
+	{
+		Log.setLevel(Log.ERROR); // the damaged store tests warn on purpose
+	}
+
+	private static Message msg(String content)
+	{
+		return new Message("sender", "alice", content);
+	}
+
+	private static List<String> contents(List<Message> msgs)
+	{
+		List<String> out = new ArrayList<>();
+		for (Message m : msgs) out.add(m.content);
+		return out;
+	}
+
+	private MessageStore open() throws IOException
+	{
+		return new MessageStore(dir, SEGMENT, 4);
+	}
+
+	private File segment(long n)
+	{
+		return new File(dir, String.format("%020d.seg", n));
+	}
+
+	private int segmentCount()
+	{
+		return dir.list((d, n) -> n.endsWith(".seg")).length;
+	}
+
+	// position of the last record in a segment file, found the way recovery walks them
+	private static int lastRecord(File f) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r"))
+		{
+			int last = -1;
+			for (int pos = 0; pos + 4 <= raf.length(); )
+			{
+				raf.seek(pos);
+				int length = raf.readInt();
+				if (length <= 0) break;
+				last = pos;
+				pos += 4 + length;
+			}
+			return last;
+		}
+	}
+
+	private static int recordLength(File f, int pos) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r"))
+		{
+			raf.seek(pos);
+			return raf.readInt();
+		}
+	}
+
+	// zeroes the second half of the last record, as if the crash came before its last page was written
+	private static void tearLastRecord(File f) throws IOException
+	{
+		int pos = lastRecord(f);
+		int length = recordLength(f, pos);
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+		{
+			raf.seek(pos + 4 + length / 2);
+			raf.write(new byte[length - length / 2]);
+		}
+	}
+
+	@Test
+	public void mailSurvivesARestart() throws Exception
+	{
+		MessageStore store = open();
+		store.append("alice", msg("a0"));
+		store.append("bob", new Message("sender", "bob", "b0"));
+		store.append("alice", msg("a1"));
+		store.append("alice", new Message(null, "alice", null));
+		store.close();
+
+		store = open();
+		assertTrue(store.hasMail("alice"));
+		assertTrue(store.hasMail("bob"));
+		assertFalse(store.hasMail("carol"));
+		List<Message> got = store.drain("alice");
+		assertEquals(3, got.size());
+		assertEquals("a0", got.get(0).content);
+		assertEquals("a1", got.get(1).content);
+		assertEquals(null, got.get(2).sender);
+		assertEquals(null, got.get(2).content);
+		assertEquals(List.of("b0"), contents(store.drain("bob")));
+	}
+
+	@Test
+	public void drainedMailIsNotDeliveredAgain() throws Exception
+	{
+		MessageStore store = open();
+		store.append("alice", msg("a0"));
+		store.append("alice", msg("a1"));
+		assertEquals(List.of("a0", "a1"), contents(store.drain("alice")));
+		assertFalse(store.hasMail("alice"));
+		store.append("alice", msg("a2"));
+		store.close();
+
+		// the ACK written by the drain covers a0 and a1 but not a2
+		store = open();
+		assertEquals(List.of("a2"), contents(store.drain("alice")));
+		store.close();
+
+		store = open();
+		assertFalse(store.hasMail("alice"));
+		assertTrue(store.drain("alice").isEmpty());
+	}
+
+	@Test
+	public void aTornMessageIsDroppedAndWrittenOver() throws Exception
+	{
+		MessageStore store = open();
+		for (int i = 0; i < 5; i++) store.append("alice", msg("a" + i));
+		store.close();
+		tearLastRecord(segment(0));
+
+		store = open();
+		assertTrue(store.hasMail("alice"));
+		store.append("alice", msg("after"));
+		store.close();
+
+		store = open();
+		assertEquals(List.of("a0", "a1", "a2", "a3", "after"), contents(store.drain("alice")));
+	}
+
+	@Test
+	public void aTornAckDeliversTheMailAgainRatherThanLosingIt() throws Exception
+	{
+		MessageStore store = open();
+		store.append("alice", msg("a0"));
+		store.append("alice", msg("a1"));
+		store.drain("alice");
+		store.close();
+		tearLastRecord(segment(0));
+
+		store = open();
+		assertEquals(List.of("a0", "a1"), contents(store.drain("alice")));
+	}
+
+	@Test
+	public void aSegmentCutShortIsExtended() throws Exception
+	{
+		MessageStore store = open();
+		for (int i = 0; i < 5; i++) store.append("alice", msg("a" + i));
+		store.close();
+		int last = lastRecord(segment(0));
+		try (RandomAccessFile raf = new RandomAccessFile(segment(0), "rw"))
+		{
+			raf.setLength(last + 10); // part way through a4
+		}
+
+		store = open();
+		assertEquals(SEGMENT, segment(0).length());
+		store.append("alice", msg("after"));
+		store.close();
+
+		store = open();
+		assertEquals(List.of("a0", "a1", "a2", "a3", "after"), contents(store.drain("alice")));
+	}
+
+	@Test
+	public void anEmptyNewestSegmentIsExtended() throws Exception
+	{
+		MessageStore store = open();
+		store.append("alice", msg("a0"));
+		store.close();
+		// the crash came between creating the next segment and setting its length
+		assertTrue(segment(1).createNewFile());
+
+		store = open();
+		assertEquals(SEGMENT, segment(1).length());
+		store.append("alice", msg("a1"));
+		store.close();
+
+		store = open();
+		assertEquals(List.of("a0", "a1"), contents(store.drain("alice")));
+	}
+
+	@Test
+	public void messagesTooBigForASegmentAreRefused() throws Exception
+	{
+		MessageStore store = open();
+		assertFalse(store.append("alice", msg("x".repeat(SEGMENT))));
+		assertFalse(store.hasMail("alice"));
+	}
+
+	@Test
+	public void deliveredSegmentsAreDeleted() throws Exception
+	{
+		MessageStore store = open();
+		for (int i = 0; i < 500; i++) store.append("alice", msg("a" + i));
+		assertTrue(segmentCount() > 4); // more than maxSegments, none of it can be dropped or is worth copying
+		assertEquals(500, store.drain("alice").size());
+		assertEquals(1, segmentCount());
+		store.close();
+
+		store = open();
+		assertFalse(store.hasMail("alice"));
+	}
+
+	@Test
+	public void compactionKeepsAnIdleUsersMail() throws Exception
+	{
+		MessageStore store = open();
+		store.append("idle", msg("waiting"));
+		for (int i = 0; i < 2000; i++)
+		{
+			store.append("bob", msg("b" + i));
+			if (i % 10 == 9) assertEquals(10, store.drain("bob").size());
+			assertTrue(segmentCount() <= 4 + 1, segmentCount() + " segments");
+		}
+		store.close();
+
+		store = open();
+		assertFalse(store.hasMail("bob"));
+		assertEquals(List.of("waiting"), contents(store.drain("idle")));
+	}
+}
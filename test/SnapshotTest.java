@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for Snapshot: users, groups, members and open polls with their votes come back the way
+ * they were saved, both from the file and in a restarted Server, and a file with any byte
+ * changed or cut short is refused as a whole, so the server starts empty instead of half
+ * restored.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class SnapshotTest
+{
+	@TempDir
+	File dir;
+
+	private File file;
+	private Map<String, Integer> ids = new HashMap<>();
+
+	@BeforeEach
+	public void setUp()
+	{
+		file = new File(dir, "chat.snapshot");
+	}
+
+	private ServerConfig config()
+	{
+		ServerConfig config = new ServerConfig();
+		config.logLevel = Log.ERROR; // the damaged snapshot tests warn on purpose
+		config.historySize = 0;
+		config.snapshotFile = file.getPath();
+		return config;
+	}
+
+	// alice, bob and carol in team with an open poll bob has voted yes on. bob and dave in pair
+	private Server saved()
+	{
+		Server serv = new Server(config());
+		for (String name : List.of("alice", "bob", "carol", "dave"))
+		{
+			int id = serv.nextUserID();
+			serv.addUser(name, null, id);
+			ids.put(name, id);
+		}
+		serv.addGroup("team", List.of("alice", "bob", "carol"));
+		serv.addGroup("pair", List.of("bob", "dave"));
+		assertTrue(serv.createPoll("team", "lunch?", 600, ids.get("alice")));
+		assertTrue(serv.voteOnPoll("team", true, 0, ids.get("bob")));
+		assertTrue(serv.snapshot() > 0);
+		return serv;
+	}
+
+	private static Set<String> set(List<String> names)
+	{
+		return new HashSet<>(names);
+	}
+
+	@Test
+	public void theFileHoldsWhatWasSaved() throws Exception
+	{
+		saved();
+		Snapshot s = Snapshot.read(file);
+
+		assertEquals(4, s.ids.length);
+		for (int i = 0; i < s.ids.length; i++) assertEquals(ids.get(s.names[i]), s.ids[i]);
+		for (int i = 1; i < s.ids.length; i++) assertTrue(s.ids[i - 1] < s.ids[i]);
+
+		assertEquals(2, s.groups.size()); // not 'all'
+		Snapshot.GroupState team = s.groups.get(0).name.equals("team") ? s.groups.get(0) : s.groups.get(1);
+		assertEquals("team", team.name);
+		assertArrayEquals(new int[] { ids.get("alice"), ids.get("bob"), ids.get("carol") }, team.members);
+		assertEquals(1, team.lastPollID);
+		assertEquals(1, team.polls.size());
+		Poll p = team.polls.get(0);
+		assertEquals("lunch?", p.getQuestion());
+		assertEquals(600, p.getSeconds());
+		assertEquals(1, p.getYesVotes());
+		assertEquals(0, p.getNoVotes());
+		assertTrue(p.getVoters().get(ids.get("bob")));
+		assertEquals(1, p.getVoters().cardinality());
+	}
+
+	@Test
+	public void aRestartedServerHasTheSameDirectory()
+	{
+		saved();
+		Server serv = new Server(config());
+
+		assertEquals(set(List.of("alice", "bob", "carol")), set(serv.getGroup("team")));
+		assertEquals(set(List.of("bob", "dave")), set(serv.getGroup("pair")));
+		assertEquals(set(List.of("team", "pair")), set(serv.getGroupsForUser("bob")));
+		assertTrue(serv.isMember("pair", "dave"));
+		assertFalse(serv.isMember("team", "dave"));
+
+		// the poll is still open, and still knows who voted
+		assertFalse(serv.voteOnPoll("team", false, 1, ids.get("bob")));
+		assertTrue(serv.voteOnPoll("team", true, 1, ids.get("carol")));
+		assertTrue(serv.createPoll("team", "dinner?", 600, ids.get("carol")));
+
+		// new users don't get an id that is already taken
+		assertTrue(serv.nextUserID() > ids.get("dave"));
+	}
+
+	@Test
+	public void anyChangedByteIsCaught() throws Exception
+	{
+		saved();
+		byte[] good = Files.readAllBytes(file.toPath());
+		for (int i = 0; i < good.length; i++)
+		{
+			byte[] bad = good.clone();
+			bad[i] ^= 0x10;
+			Files.write(file.toPath(), bad);
+			assertThrows(IOException.class, () -> Snapshot.read(file), "byte " + i);
+		}
+	}
+
+	@Test
+	public void aFileCutShortIsCaught() throws Exception
+	{
+		saved();
+		long length = file.length();
+		for (long cut = length - 1; cut >= 0; cut--)
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.setLength(cut);
+			}
+			assertThrows(IOException.class, () -> Snapshot.read(file), cut + " bytes");
+		}
+	}
+
+	@Test
+	public void aDamagedSnapshotIsMovedAsideAndNotLoaded() throws Exception
+	{
+		saved();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.seek(file.length() / 2);
+			raf.write(raf.read() ^ 0xFF);
+		}
+
+		Server serv = new Server(config());
+		assertFalse(serv.groupExists("team"));
+		assertFalse(serv.groupExists("pair"));
+		assertTrue(serv.getGroupsForUser("bob").isEmpty());
+		assertFalse(file.exists());
+		assertTrue(new File(file.getPath() + ".damaged").exists());
+
+		// and the next snapshot starts over
+		serv.addGroup("fresh", List.of("erin"));
+		assertTrue(serv.snapshot() > 0);
+		assertEquals(1, Snapshot.read(file).groups.size());
+	}
+}
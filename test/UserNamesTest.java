@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for UserNames: names and ids map both ways as the table grows, a name keeps the first
+ * id it was given, and threads adding the same names at once all get the same id back while
+ * readers keep finding every name already added.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class UserNamesTest
+{
+	@Test
+	public void namesAndIds()
+	{
+		UserNames users = new UserNames();
+		assertEquals(3, users.add("alice", 3));
+		assertEquals(3, users.id("alice"));
+		assertEquals("alice", users.name(3));
+		assertTrue(users.contains("alice"));
+		assertEquals(-1, users.id("bob"));
+		assertFalse(users.contains("bob"));
+		assertNull(users.name(4));
+		assertNull(users.name(-1));
+		assertNull(users.name(1 << 20));
+		assertEquals(1, users.size());
+	}
+
+	@Test
+	public void aNameKeepsItsFirstId()
+	{
+		UserNames users = new UserNames();
+		users.add("alice", 3);
+		assertEquals(3, users.add("alice", 8));
+		assertNull(users.name(8));
+		assertEquals(1, users.size());
+
+		assertThrows(IllegalStateException.class, () -> users.add("bob", 3));
+		assertThrows(IllegalArgumentException.class, () -> users.add("bob", -1));
+		assertFalse(users.contains("bob"));
+	}
+
+	@Test
+	public void growsAndKeepsEverything()
+	{
+		UserNames users = new UserNames();
+		int count = 10_000;
+		for (int i = 0; i < count; i++) assertEquals(i * 7, users.add("user" + i, i * 7));
+		users.add("far", 1 << 20); // the names array grows to fit one large id
+
+		assertEquals(count + 1, users.size());
+		assertTrue(users.end() > 1 << 20);
+		for (int i = 0; i < count; i++)
+		{
+			assertEquals(i * 7, users.id("user" + i));
+			assertEquals("user" + i, users.name(i * 7));
+		}
+		assertEquals(1 << 20, users.id("far"));
+		assertEquals(count + 1, users.names().size());
+		assertEquals(count + 1, new HashSet<>(users.names()).size());
+	}
+
+	@Test
+	public void concurrentAddsOfOneNameAgreeOnItsId() throws Exception
+	{
+		int threads = 8;
+		int names = 5000;
+		UserNames users = new UserNames();
+		int[][] got = new int[threads][names];
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> started = new ArrayList<>();
+		for (int t = 0; t < threads; t++)
+		{
+			int thread = t;
+			Thread th = new Thread(() ->
+			{
+				await(start);
+				// every thread offers its own id for each name, like connections racing in addUser
+				for (int i = 0; i < names; i++) got[thread][i] = users.add("user" + i, i * threads + thread);
+			});
+			th.start();
+			started.add(th);
+		}
+		start.countDown();
+		for (Thread th : started) th.join();
+
+		assertEquals(names, users.size());
+		for (int i = 0; i < names; i++)
+		{
+			int id = users.id("user" + i);
+			assertEquals("user" + i, users.name(id));
+			for (int t = 0; t < threads; t++)
+			{
+				assertEquals(id, got[t][i], "user" + i + " in thread " + t);
+				if (i * threads + t != id) assertNull(users.name(i * threads + t));
+			}
+		}
+	}
+
+	@Test
+	public void readersFindEveryNameWhileTheTableGrows() throws Exception
+	{
+		int count = 50_000;
+		UserNames users = new UserNames();
+		AtomicInteger added = new AtomicInteger();
+		AtomicReference<String> failure = new AtomicReference<>();
+		Thread reader = new Thread(() ->
+		{
+			while (added.get() < count && failure.get() == null)
+			{
+				int n = added.get();
+				for (int i = Math.max(0, n - 100); i < n; i++)
+				{
+					if (users.id("user" + i) != i || !("user" + i).equals(users.name(i)))
+						failure.set("user" + i + " went missing with " + n + " added");
+				}
+			}
+		});
+		reader.start();
+		for (int i = 0; i < count; i++)
+		{
+			users.add("user" + i, i);
+			added.set(i + 1);
+		}
+		reader.join();
+		assertNull(failure.get());
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
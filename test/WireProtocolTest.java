@@ -0,0 +1,198 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for WireProtocol: every command and Message survives encode and decode, field lengths
+ * that need more than one varint byte, the handshake and version agreement, the cached frame
+ * of a shared Message, and frames that are too long, cut short or otherwise malformed being
+ * refused with a StreamCorruptedException rather than anything else.
+ *
+ * Authors: Mitchell Kiscadden and Zeru Tadesse
+ **/
+public class WireProtocolTest
+{
+	private static List<Object> roundTrip(byte[] frame) throws StreamCorruptedException
+	{
+		assertEquals(frame.length, WireProtocol.frameLength(frame, 0, frame.length));
+		return WireProtocol.decode(frame, 0, frame.length);
+	}
+
+	private static void assertMessage(Message expected, Object actual)
+	{
+		Message m = (Message) actual;
+		assertEquals(expected.sender, m.sender);
+		assertEquals(expected.receiver, m.receiver);
+		assertEquals(expected.content, m.content);
+	}
+
+	// a frame with the given length prefix, opcode and body
+	private static byte[] frame(int length, int op, int... body)
+	{
+		byte[] f = new byte[5 + body.length];
+		f[0] = (byte) (length >>> 24);
+		f[1] = (byte) (length >>> 16);
+		f[2] = (byte) (length >>> 8);
+		f[3] = (byte) length;
+		f[4] = (byte) op;
+		for (int i = 0; i < body.length; i++) f[5 + i] = (byte) body[i];
+		return f;
+	}
+
+	@Test
+	public void commandsRoundTrip() throws Exception
+	{
+		assertEquals(List.of("connect", "alice"), roundTrip(WireProtocol.encode("connect", "alice")));
+		assertEquals(List.of("disconnect"), roundTrip(WireProtocol.encode("disconnect")));
+		assertEquals(List.of("mygroups"), roundTrip(WireProtocol.encode("mygroups")));
+		assertEquals(List.of("creategroup", "team", " bob carol"), roundTrip(WireProtocol.encode("createGroup", "team", " bob carol")));
+		assertEquals(List.of("poll", "team", "yes 3"), roundTrip(WireProtocol.encode("poll", "team", "yes 3")));
+		assertEquals(List.of("addtogroup", "team", "dave"), roundTrip(WireProtocol.encode("addToGroup", "team", "dave")));
+		assertEquals(List.of("leavegroup", "team"), roundTrip(WireProtocol.encode("leaveGroup", "team")));
+		assertEquals(List.of("listmembers", "all"), roundTrip(WireProtocol.encode("listMembers", "all")));
+		assertEquals(List.of("history", "team 20"), roundTrip(WireProtocol.encode("history", "team 20")));
+		assertEquals(List.of("search", "lunch"), roundTrip(WireProtocol.encode("search", "lunch")));
+	}
+
+	@Test
+	public void messagesRoundTrip() throws Exception
+	{
+		for (String content : new String[] { "hi", "", null, "café 你好 😀" })
+		{
+			Message m = new Message("alice", "bob", content);
+			List<Object> command = roundTrip(WireProtocol.encodeMessage(m));
+			assertEquals("message", command.get(0));
+			assertMessage(m, command.get(1));
+		}
+	}
+
+	@Test
+	public void longFieldsUseLongerVarints() throws Exception
+	{
+		// 127 bytes fits one varint byte with the +1, 128 needs two, and 20000 needs three
+		for (int size : new int[] { 126, 127, 128, 16382, 16383, 20000 })
+		{
+			char[] text = new char[size];
+			Arrays.fill(text, 'x');
+			Message m = new Message("alice", "bob", new String(text));
+			assertMessage(m, roundTrip(WireProtocol.encodeMessage(m)).get(1));
+		}
+	}
+
+	@Test
+	public void anyOpcodeAndFieldCountRoundTrip() throws Exception
+	{
+		List<String> fields = Arrays.asList("a", null, "", "é", "last");
+		byte[] frame = WireProtocol.encodeFields((byte) 39, fields);
+		assertEquals(39, frame[4]);
+		assertEquals(fields, WireProtocol.decodeFields(frame));
+	}
+
+	@Test
+	public void unknownCommandsCantBeEncoded()
+	{
+		assertEquals(0, WireProtocol.opcode("nope"));
+		assertThrows(IllegalArgumentException.class, () -> WireProtocol.encode("nope"));
+	}
+
+	@Test
+	public void framesAreReadOneAtATimeFromAStream() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(WireProtocol.encode("connect", "alice"));
+		bytes.write(WireProtocol.encodeMessage(new Message("alice", "bob", "hi")));
+		bytes.write(WireProtocol.encode("disconnect"));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+		assertEquals(List.of("connect", "alice"), WireProtocol.read(in));
+		assertMessage(new Message("alice", "bob", "hi"), WireProtocol.read(in).get(1));
+		assertEquals(List.of("disconnect"), WireProtocol.read(in));
+		assertThrows(EOFException.class, () -> WireProtocol.read(in));
+	}
+
+	@Test
+	public void frameLengthWaitsForTheWholeFrame() throws Exception
+	{
+		byte[] frame = WireProtocol.encodeMessage(new Message("alice", "bob", "hello"));
+		for (int len = 0; len < frame.length; len++) assertEquals(-1, WireProtocol.frameLength(frame, 0, len));
+		assertEquals(frame.length, WireProtocol.frameLength(frame, 0, frame.length));
+
+		// and finds a frame part way into a buffer
+		byte[] buf = new byte[frame.length + 10];
+		System.arraycopy(frame, 0, buf, 7, frame.length);
+		assertEquals(frame.length, WireProtocol.frameLength(buf, 7, frame.length + 3));
+	}
+
+	@Test
+	public void framesOverTheLimitAreRefused()
+	{
+		byte[] tooLong = frame(WireProtocol.MAX_FRAME_LENGTH + 1, WireProtocol.MESSAGE);
+		assertThrows(StreamCorruptedException.class, () -> WireProtocol.frameLength(tooLong, 0, tooLong.length));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(tooLong));
+		assertThrows(StreamCorruptedException.class, () -> WireProtocol.readFrame(in));
+
+		byte[] empty = frame(0, WireProtocol.MESSAGE);
+		assertThrows(StreamCorruptedException.class, () -> WireProtocol.frameLength(empty, 0, empty.length));
+		byte[] negative = frame(-5, WireProtocol.MESSAGE);
+		assertThrows(StreamCorruptedException.class, () -> WireProtocol.frameLength(negative, 0, negative.length));
+	}
+
+	@Test
+	public void malformedFramesAreRefused()
+	{
+		List<byte[]> bad = List.of(
+			frame(1, 99), // unknown opcode
+			frame(1, WireProtocol.DEFLATED), // only the server sends these, and Compression unwraps them
+			frame(3, WireProtocol.CONNECT, 3, 'a'), // field runs past the end of the frame
+			frame(4, WireProtocol.CONNECT, 2, 'a', 0), // extra bytes after the last field
+			frame(2, WireProtocol.CONNECT, 0x80), // varint cut off
+			frame(6, WireProtocol.CONNECT, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF), // varint longer than an int
+			frame(6, WireProtocol.CONNECT, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F), // a field length that wraps negative
+			frame(3, WireProtocol.MESSAGE, 1, 1)); // a Message with one of its three fields
+		for (byte[] f : bad) assertThrows(StreamCorruptedException.class, () -> WireProtocol.decode(f, 0, f.length), Arrays.toString(f));
+	}
+
+	@Test
+	public void handshakeAndVersionAgreement()
+	{
+		byte[] hs = WireProtocol.handshake(WireProtocol.VERSION);
+		assertEquals(WireProtocol.HANDSHAKE_LENGTH, hs.length);
+		assertTrue(WireProtocol.isHandshake(hs, 0, hs.length));
+		assertEquals(WireProtocol.VERSION, hs[WireProtocol.MAGIC.length]);
+
+		// the first bytes of an ObjectOutputStream
+		byte[] stream = { (byte) 0xAC, (byte) 0xED, 0, 5 };
+		assertFalse(WireProtocol.isHandshake(stream, 0, stream.length));
+		assertTrue(WireProtocol.isHandshake(hs, 0, 2)); // can't tell yet
+
+		// the server never answers with more than the client asked for, or compression it hasn't turned on
+		assertEquals(WireProtocol.VERSION, WireProtocol.agree((byte) 9, true));
+		assertEquals(1, WireProtocol.agree((byte) 1, true));
+		assertEquals(WireProtocol.DEFLATE_VERSION - 1, WireProtocol.agree(WireProtocol.DEFLATE_VERSION, false));
+	}
+
+	@Test
+	public void aSharedMessageIsEncodedOnce() throws Exception
+	{
+		Message m = new Message("[team] alice", "team", "lunch?");
+		assertNull(m.frame);
+		byte[] frame = WireProtocol.frame(m);
+		assertSame(frame, WireProtocol.frame(m));
+		assertArrayEquals(WireProtocol.encodeMessage(m), frame);
+		assertMessage(m, roundTrip(frame).get(1));
+	}
+}